@@ -0,0 +1,48 @@
+package lu.zhe.kyudo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Benchmarks decoding attendance form rows and counting billable attendance. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class AttendanceBenchmark {
+  @Param({"10000", "100000", "500000"})
+  public int members;
+
+  @Param({"100000", "1000000"})
+  public int rows;
+
+  private MemberDatabase memberDatabase;
+  private List<List<Object>> values;
+  private AttendanceCache cache;
+
+  @Setup
+  public void setUp() {
+    SyntheticData data = SyntheticData.generate(members, 1);
+    memberDatabase = data.memberDatabase();
+    values = data.attendanceRows(rows);
+    cache = decodeRows();
+  }
+
+  @Benchmark
+  public AttendanceCache decodeRows() {
+    AttendanceCache result = AttendanceCache.inMemory();
+    SheetsClient.addAttendanceRows(result, values);
+    return result;
+  }
+
+  @Benchmark
+  public MemberVector countAttendance() {
+    return SheetsClient.countAttendance(memberDatabase,
+        cache,
+        SyntheticData.START_DATE,
+        SyntheticData.END_DATE);
+  }
+}
@@ -0,0 +1,22 @@
+package lu.zhe.kyudo;
+
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rate is reported next to throughput.
+ *
+ * <p>Accepts the usual JMH command line, e.g. {@code AttendanceBenchmark -p members=10000} to run
+ * one benchmark class at one size.
+ */
+public final class Benchmarks {
+  private Benchmarks() {}
+
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    new Runner(new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
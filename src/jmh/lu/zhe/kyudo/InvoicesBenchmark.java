@@ -0,0 +1,72 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import java.util.concurrent.*;
+
+/** Benchmarks computing invoices and rendering invoice emails. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class InvoicesBenchmark {
+  @Param({"10000", "100000", "500000"})
+  public int members;
+
+  private ImmutableList<Member> memberList;
+  private int[] attendanceCounts;
+  private int[] paymentCents;
+  private int[] startingBalanceCents;
+  private Invoices invoices;
+
+  @Setup
+  public void setUp() {
+    SyntheticData data = SyntheticData.generate(members, 1);
+    memberList = data.members();
+    attendanceCounts = data.attendanceCounts();
+    paymentCents = data.balancesCents(4);
+    for (int i = 0; i < paymentCents.length; ++i) {
+      paymentCents[i] = Math.abs(paymentCents[i]);
+    }
+    startingBalanceCents = data.balancesCents(3);
+    invoices = processMembers();
+  }
+
+  @Benchmark
+  public Invoices processMembers() {
+    Invoices.Builder builder = Invoices.builder();
+    for (int i = 0; i < memberList.size(); ++i) {
+      builder.processMember(memberList.get(i),
+          attendanceCounts[i],
+          paymentCents[i],
+          startingBalanceCents[i]);
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public String computeOwed() {
+    return invoices.computeOwed();
+  }
+
+  @Benchmark
+  public String computeWaivers() {
+    return invoices.computeWaivers();
+  }
+
+  @Benchmark
+  public void createInvoiceEmails(Blackhole blackhole) {
+    for (int i = 0; i < memberList.size(); ++i) {
+      Member member = memberList.get(i);
+      blackhole.consume(Invoices.InvoiceEmail.create(member,
+          attendanceCounts[i],
+          attendanceCounts[i] * member.type().value(),
+          SyntheticData.START_DATE,
+          SyntheticData.END_DATE));
+    }
+  }
+}
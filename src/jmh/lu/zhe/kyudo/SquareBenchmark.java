@@ -0,0 +1,54 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import com.squareup.square.models.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Benchmarks decoding Square data into members and payments. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SquareBenchmark {
+  @Param({"10000", "100000", "500000"})
+  public int members;
+
+  @Param({"1000000"})
+  public int orders;
+
+  private ImmutableList<Member> memberList;
+  private MemberDatabase memberDatabase;
+  private List<Order> orderList;
+
+  @Setup
+  public void setUp() {
+    SyntheticData data = SyntheticData.generate(members, 1);
+    memberList = data.members();
+    memberDatabase = data.memberDatabase();
+    orderList = data.orders(orders);
+  }
+
+  @Benchmark
+  public MemberDatabase buildMemberDatabase() {
+    MemberDatabase.Builder builder = MemberDatabase.builder();
+    for (Member member : memberList) {
+      builder.addMember(member);
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public long decodeOrders() {
+    long totalCents = 0;
+    for (Order order : orderList) {
+      Member member = memberDatabase.idToMember().get(order.getCustomerId());
+      totalCents += SquareApiClient.paymentCents(order, member);
+    }
+    return totalCents;
+  }
+}
@@ -0,0 +1,130 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import com.squareup.square.models.*;
+
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+
+/**
+ * Deterministic club data at benchmark scale.
+ *
+ * <p>Members are spread across every member type, and about a fifth of them are auto-invoiced.
+ * Attendance rows and orders fall within the billing period starting at {@link #START_DATE}.
+ */
+final class SyntheticData {
+  static final LocalDate START_DATE = LocalDate.parse("2020-01-01");
+  static final LocalDate END_DATE = START_DATE.plusMonths(2).minusDays(1);
+  static final ImmutableMap<String, String> GROUPS = ImmutableMap.of("regular",
+      "REGULAR",
+      "student",
+      "STUDENT",
+      "associate",
+      "ASSOCIATE",
+      "member",
+      "MEMBER",
+      "auto",
+      "AutoInvoice");
+  private static final ImmutableList<String> TYPE_GROUPS =
+      ImmutableList.of("regular", "student", "associate", "member");
+  private static final DateTimeFormatter ATTENDANCE_DATE_FORMATTER =
+      DateTimeFormatter.ofPattern("M/d/yyyy");
+  private static final int MAX_ATTENDEES_PER_ROW = 12;
+
+  private final Random random;
+  private final ImmutableList<Member> members;
+
+  private SyntheticData(Random random, ImmutableList<Member> members) {
+    this.random = random;
+    this.members = members;
+  }
+
+  static SyntheticData generate(int memberCount, long seed) {
+    Random random = new Random(seed);
+    ImmutableList.Builder<Member> members = ImmutableList.builder();
+    for (int i = 0; i < memberCount; ++i) {
+      String typeGroup = TYPE_GROUPS.get(random.nextInt(TYPE_GROUPS.size()));
+      Customer customer = new Customer.Builder()
+          .id("customer-" + i)
+          .givenName("Given" + i)
+          .familyName("Family" + i)
+          .emailAddress("member" + i + "@example.com")
+          .groupIds(random.nextInt(5) == 0 ?
+              ImmutableList.of(typeGroup, "auto") :
+              ImmutableList.of(typeGroup))
+          .build();
+      members.add(Member.create(customer, GROUPS));
+    }
+    return new SyntheticData(random, members.build());
+  }
+
+  ImmutableList<Member> members() {
+    return members;
+  }
+
+  MemberDatabase memberDatabase() {
+    MemberDatabase.Builder builder = MemberDatabase.builder();
+    members.forEach(builder::addMember);
+    return builder.build();
+  }
+
+  /** Attendance form rows, laid out like columns A to E of the form responses tab. */
+  List<List<Object>> attendanceRows(int rowCount) {
+    int days = (int) (END_DATE.toEpochDay() - START_DATE.toEpochDay()) + 1;
+    List<List<Object>> rows = new ArrayList<>(rowCount);
+    StringBuilder names = new StringBuilder();
+    for (int i = 0; i < rowCount; ++i) {
+      names.setLength(0);
+      int attendees = 1 + random.nextInt(MAX_ATTENDEES_PER_ROW);
+      for (int j = 0; j < attendees; ++j) {
+        if (j > 0) {
+          names.append(", ");
+        }
+        names.append(members.get(random.nextInt(members.size())).name());
+      }
+      LocalDate date = START_DATE.plusDays(random.nextInt(days));
+      rows.add(ImmutableList.of(date + " 19:00:00",
+          "instructor@example.com",
+          names.toString(),
+          "",
+          date.format(ATTENDANCE_DATE_FORMATTER)));
+    }
+    return rows;
+  }
+
+  /** Completed orders, of which about a quarter are dues or first shot payments. */
+  List<Order> orders(int orderCount) {
+    List<Order> orders = new ArrayList<>(orderCount);
+    for (int i = 0; i < orderCount; ++i) {
+      int kind = random.nextInt(20);
+      String name = kind < 4 ? "Dues" : kind == 4 ? "First Shot" : "Arrows";
+      orders.add(new Order.Builder("location")
+          .id("order-" + i)
+          .customerId(members.get(random.nextInt(members.size())).customer().getId())
+          .lineItems(ImmutableList.of(new OrderLineItem.Builder(String.valueOf(1 +
+              random.nextInt(3))).name(name).build()))
+          .build());
+    }
+    return orders;
+  }
+
+  /** Number of practices or months attended by each member, in member order. */
+  int[] attendanceCounts() {
+    int[] counts = new int[members.size()];
+    for (int i = 0; i < counts.length; ++i) {
+      counts[i] = random.nextInt(9);
+    }
+    return counts;
+  }
+
+  /** Amounts in cents, in whole multiples of each member's rate between {@code -max} and max. */
+  int[] balancesCents(int maxMultiple) {
+    int[] cents = new int[members.size()];
+    for (int i = 0; i < cents.length; ++i) {
+      cents[i] = (random.nextInt(2 * maxMultiple + 1) - maxMultiple) *
+          Ledger.toCents(members.get(i).type().value());
+    }
+    return cents;
+  }
+}
@@ -0,0 +1,53 @@
+package lu.zhe.kyudo;
+
+import com.google.common.base.Splitter;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.function.*;
+
+/**
+ * Opens append-only files of UTF-8 lines, each of which is forced to disk as it is appended.
+ *
+ * <p>A crash while appending can leave the last line without its newline. Such a torn line is
+ * dropped when the file is next opened, so that it is never read and the next line appended
+ * starts on a line of its own.
+ */
+final class AppendOnlyFiles {
+  private AppendOnlyFiles() {}
+
+  /**
+   * Opens the file at {@code path} for appending, creating it if there is no file yet.
+   *
+   * <p>The channel, positioned at the end of the last complete line, is passed to {@code create},
+   * and each complete non-empty line is then passed to {@code read} along with what it created.
+   * The channel is closed if opening or reading fails.
+   */
+  static <T> T open(Path path, Function<FileChannel, T> create, BiConsumer<T, String> read)
+      throws IOException {
+    FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      byte[] bytes = Files.readAllBytes(path);
+      int end = bytes.length;
+      while (end > 0 && bytes[end - 1] != '\n') {
+        --end;
+      }
+      channel.truncate(end);
+      channel.position(end);
+      T file = create.apply(channel);
+      String contents = new String(bytes, 0, end, StandardCharsets.UTF_8);
+      for (String line : Splitter.on('\n').omitEmptyStrings().split(contents)) {
+        read.accept(file, line);
+      }
+      return file;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+}
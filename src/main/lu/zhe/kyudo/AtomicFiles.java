@@ -0,0 +1,50 @@
+package lu.zhe.kyudo;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Replaces files atomically, so that a run interrupted while writing leaves the previous file in
+ * place rather than a partial one.
+ */
+final class AtomicFiles {
+  private AtomicFiles() {}
+
+  /**
+   * Writes {@code lines} to {@code path} as UTF-8, replacing any previous file atomically.
+   */
+  static void writeLines(Path path, List<String> lines) throws IOException {
+    write(path, temp -> Files.write(temp, lines, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Replaces {@code path} with the file {@code contents} writes, atomically.
+   *
+   * <p>The contents are written to a temporary file beside {@code path}, which is then moved over
+   * it. The temporary file is deleted if writing or moving it fails. Where the file system
+   * supports POSIX permissions, the temporary file, and so the file it replaces {@code path}
+   * with, can only be read and written by its owner.
+   */
+  static void write(Path path, Contents contents) throws IOException {
+    Path absolutePath = path.toAbsolutePath();
+    Path temp = Files.createTempFile(absolutePath.getParent(),
+        absolutePath.getFileName().toString(),
+        ".tmp");
+    try {
+      contents.writeTo(temp);
+      Files.move(temp,
+          absolutePath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Writes the contents of a file. */
+  interface Contents {
+    void writeTo(Path file) throws IOException;
+  }
+}
@@ -0,0 +1,99 @@
+package lu.zhe.kyudo;
+
+import com.google.common.base.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Local copy of the attendance form rows that have already been downloaded.
+ *
+ * <p>Form responses are only ever appended, so the number of cached rows doubles as a watermark:
+ * the next read only needs the rows after it. The cache is stored as a text file whose first line
+ * is the attendance sheet id, followed by one {@code epochDay<TAB>members} line per row.
+ *
+ * <p>Rows are held as an array of epoch days alongside the members fields, so they can be
+ * scanned without an object per row.
+ */
+class AttendanceCache {
+  private static final Splitter TAB_SPLITTER = Splitter.on('\t').limit(2);
+
+  /** Where the cache is stored, or null if it is not persisted. */
+  private final Path path;
+  private final String sheetId;
+  private int[] epochDays = new int[16];
+  private String[] members = new String[16];
+  private int size;
+
+  private AttendanceCache(Path path, String sheetId) {
+    this.path = path;
+    this.sheetId = sheetId;
+  }
+
+  /** Creates a cache that is not persisted, so every read starts from the first row. */
+  static AttendanceCache inMemory() {
+    return new AttendanceCache(null, "");
+  }
+
+  /**
+   * Loads the cache stored at {@code path}, or an empty cache if there is no file yet or it was
+   * written for a different sheet.
+   */
+  static AttendanceCache load(Path path, String sheetId) throws IOException {
+    AttendanceCache cache = new AttendanceCache(path, sheetId);
+    if (Files.exists(path)) {
+      List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+      if (!lines.isEmpty() && lines.get(0).equals(sheetId)) {
+        for (String line : lines.subList(1, lines.size())) {
+          List<String> fields = TAB_SPLITTER.splitToList(line);
+          cache.add(Integer.parseInt(fields.get(0)), fields.get(1));
+        }
+      }
+    }
+    return cache;
+  }
+
+  /** Number of form rows already read. */
+  int watermark() {
+    return size;
+  }
+
+  /**
+   * Epoch day of each row. Only the first {@link #watermark} entries are rows; the array is
+   * shared with the cache and must not be modified.
+   */
+  int[] epochDays() {
+    return epochDays;
+  }
+
+  /** Comma separated names of the members who attended {@code row}. */
+  String members(int row) {
+    Preconditions.checkElementIndex(row, size);
+    return members[row];
+  }
+
+  void add(int epochDay, String members) {
+    if (size == epochDays.length) {
+      epochDays = Arrays.copyOf(epochDays, size * 2);
+      this.members = Arrays.copyOf(this.members, size * 2);
+    }
+    epochDays[size] = epochDay;
+    this.members[size] = members;
+    ++size;
+  }
+
+  /** Writes the cache back to disk, replacing the previous file atomically. */
+  void save() throws IOException {
+    if (path == null) {
+      return;
+    }
+    List<String> lines = new ArrayList<>(size + 1);
+    lines.add(sheetId);
+    for (int row = 0; row < size; ++row) {
+      lines.add(epochDays[row] + "\t" + members[row]);
+    }
+    AtomicFiles.writeLines(path, lines);
+  }
+}
@@ -0,0 +1,304 @@
+package lu.zhe.kyudo;
+
+import com.google.common.annotations.*;
+import com.google.common.base.*;
+
+import java.time.*;
+import java.time.format.*;
+import java.time.temporal.*;
+import java.util.*;
+
+/**
+ * Counts billable attendance from attendance form rows without creating objects per row.
+ *
+ * <p>Dates are decoded straight to epoch days, and member names are matched in place against a
+ * table of the member database's names, so a row's members field is never split into strings.
+ * Counts are kept in arrays indexed by each member's index in the database. Rows can also be
+ * decoded once to member indices, as {@link Attendance}, and counted for any window later.
+ */
+final class AttendanceParser {
+  /** Cumulative days before each month of a non-leap year. */
+  private static final int[] DAYS_BEFORE_MONTH =
+      {0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334, 365};
+
+  private final MemberDatabase database;
+  /** Full name of each member, by member index. */
+  private final String[] names;
+  private final int[] nameHashes;
+  private final MemberType[] types;
+  /** Open addressing table of member index + 1 by name hash, or 0 for an empty slot. */
+  private final int[] slots;
+  /** Shift taking a hash to its slot, so that slots are picked by the hash's high bits. */
+  private final int slotShift;
+
+  private AttendanceParser(MemberDatabase database) {
+    this.database = database;
+    int size = database.size();
+    this.names = new String[size];
+    this.nameHashes = new int[size];
+    this.types = new MemberType[size];
+    this.slots = new int[Math.max(16, Integer.highestOneBit(size * 2 + 1) << 1)];
+    this.slotShift = Integer.numberOfLeadingZeros(slots.length) + 1;
+    int mask = slots.length - 1;
+    for (int i = 0; i < size; ++i) {
+      Member member = database.members().get(i);
+      names[i] = member.name();
+      types[i] = member.type();
+      nameHashes[i] = hash(names[i], 0, names[i].length());
+      int slot = nameHashes[i] >>> slotShift;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = i + 1;
+    }
+  }
+
+  /** Creates a parser that recognizes the full names of the members in {@code database}. */
+  static AttendanceParser create(MemberDatabase database) {
+    return new AttendanceParser(database);
+  }
+
+  /**
+   * Decodes an {@code M/d/yyyy} date, as written by the attendance form, to its epoch day.
+   *
+   * @throws DateTimeParseException if {@code text} is not a valid date in that format
+   */
+  static int parseEpochDay(String text) {
+    int position = 0;
+    int month = 0;
+    int day = 0;
+    int year = 0;
+    int field = 0;
+    int digits = 0;
+    for (; position < text.length(); ++position) {
+      char c = text.charAt(position);
+      if (c >= '0' && c <= '9') {
+        if (++digits > (field == 2 ? 4 : 2)) {
+          break;
+        }
+        int digit = c - '0';
+        if (field == 0) {
+          month = month * 10 + digit;
+        } else if (field == 1) {
+          day = day * 10 + digit;
+        } else {
+          year = year * 10 + digit;
+        }
+      } else if (c == '/' && field < 2 && digits > 0) {
+        ++field;
+        digits = 0;
+      } else {
+        break;
+      }
+    }
+    if (position != text.length() || field != 2 || digits != 4 || month < 1 || month > 12 ||
+        day < 1 || day > lengthOfMonth(year, month)) {
+      throw new DateTimeParseException("Text '" + text + "' is not an M/d/yyyy date",
+          text,
+          position);
+    }
+    return epochDay(year, month, day);
+  }
+
+  private static boolean isLeapYear(int year) {
+    return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+  }
+
+  private static int lengthOfMonth(int year, int month) {
+    int length = DAYS_BEFORE_MONTH[month] - DAYS_BEFORE_MONTH[month - 1];
+    return month == 2 && isLeapYear(year) ? length + 1 : length;
+  }
+
+  /** Days from 1970-01-01 to the date, for years 1 and later. */
+  @VisibleForTesting
+  static int epochDay(int year, int month, int day) {
+    int yearsBefore = year - 1;
+    int days = 365 * yearsBefore + yearsBefore / 4 - yearsBefore / 100 + yearsBefore / 400 +
+        DAYS_BEFORE_MONTH[month - 1] + (month > 2 && isLeapYear(year) ? 1 : 0) + day - 1;
+    // Days from 0001-01-01 to 1970-01-01.
+    return days - 719162;
+  }
+
+  /**
+   * Counts the billable attendance of each member between the dates: one per practice for
+   * associates, one per month attended for regular members and students, and every month for
+   * members. Counts are indexed by member index.
+   */
+  MemberVector count(
+      AttendanceCache cache, LocalDate startDateInclusive, LocalDate endDateInclusive) {
+    Set<String> unknown = new TreeSet<>();
+    Attendance attendance = decode(cache,
+        Math.toIntExact(startDateInclusive.toEpochDay()),
+        Math.toIntExact(endDateInclusive.toEpochDay()),
+        unknown);
+    if (!unknown.isEmpty()) {
+      System.err.println("Attendance for unknown members: " + String.join(", ", unknown));
+    }
+    return count(attendance, startDateInclusive, endDateInclusive);
+  }
+
+  /** Decodes every row of {@code cache}, dropping the names of anyone who is not a member. */
+  Attendance decode(AttendanceCache cache) {
+    return decode(cache, Integer.MIN_VALUE, Integer.MAX_VALUE, new HashSet<>());
+  }
+
+  /**
+   * Decodes the rows of {@code cache} between the epoch days, adding the names of anyone who is
+   * not a member to {@code unknown}.
+   */
+  private Attendance decode(AttendanceCache cache, int startDay, int endDay, Set<String> unknown) {
+    Attendance attendance = new Attendance();
+    int[] epochDays = cache.epochDays();
+    for (int row = 0; row < cache.watermark(); ++row) {
+      int day = epochDays[row];
+      if (day < startDay || day > endDay) {
+        continue;
+      }
+      String attendees = cache.members(row);
+      for (int start = 0; start <= attendees.length(); ) {
+        int end = attendees.indexOf(", ", start);
+        if (end < 0) {
+          end = attendees.length();
+        }
+        if (end > start) {
+          int member = lookup(attendees, start, end);
+          if (member < 0) {
+            unknown.add(attendees.substring(start, end));
+          } else {
+            attendance.add(day, member);
+          }
+        }
+        start = end + 2;
+      }
+    }
+    return attendance;
+  }
+
+  /** Counts billable attendance between the dates as above, from attendance already decoded. */
+  MemberVector count(
+      Attendance attendance, LocalDate startDateInclusive, LocalDate endDateInclusive) {
+    int startDay = Math.toIntExact(startDateInclusive.toEpochDay());
+    int endDay = Math.toIntExact(endDateInclusive.toEpochDay());
+    // Month of the period that each day of the period falls in.
+    int[] monthOfDay = new int[Math.max(0, endDay - startDay + 1)];
+    YearMonth firstMonth = YearMonth.from(startDateInclusive);
+    for (int day = 0; day < monthOfDay.length; ++day) {
+      LocalDate date = startDateInclusive.plusDays(day);
+      monthOfDay[day] =
+          Math.toIntExact(firstMonth.until(YearMonth.from(date), ChronoUnit.MONTHS));
+    }
+    int months = monthOfDay.length == 0 ? 0 : monthOfDay[monthOfDay.length - 1] + 1;
+    int words = (months + 63) / 64;
+
+    int[] practices = new int[names.length];
+    long[] monthsAttended = new long[names.length * words];
+    for (int entry = 0; entry < attendance.size(); ++entry) {
+      int day = attendance.epochDay(entry);
+      if (day < startDay || day > endDay) {
+        continue;
+      }
+      int month = monthOfDay[day - startDay];
+      int member = attendance.member(entry);
+      if (types[member] == MemberType.ASSOCIATE) {
+        ++practices[member];
+      } else if (types[member] != MemberType.MEMBER) {
+        monthsAttended[member * words + (month >>> 6)] |= 1L << month;
+      }
+    }
+
+    int memberMonths = 0;
+    for (LocalDate date = startDateInclusive; date.isBefore(endDateInclusive);
+        date = date.plusMonths(1)) {
+      ++memberMonths;
+    }
+    MemberVector result = database.newVector();
+    for (int member = 0; member < names.length; ++member) {
+      int count;
+      switch (types[member]) {
+        case ASSOCIATE:
+          count = practices[member];
+          break;
+        case MEMBER:
+          count = memberMonths;
+          break;
+        default:
+          count = 0;
+          for (int word = 0; word < words; ++word) {
+            count += Long.bitCount(monthsAttended[member * words + word]);
+          }
+      }
+      result.add(member, count);
+    }
+    return result;
+  }
+
+  /** Returns the index of the member named by {@code text[start, end)}, or -1 if there is none. */
+  private int lookup(String text, int start, int end) {
+    int mask = slots.length - 1;
+    int length = end - start;
+    int hash = hash(text, start, end);
+    for (int slot = hash >>> slotShift; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int member = slots[slot] - 1;
+      if (nameHashes[member] == hash && names[member].length() == length &&
+          names[member].regionMatches(0, text, start, length)) {
+        return member;
+      }
+    }
+    return -1;
+  }
+
+  private static int hash(String text, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; ++i) {
+      hash = 31 * hash + text.charAt(i);
+    }
+    // Names differ in few characters, so mix every bit into the high bits used for slots.
+    return hash * 0x9E3779B9;
+  }
+
+  /**
+   * Attendance decoded to member indices, with an entry for each member named in each form row.
+   * Entries are held as parallel arrays of epoch days and member indices.
+   */
+  static final class Attendance {
+    private int[] epochDays;
+    private int[] members;
+    private int size;
+
+    Attendance() {
+      this(new int[16], new int[16], 0);
+    }
+
+    /** Wraps the first {@code size} entries of the arrays, which must not be modified. */
+    Attendance(int[] epochDays, int[] members, int size) {
+      Preconditions.checkArgument(epochDays.length >= size && members.length >= size);
+      this.epochDays = epochDays;
+      this.members = members;
+      this.size = size;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int epochDay(int entry) {
+      Preconditions.checkElementIndex(entry, size);
+      return epochDays[entry];
+    }
+
+    int member(int entry) {
+      Preconditions.checkElementIndex(entry, size);
+      return members[entry];
+    }
+
+    void add(int epochDay, int member) {
+      if (size == epochDays.length) {
+        epochDays = Arrays.copyOf(epochDays, Math.max(16, size * 2));
+        members = Arrays.copyOf(members, Math.max(16, size * 2));
+      }
+      epochDays[size] = epochDay;
+      members[size] = member;
+      ++size;
+    }
+  }
+}
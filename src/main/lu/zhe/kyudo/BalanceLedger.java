@@ -0,0 +1,269 @@
+package lu.zhe.kyudo;
+
+import com.google.auto.value.*;
+import com.google.common.annotations.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * History of every member's account balance, as charges, payments and carryovers by date.
+ *
+ * <p>The ledger is an append-only text file with one tab separated line of kind, date, customer
+ * id and amount in cents per event. An event replaces any earlier event of the same kind, date
+ * and customer, so a period is recomputed by appending its events again. As in
+ * {@link SendJournal}, a line torn by a crash is dropped when the ledger is next opened.
+ *
+ * <p>Events are kept sorted by date, with a snapshot of every balance taken at the end of a date
+ * whenever {@link #SNAPSHOT_INTERVAL} events have passed since the last one. A balance is the
+ * latest snapshot on or before the date, found in a {@link TreeMap}, plus the events since it, so
+ * it costs a logarithmic search and a scan of at most one interval and one date's events.
+ */
+class BalanceLedger implements Closeable {
+  private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+  @VisibleForTesting
+  static final int SNAPSHOT_INTERVAL = 256;
+
+  /** What changed a balance. */
+  enum Kind {
+    /** Dues charged for attendance in a period, as a negative amount. */
+    CHARGE,
+    /** Dues paid in a period. */
+    PAYMENT,
+    /**
+     * An adjustment carried into the next period, such as the rounding of a balance to whole
+     * multiples of the member's rate, or a balance imported from before the ledger began.
+     */
+    CARRYOVER
+  }
+
+  /** Where the ledger is appended to, or null if it is not persisted. */
+  private final FileChannel channel;
+  /** The latest event of each kind, date and customer. */
+  private final Map<EventKey, Event> events = new HashMap<>();
+
+  // Indexes over the events, rebuilt after appending.
+  private boolean stale = true;
+  private final Map<String, Integer> customerIndex = new HashMap<>();
+  private long[] epochDays = new long[0];
+  private int[] customers = new int[0];
+  private int[] cents = new int[0];
+  private final TreeMap<LocalDate, Snapshot> snapshots = new TreeMap<>();
+
+  private BalanceLedger(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /** Creates a ledger that is not persisted, so every run starts without history. */
+  static BalanceLedger inMemory() {
+    return new BalanceLedger(null);
+  }
+
+  /** Opens the ledger at {@code path}, creating it if there is no file yet. */
+  static BalanceLedger open(Path path) throws IOException {
+    return AppendOnlyFiles.open(path, BalanceLedger::new, (ledger, line) -> {
+      List<String> fields = TAB_SPLITTER.splitToList(line);
+      ledger.put(Event.create(Kind.valueOf(fields.get(0)),
+          LocalDate.parse(fields.get(1)),
+          fields.get(2),
+          Integer.parseInt(fields.get(3))));
+    });
+  }
+
+  /** Date of the earliest event, or null if there are none. */
+  synchronized LocalDate firstDate() {
+    reindex();
+    return epochDays.length == 0 ? null : LocalDate.ofEpochDay(epochDays[0]);
+  }
+
+  /** Number of events, counting only the latest of each kind, date and customer. */
+  synchronized int size() {
+    return events.size();
+  }
+
+  /**
+   * Appends {@code newEvents}, each replacing any earlier event of its kind, date and customer,
+   * and returns once they are on disk.
+   */
+  synchronized void append(Collection<Event> newEvents) throws IOException {
+    if (channel != null) {
+      StringBuilder lines = new StringBuilder();
+      for (Event event : newEvents) {
+        lines
+            .append(event.kind())
+            .append('\t')
+            .append(event.date())
+            .append('\t')
+            .append(event.customerId())
+            .append('\t')
+            .append(event.cents())
+            .append('\n');
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+    newEvents.forEach(this::put);
+  }
+
+  /**
+   * Replaces every event on {@code date} with {@code newEvents}, appending a zero amount for each
+   * earlier event on that date that {@code newEvents} does not replace.
+   */
+  synchronized void replaceDate(LocalDate date, Collection<Event> newEvents) throws IOException {
+    Set<EventKey> replaced = new HashSet<>();
+    for (Event event : newEvents) {
+      Preconditions.checkArgument(event.date().equals(date), "Event is not on %s", date);
+      replaced.add(event.key());
+    }
+    List<Event> appended = new ArrayList<>(newEvents);
+    for (Event event : events.values()) {
+      if (event.date().equals(date) && !replaced.contains(event.key()) && event.cents() != 0) {
+        appended.add(Event.create(event.kind(), date, event.customerId(), 0));
+      }
+    }
+    append(appended);
+  }
+
+  /** Returns the customer's balance in cents at the end of {@code date}. */
+  synchronized int balance(String customerId, LocalDate date) {
+    reindex();
+    Integer customer = customerIndex.get(customerId);
+    if (customer == null) {
+      return 0;
+    }
+    Map.Entry<LocalDate, Snapshot> snapshot = snapshots.floorEntry(date);
+    int balance = 0;
+    int from = 0;
+    if (snapshot != null) {
+      from = snapshot.getValue().nextEvent;
+      int[] balances = snapshot.getValue().balances;
+      balance = customer < balances.length ? balances[customer] : 0;
+    }
+    int to = upperBound(date.toEpochDay());
+    for (int event = from; event < to; ++event) {
+      if (customers[event] == customer) {
+        balance = Math.addExact(balance, cents[event]);
+      }
+    }
+    return balance;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  private void put(Event event) {
+    events.put(event.key(), event);
+    stale = true;
+  }
+
+  /** Index of the first event after {@code epochDay}. */
+  private int upperBound(long epochDay) {
+    int low = 0;
+    int high = epochDays.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (epochDays[middle] <= epochDay) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /** Sorts the events by date and takes snapshots, if events were added since last time. */
+  private void reindex() {
+    if (!stale) {
+      return;
+    }
+    List<Event> sorted = new ArrayList<>(events.values());
+    sorted.sort(Comparator.comparing(Event::date));
+    customerIndex.clear();
+    snapshots.clear();
+    epochDays = new long[sorted.size()];
+    customers = new int[sorted.size()];
+    cents = new int[sorted.size()];
+    int[] balances = new int[16];
+    int sinceSnapshot = 0;
+    for (int i = 0; i < sorted.size(); ++i) {
+      Event event = sorted.get(i);
+      Integer customer = customerIndex.get(event.customerId());
+      if (customer == null) {
+        customer = customerIndex.size();
+        customerIndex.put(event.customerId(), customer);
+        if (customer == balances.length) {
+          balances = Arrays.copyOf(balances, customer * 2);
+        }
+      }
+      epochDays[i] = event.date().toEpochDay();
+      customers[i] = customer;
+      cents[i] = event.cents();
+      balances[customer] = Math.addExact(balances[customer], event.cents());
+      boolean endOfDate = i + 1 == sorted.size() || !sorted.get(i + 1).date().equals(event.date());
+      if (++sinceSnapshot >= SNAPSHOT_INTERVAL && endOfDate) {
+        snapshots.put(event.date(),
+            new Snapshot(i + 1, Arrays.copyOf(balances, customerIndex.size())));
+        sinceSnapshot = 0;
+      }
+    }
+    stale = false;
+  }
+
+  /** Every balance after the events before {@link #nextEvent}. */
+  private static final class Snapshot {
+    private final int nextEvent;
+    private final int[] balances;
+
+    private Snapshot(int nextEvent, int[] balances) {
+      this.nextEvent = nextEvent;
+      this.balances = balances;
+    }
+  }
+
+  /** A change to a customer's balance on a date. */
+  @AutoValue
+  abstract static class Event {
+    static Event create(Kind kind, LocalDate date, String customerId, int cents) {
+      Preconditions.checkArgument(CharMatcher.anyOf("\t\n").matchesNoneOf(customerId),
+          "Ledger events may not contain tabs or newlines");
+      return new lu.zhe.kyudo.AutoValue_BalanceLedger_Event(kind, date, customerId, cents);
+    }
+
+    abstract Kind kind();
+
+    abstract LocalDate date();
+
+    abstract String customerId();
+
+    /** Amount added to the balance, negative for charges. */
+    abstract int cents();
+
+    private EventKey key() {
+      return new lu.zhe.kyudo.AutoValue_BalanceLedger_EventKey(kind(), date(), customerId());
+    }
+  }
+
+  /** What an event replaces earlier events by. */
+  @AutoValue
+  abstract static class EventKey {
+    abstract Kind kind();
+
+    abstract LocalDate date();
+
+    abstract String customerId();
+  }
+}
@@ -1,67 +1,301 @@
 package lu.zhe.kyudo;
 
 import com.google.api.client.auth.oauth2.*;
-import com.google.api.client.googleapis.javanet.*;
+import com.google.api.client.googleapis.batch.*;
+import com.google.api.client.googleapis.batch.json.*;
+import com.google.api.client.googleapis.json.*;
+import com.google.api.client.http.*;
 import com.google.api.client.json.jackson2.*;
 import com.google.api.client.util.Base64;
 import com.google.api.services.gmail.*;
 import com.google.api.services.gmail.model.Message;
-import com.google.api.services.gmail.model.*;
 import com.google.common.annotations.*;
+import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
 
 import javax.mail.*;
 import javax.mail.internet.*;
 import java.io.*;
-import java.security.*;
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** Client for sending emails. */
 public class GmailClient {
+  /**
+   * Largest number of calls to put in a single batch request. Gmail accepts 100, but advises 50
+   * or fewer, as larger batches are likely to be rate limited.
+   */
+  private static final int MAX_BATCH_SIZE = 50;
+  /** Quota units charged by Gmail for each {@code messages.send} call. */
+  private static final int SEND_QUOTA_UNITS = 100;
+  /** Times an email is resent after Gmail rejects it for exceeding a rate limit. */
+  private static final int MAX_RATE_LIMIT_RETRIES = 5;
+  private static final Duration BASE_RETRY_DELAY = Duration.ofSeconds(1);
+  private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(32);
+  /** Reasons Gmail gives for rejecting a call it did not act on because of a rate limit. */
+  private static final ImmutableSet<String> RATE_LIMIT_REASONS =
+      ImmutableSet.of("rateLimitExceeded", "userRateLimitExceeded");
+
   private final Gmail client;
   private final String user;
+  private final RateLimiter quota;
+  private final Metrics metrics;
 
   @VisibleForTesting
-  GmailClient(Gmail client, String user) {
+  GmailClient(Gmail client, String user, RateLimiter quota) {
+    this(client, user, quota, new Metrics());
+  }
+
+  @VisibleForTesting
+  GmailClient(Gmail client, String user, RateLimiter quota, Metrics metrics) {
     this.client = client;
     this.user = user;
+    this.quota = quota;
+    this.metrics = metrics;
   }
 
+  /**
+   * Creates a client that spends at most {@code quotaUnitsPerSecond} of the user's Gmail quota
+   * per second.
+   */
   public static GmailClient create(
-      Credential credential, String user) throws GeneralSecurityException, IOException {
-    Gmail gmailService = new Gmail.Builder(GoogleNetHttpTransport.newTrustedTransport(),
+      GoogleHttp http, Credential credential, String user, double quotaUnitsPerSecond) {
+    return create(http, credential, user, quotaUnitsPerSecond, new Metrics());
+  }
+
+  /**
+   * Creates a client as above that also records each call of a batch that fails in
+   * {@code metrics}.
+   */
+  static GmailClient create(
+      GoogleHttp http, Credential credential, String user, double quotaUnitsPerSecond,
+      Metrics metrics) {
+    Gmail gmailService = new Gmail.Builder(http.transport(),
         JacksonFactory.getDefaultInstance(),
-        credential).setApplicationName(KyudoInvoices.APP_NAME).build();
-    return new GmailClient(gmailService, user);
+        http.initializer(credential)).setApplicationName(KyudoInvoices.APP_NAME).build();
+    return new GmailClient(gmailService, user, RateLimiter.create(quotaUnitsPerSecond), metrics);
   }
 
-  public void sendEmail(Invoices.InvoiceEmail email) {
-    try {
-      Properties properties = new Properties();
-      Session session = Session.getDefaultInstance(properties, null);
+  private Message createMessage(
+      Invoices.InvoiceEmail email) throws MessagingException, IOException {
+    Properties properties = new Properties();
+    Session session = Session.getDefaultInstance(properties, null);
+
+    MimeMessage mimeMessage = new MimeMessage(session);
+
+    mimeMessage.setFrom(new InternetAddress(user, "Byakko Kyudojo Treasurer | 白虎弓道場会計"));
+    mimeMessage.addRecipient(MimeMessage.RecipientType.TO, new InternetAddress(email.emailTo()));
+    mimeMessage.setSubject("Byakko Kyudojo membership dues - Invoice");
+    mimeMessage.setText(email.emailText());
 
-      MimeMessage mimeMessage = new MimeMessage(session);
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    mimeMessage.writeTo(buffer);
+    byte[] bytes = buffer.toByteArray();
+    String encodedEmail = Base64.encodeBase64URLSafeString(bytes);
+    Message message = new Message();
+    message.setRaw(encodedEmail);
+    return message;
+  }
 
-      mimeMessage.setFrom(new InternetAddress(user, "Byakko Kyudojo Treasurer | 白虎弓道場会計"));
-      mimeMessage.addRecipient(MimeMessage.RecipientType.TO, new InternetAddress(email.emailTo()));
-      mimeMessage.setSubject("Byakko Kyudojo membership dues - Invoice");
-      mimeMessage.setText(email.emailText());
+  /** Names the reason a call failed, e.g. {@code rateLimitExceeded}. */
+  private static String errorCategory(GoogleJsonError error) {
+    if (error.getErrors() != null && !error.getErrors().isEmpty() &&
+        error.getErrors().get(0).getReason() != null) {
+      return error.getErrors().get(0).getReason();
+    }
+    return "HTTP_" + error.getCode();
+  }
+
+  /** Returns whether Gmail rejected the call for a rate limit, so it was not sent. */
+  private static boolean isRateLimited(GoogleJsonError error) {
+    return error.getCode() == 429 || RATE_LIMIT_REASONS.contains(errorCategory(error));
+  }
 
-      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-      mimeMessage.writeTo(buffer);
-      byte[] bytes = buffer.toByteArray();
-      String encodedEmail = Base64.encodeBase64URLSafeString(bytes);
-      com.google.api.services.gmail.model.Message message = new Message();
-      message.setRaw(encodedEmail);
+  /**
+   * Returns how long to wait before resending rate limited calls: the longest
+   * {@code Retry-After} the responses asked for, or else a jittered exponential backoff.
+   */
+  private static Duration retryDelay(int attempt, List<String> retryAfters) {
+    long seconds = -1;
+    for (String retryAfter : retryAfters) {
+      try {
+        seconds = Math.max(seconds, Long.parseLong(retryAfter.trim()));
+      } catch (NumberFormatException e) {
+        // An HTTP date, which Gmail does not send; fall back to backing off.
+      }
+    }
+    if (seconds >= 0) {
+      return Duration.ofSeconds(seconds);
+    }
+    long maxMillis = Math.min(MAX_RETRY_DELAY.toMillis(), BASE_RETRY_DELAY.toMillis() << attempt);
+    return Duration.ofMillis(maxMillis / 2 + ThreadLocalRandom.current().nextLong(maxMillis / 2));
+  }
 
-      Draft draft = new Draft();
-      draft.setMessage(message);
-      draft = client.users().drafts().create(user, draft).execute();
+  /** Returns how many calls to batch together: about a second's worth of quota. */
+  private int batchSize() {
+    return (int) Math.max(1, Math.min(MAX_BATCH_SIZE, quota.getRate() / SEND_QUOTA_UNITS));
+  }
 
-      client.users().drafts().send(user, draft).execute();
+  private static String customerId(Invoices.InvoiceEmail email) {
+    return email.member().customer().getId();
+  }
+
+  private static void reportFailure(Invoices.InvoiceEmail email) {
+    System.err.println(
+        "May have failed sending email to: " + email.emailTo() + "\n" + email.emailText() +
+            "\n\n");
+  }
+
+  public void sendEmail(Invoices.InvoiceEmail email) {
+    try {
+      Message message = createMessage(email);
+      quota.acquire(SEND_QUOTA_UNITS);
+      client.users().messages().send(user, message).execute();
     } catch (Exception e) {
-      System.err.println(
-          "May have failed sending email to: " + email.emailTo() + "\n" + email.emailText() +
-              "\n\n");
+      reportFailure(email);
+    }
+  }
+
+  /**
+   * Sends emails through {@code messages.send}, grouping about a second's worth of quota, and at
+   * most {@value #MAX_BATCH_SIZE} calls, into each batch request.
+   *
+   * <p>Quota is acquired before each call is queued, so calls are spread over time rather than
+   * sent in a burst that is paid for afterwards. Calls Gmail rejects for a rate limit were not
+   * acted on, so they are resent after a backoff, up to {@value #MAX_RATE_LIMIT_RETRIES} times.
+   *
+   * @return the emails that may not have been sent
+   */
+  public ImmutableList<Invoices.InvoiceEmail> sendEmails(List<Invoices.InvoiceEmail> emails) {
+    try {
+      return sendEmails(emails, SendJournal.inMemory(LocalDate.MIN));
+    } catch (IOException e) {
+      // Recording to an in-memory journal cannot fail.
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Sends the emails whose members {@code journal} has no record of, recording each email in
+   * {@code journal} as soon as Gmail confirms it was sent.
+   *
+   * @return the emails that may not have been sent
+   * @throws IOException if an email was sent but could not be recorded
+   */
+  ImmutableList<Invoices.InvoiceEmail> sendEmails(
+      List<Invoices.InvoiceEmail> emails, SendJournal journal) throws IOException {
+    List<Invoices.InvoiceEmail> unsent = emails
+        .stream()
+        .filter(email -> !journal.contains(SendJournal.Kind.EMAIL, customerId(email)))
+        .collect(ImmutableList.toImmutableList());
+    ImmutableList.Builder<Invoices.InvoiceEmail> failed = ImmutableList.builder();
+    List<Invoices.InvoiceEmail> toSend = unsent;
+    for (int attempt = 0; !toSend.isEmpty(); ++attempt) {
+      List<Invoices.InvoiceEmail> rateLimited = new ArrayList<>();
+      List<String> retryAfters = new ArrayList<>();
+      for (List<Invoices.InvoiceEmail> chunk : Lists.partition(toSend, batchSize())) {
+        sendBatch(chunk, journal, failed, rateLimited, retryAfters);
+      }
+      if (rateLimited.isEmpty()) {
+        break;
+      }
+      if (attempt >= MAX_RATE_LIMIT_RETRIES) {
+        rateLimited.forEach(email -> {
+          reportFailure(email);
+          failed.add(email);
+        });
+        break;
+      }
+      metrics.endpoint("gmail.messages.send").retry();
+      try {
+        Thread.sleep(retryDelay(attempt, retryAfters).toMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while backing off from Gmail rate limits");
+      }
+      toSend = rateLimited;
+    }
+    return failed.build();
+  }
+
+  /**
+   * Sends {@code emails} in one batch request, adding those that failed to {@code failed}, and
+   * those rejected for a rate limit to {@code rateLimited} along with any {@code Retry-After}.
+   */
+  private void sendBatch(
+      List<Invoices.InvoiceEmail> emails, SendJournal journal,
+      ImmutableList.Builder<Invoices.InvoiceEmail> failed,
+      List<Invoices.InvoiceEmail> rateLimited, List<String> retryAfters) throws IOException {
+    BatchRequest batch = client.batch();
+    // Emails queued in this batch that have not been reported sent or failed yet.
+    Set<Invoices.InvoiceEmail> pending = new LinkedHashSet<>();
+    for (Invoices.InvoiceEmail email : emails) {
+      try {
+        Message message = createMessage(email);
+        quota.acquire(SEND_QUOTA_UNITS);
+        client
+            .users()
+            .messages()
+            .send(user, message)
+            .queue(batch, new JsonBatchCallback<Message>() {
+              @Override
+              public void onSuccess(Message message, HttpHeaders responseHeaders) {
+                pending.remove(email);
+                try {
+                  journal.record(SendJournal.Kind.EMAIL, customerId(email));
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                pending.remove(email);
+                metrics.endpoint("gmail.messages.send").error(errorCategory(error));
+                if (isRateLimited(error)) {
+                  rateLimited.add(email);
+                  if (responseHeaders.getRetryAfter() != null) {
+                    retryAfters.add(responseHeaders.getRetryAfter());
+                  }
+                  return;
+                }
+                System.err.println(error.getCode() + " " + error.getMessage());
+                reportFailure(email);
+                failed.add(email);
+              }
+            });
+        pending.add(email);
+      } catch (MessagingException | IOException e) {
+        reportFailure(email);
+        failed.add(email);
+      }
+    }
+    if (batch.size() == 0) {
+      return;
+    }
+    try {
+      batch.execute();
+    } catch (UncheckedIOException e) {
+      // The journal failed after Gmail sent the email it was recording.
+      throw e.getCause();
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() == 429) {
+        // The whole batch was rejected, so none of its calls were acted on.
+        rateLimited.addAll(pending);
+        if (e.getHeaders().getRetryAfter() != null) {
+          retryAfters.add(e.getHeaders().getRetryAfter());
+        }
+        pending.clear();
+      } else {
+        System.err.println("Batch request failed: " + e.getMessage());
+      }
+    } catch (IOException e) {
+      System.err.println("Batch request failed: " + e.getMessage());
     }
+    pending.forEach(email -> {
+      reportFailure(email);
+      failed.add(email);
+    });
   }
 }
@@ -0,0 +1,102 @@
+package lu.zhe.kyudo;
+
+import com.google.api.client.auth.oauth2.*;
+import com.google.api.client.googleapis.*;
+import com.google.api.client.http.*;
+import com.google.api.client.http.apache.*;
+import com.google.common.annotations.*;
+import org.apache.http.conn.params.*;
+import org.apache.http.impl.client.*;
+
+import java.io.*;
+import java.security.*;
+import java.time.*;
+
+/**
+ * HTTP transport shared by the Google OAuth, Gmail and Sheets clients.
+ *
+ * <p>All clients draw from a single pool of keep-alive connections, so calls to googleapis.com
+ * reuse warm TLS connections instead of each client setting up its own.
+ */
+class GoogleHttp {
+  private final HttpTransport transport;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+
+  @VisibleForTesting
+  GoogleHttp(HttpTransport transport, int connectTimeoutMillis, int readTimeoutMillis) {
+    this.transport = transport;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /**
+   * Creates a pooled transport trusting Google's certificates that keeps up to
+   * {@code maxConnections} connections open, recording every call in {@code metrics}.
+   */
+  @SuppressWarnings("deprecation")
+  static GoogleHttp create(
+      int maxConnections, Duration connectTimeout, Duration readTimeout,
+      Metrics metrics) throws GeneralSecurityException, IOException {
+    ApacheHttpTransport.Builder builder =
+        new ApacheHttpTransport.Builder().trustCertificates(GoogleUtils.getCertificateTrustStore());
+    ConnManagerParams.setMaxTotalConnections(builder.getHttpParams(), maxConnections);
+    ConnManagerParams.setMaxConnectionsPerRoute(builder.getHttpParams(),
+        new ConnPerRouteBean(maxConnections));
+    ApacheHttpTransport transport = builder.build();
+    MeteredHttpClient.instrument((AbstractHttpClient) transport.getHttpClient(),
+        metrics,
+        GoogleHttp::endpoint);
+    return new GoogleHttp(transport,
+        Math.toIntExact(connectTimeout.toMillis()),
+        Math.toIntExact(readTimeout.toMillis()));
+  }
+
+  /** Names the Google API call made by a request, e.g. {@code sheets.values.get}. */
+  @VisibleForTesting
+  static String endpoint(String method, String path) {
+    if (path.startsWith("/v4/spreadsheets/")) {
+      if (path.endsWith(":batchUpdate")) {
+        return "sheets.batchUpdate";
+      } else if (path.endsWith("/values:batchGet")) {
+        return "sheets.values.batchGet";
+      } else if (path.contains("/values/")) {
+        return path.endsWith(":append") ? "sheets.values.append" :
+            method.equals("PUT") ? "sheets.values.update" : "sheets.values.get";
+      }
+      return "sheets.get";
+    } else if (path.startsWith("/gmail/v1/users/")) {
+      if (path.endsWith("/messages/send")) {
+        return "gmail.messages.send";
+      } else if (path.endsWith("/drafts")) {
+        return "gmail.drafts.create";
+      }
+      return "gmail.other";
+    } else if (path.startsWith("/batch/gmail/")) {
+      return "gmail.batch";
+    } else if (path.endsWith("/token")) {
+      return "oauth.token";
+    }
+    return "google.other";
+  }
+
+  HttpTransport transport() {
+    return transport;
+  }
+
+  /**
+   * Returns an initializer that authorizes requests with {@code credential}, which may be null
+   * for unauthenticated requests, and applies the configured timeouts.
+   */
+  HttpRequestInitializer initializer(Credential credential) {
+    return request -> {
+      if (credential != null) {
+        credential.initialize(request);
+      }
+      request.setConnectTimeout(connectTimeoutMillis);
+      request.setReadTimeout(readTimeoutMillis);
+      // Responses are decompressed by google-http-client.
+      request.getHeaders().setAcceptEncoding("gzip");
+    };
+  }
+}
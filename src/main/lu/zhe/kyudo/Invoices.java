@@ -13,9 +13,8 @@ public abstract class Invoices {
     return new lu.zhe.kyudo.AutoValue_Invoices.Builder();
   }
 
-  public abstract ImmutableListMultimap<Member, Payment> waivers();
-
-  public abstract ImmutableListMultimap<Member, Payment> owed();
+  /** Balance carried forward for each member at the end of the period. */
+  public abstract Ledger balances();
 
   public abstract ImmutableMap<Member, Integer> attendanceCount();
 
@@ -24,10 +23,10 @@ public abstract class Invoices {
   public String computeWaivers() {
     StringBuilder result = new StringBuilder();
     result.append("member,amount");
-    for (Map.Entry<Member, Collection<Payment>> entry : waivers().asMap().entrySet()) {
-      int amount = entry.getValue().stream().mapToInt(Payment::amount).sum();
+    for (Member member : balances().members()) {
+      int amount = balances().balance(member);
       if (amount > 0) {
-        result.append("\n").append(entry.getKey().name()).append(",").append(amount);
+        result.append("\n").append(member.name()).append(",").append(Ledger.formatDollars(amount));
       }
     }
     return result.toString();
@@ -36,10 +35,10 @@ public abstract class Invoices {
   public String computeOwed() {
     StringBuilder result = new StringBuilder();
     result.append("member,amount");
-    for (Map.Entry<Member, Collection<Payment>> entry : owed().asMap().entrySet()) {
-      int amount = entry.getValue().stream().mapToInt(Payment::amount).sum();
+    for (Member member : balances().members()) {
+      int amount = -balances().balance(member);
       if (amount > 0) {
-        result.append("\n").append(entry.getKey().name()).append(",").append(amount);
+        result.append("\n").append(member.name()).append(",").append(Ledger.formatDollars(amount));
       }
     }
     return result.toString();
@@ -47,35 +46,26 @@ public abstract class Invoices {
 
   @AutoValue.Builder
   public static abstract class Builder {
-    protected abstract ImmutableListMultimap.Builder<Member, Payment> waiversBuilder();
-
-    protected abstract ImmutableListMultimap.Builder<Member, Payment> owedBuilder();
+    protected abstract Ledger.Builder balancesBuilder();
 
     protected abstract ImmutableMap.Builder<Member, Integer> attendanceCountBuilder();
 
     protected abstract ImmutableMap.Builder<Member, Integer> paymentsBuilder();
 
+    /**
+     * Computes the member's balance at the end of the period.
+     *
+     * @param paymentCents total paid during the period
+     * @param startingBalanceCents balance carried over from the previous period, negative if owed
+     */
     public void processMember(
-        Member member, int attendanceCount, List<Payment> payments, List<Payment> waivers,
-        List<Payment> owed) {
-      int waiverAmount = waivers.stream().mapToInt(Payment::amount).sum() +
-          payments.stream().mapToInt(Payment::amount).sum();
-      int owedAmount =
-          owed.stream().mapToInt(Payment::amount).sum() + attendanceCount * member.type().value();
-      List<Payment> newWaivers = new ArrayList<>();
-      List<Payment> newOwed = new ArrayList<>();
-      if (waiverAmount > owedAmount) {
-        newWaivers.addAll(Collections.nCopies((waiverAmount - owedAmount) / member.type().value(),
-            Payment.create(member, Payment.PaymentType.DUES)));
-      } else if (waiverAmount < owedAmount) {
-        newOwed.addAll(Collections.nCopies((owedAmount - waiverAmount) / member.type().value(),
-            Payment.create(member, Payment.PaymentType.DUES)));
-      }
-
-      waiversBuilder().putAll(member, newWaivers);
-      owedBuilder().putAll(member, newOwed);
+        Member member, int attendanceCount, int paymentCents, int startingBalanceCents) {
+      int rateCents = Ledger.toCents(member.type().value());
+      int balance = startingBalanceCents + paymentCents - attendanceCount * rateCents;
+      // Balances are carried over in whole multiples of the member's rate.
+      balancesBuilder().add(member, balance / rateCents * rateCents);
       attendanceCountBuilder().put(member, attendanceCount);
-      paymentsBuilder().put(member, payments.stream().mapToInt(Payment::amount).sum());
+      paymentsBuilder().put(member, paymentCents / Ledger.CENTS_PER_DOLLAR);
     }
 
     public abstract Invoices build();
@@ -10,9 +10,44 @@ public class KyudoInvoiceOptions extends OptionsBase {
       defaultValue = "")
   public String attendanceSheetsId;
 
+  @Option(name = "attendance_cache",
+      help = "File for caching downloaded attendance rows between runs, or empty string to " +
+          "download the whole attendance sheet every run", defaultValue = "")
+  public String attendanceCache;
+
+  @Option(name = "order_ledger",
+      help = "File for keeping payments decoded from downloaded Square orders between runs, so " +
+          "that only orders closed since the last run are downloaded, or empty string to " +
+          "download the whole billing period every run", defaultValue = "")
+  public String orderLedger;
+
+  @Option(name = "send_journal",
+      help = "File recording the emails and invoices already sent, so that an interrupted send " +
+          "can be rerun without repeating them, or empty string to keep no record",
+      defaultValue = "")
+  public String sendJournal;
+
+  @Option(name = "balance_ledger",
+      help = "File recording every member's charges, payments and carryovers, from which " +
+          "starting balances are read instead of the previous period's invoice tab, or empty " +
+          "string to read them from the invoice tab every run", defaultValue = "")
+  public String balanceLedger;
+
+  @Option(name = "snapshot_file",
+      help = "File to which fill writes the attendance and payments it computed invoices from, " +
+          "and from which replay recomputes them at the current rates without any API calls, " +
+          "or empty string to write none",
+      defaultValue = "")
+  public String snapshotFile;
+
   @Option(name = "invoiceSheetsId", help = "Google Sheets Id for invoice file", defaultValue = "")
   public String invoiceSheetsId;
 
+  @Option(name = "invoice_formulas",
+      help = "Whether to write each invoice row's charges and ending amount as formulas over the " +
+          "row instead of as computed numbers", defaultValue = "false")
+  public boolean invoiceFormulas;
+
   @Option(name = "startDate",
       help = "Start date in ISO8601 format, or empty string to start at the beginning of the " +
           "month two months prior to the current month", defaultValue = "1900-01-01",
@@ -25,12 +60,65 @@ public class KyudoInvoiceOptions extends OptionsBase {
   @Option(name = "oauth_client_secret", help = "Oath2 client secret", defaultValue = "")
   public String oauthClientSecret;
 
+  @Option(name = "credential_dir",
+      help = "Directory in which the Google OAuth credential is stored once authorized, so later " +
+          "runs refresh it instead of asking again; required by the fill, print and send " +
+          "commands, which cannot ask. Empty string to authorize in a browser every run",
+      defaultValue = "")
+  public String credentialDir;
+
   @Option(name = "square_access_token", help = "Square API's access token", defaultValue = "")
   public String squareAccessToken;
 
   @Option(name = "square_location_id", help = "Location id for the store", defaultValue = "")
   public String locationId;
 
+  @Option(name = "gmail_quota_units_per_second",
+      help = "Gmail quota units to spend per second; each message sent costs 100",
+      defaultValue = "250")
+  public double gmailQuotaUnitsPerSecond;
+
+  @Option(name = "http_max_connections",
+      help = "Maximum number of pooled connections to Google APIs", defaultValue = "20")
+  public int httpMaxConnections;
+
+  @Option(name = "http_connect_timeout_seconds",
+      help = "Connect timeout for Google API requests, or 0 for none", defaultValue = "20")
+  public int httpConnectTimeoutSeconds;
+
+  @Option(name = "http_read_timeout_seconds",
+      help = "Read timeout for Google API requests, or 0 for none", defaultValue = "60")
+  public int httpReadTimeoutSeconds;
+
+  @Option(name = "square_max_concurrent_requests",
+      help = "Maximum number of Square API requests in flight at once", defaultValue = "8")
+  public int squareMaxConcurrentRequests;
+
+  @Option(name = "square_max_retries",
+      help = "Times to resend a throttled or transiently failed Square API call",
+      defaultValue = "5")
+  public int squareMaxRetries;
+
+  @Option(name = "square_cache_dir",
+      help = "Directory for keeping Square customer groups and customers between runs, or empty " +
+          "string to fetch them once per run. Customers' names and email addresses are kept in " +
+          "plain text, readable only by the owner where the file system has POSIX permissions",
+      defaultValue = "")
+  public String squareCacheDir;
+
+  @Option(name = "square_groups_ttl_minutes",
+      help = "Minutes to reuse fetched Square customer groups for", defaultValue = "60")
+  public int squareGroupsTtlMinutes;
+
+  @Option(name = "square_customers_ttl_minutes",
+      help = "Minutes to reuse fetched Square customers for", defaultValue = "10")
+  public int squareCustomersTtlMinutes;
+
+  @Option(name = "metrics_file",
+      help = "File to write API call metrics to in the Prometheus text format, if any",
+      defaultValue = "")
+  public String metricsFile;
+
   @Option(name = "user", abbrev = 'u', help = "Login user", defaultValue = "")
   public String user;
 
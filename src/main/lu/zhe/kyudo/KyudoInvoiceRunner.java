@@ -6,17 +6,64 @@ import com.squareup.square.exceptions.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.security.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.List;
 import java.util.concurrent.atomic.*;
 
-/** Entry point for the invoice generator. */
+/**
+ * Entry point for the invoice generator.
+ *
+ * <p>With no arguments besides options, opens a window for choosing what to do. Otherwise runs
+ * the given command ({@code fill}, {@code print}, {@code send} or {@code replay}) without loading
+ * AWT, so it can be run on machines with no display. These commands use the Google credential
+ * stored in {@code --credential_dir}, which the {@code authorize} command stores once from a
+ * machine with a browser. {@code replay} recomputes the period of {@code --snapshot_file}, or the
+ * period starting at {@code --startDate} if one is given.
+ */
 public class KyudoInvoiceRunner {
-  public static void main(String[] args) throws IOException, GeneralSecurityException {
+  private static final String USAGE =
+      "Usage: KyudoInvoiceRunner [authorize|fill|print|send|replay] [options]";
+
+  public static void main(String[] args) throws IOException, ApiException {
     OptionsParser parser = OptionsParser.newOptionsParser(KyudoInvoiceOptions.class);
     parser.parseAndExitUponError(args);
     KyudoInvoiceOptions options = parser.getOptions(KyudoInvoiceOptions.class);
 
-    new Gui(options).start();
+    List<String> commands = parser.getResidue();
+    if (commands.isEmpty()) {
+      new Gui(options).start();
+      return;
+    }
+    if (commands.size() > 1) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    switch (commands.get(0)) {
+      case "authorize":
+        KyudoInvoices.create(options).authorize();
+        break;
+      case "fill":
+        KyudoInvoices.create(options, false).fillSpreadsheet();
+        break;
+      case "print":
+        KyudoInvoices.create(options, false).printEmails();
+        break;
+      case "send":
+        KyudoInvoices.create(options, false).sendEmails();
+        break;
+      case "replay":
+        if (options.snapshotFile.isEmpty()) {
+          System.err.println("No snapshot file specified\n" + USAGE);
+          System.exit(2);
+        }
+        KyudoInvoices.replay(Paths.get(options.snapshotFile),
+            options.startDate.equals(LocalDate.parse("1900-01-01")) ? null : options.startDate);
+        break;
+      default:
+        System.err.println("Unknown command: " + commands.get(0) + "\n" + USAGE);
+        System.exit(2);
+    }
   }
 
   private static class Gui extends Frame {
@@ -27,7 +74,7 @@ public class KyudoInvoiceRunner {
 
     private final KyudoInvoices invoices;
 
-    public Gui(KyudoInvoiceOptions options) throws IOException, GeneralSecurityException {
+    public Gui(KyudoInvoiceOptions options) {
       setTitle("Byakko Kyudojo Invoice Generator");
       setSize(/* width= */ 400, /* height = */300);
       setLayout(new GridLayout(10, 1));
@@ -4,17 +4,19 @@ import com.google.api.client.auth.oauth2.*;
 import com.google.api.client.extensions.java6.auth.oauth2.*;
 import com.google.api.client.extensions.jetty.auth.oauth2.*;
 import com.google.api.client.googleapis.auth.oauth2.*;
-import com.google.api.client.googleapis.javanet.*;
 import com.google.api.client.json.jackson2.*;
+import com.google.api.client.util.store.*;
 import com.google.common.annotations.*;
 import com.google.common.base.*;
 import com.google.common.collect.*;
 import com.squareup.square.exceptions.*;
 
 import java.io.*;
+import java.nio.file.*;
 import java.security.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** Generates invoices for Byakko Kyudodojo. */
 public class KyudoInvoices {
@@ -22,26 +24,58 @@ public class KyudoInvoices {
   private static final Joiner COMMA_JOINER = Joiner.on(",");
 
   private final KyudoInvoiceOptions options;
-  private final GmailClient gmailClient;
-  private final SheetsClient sheetsClient;
-  private final SquareApiClient squareClient;
+  private final Supplier<GmailClient> gmailClient;
+  private final Supplier<SheetsClient> sheetsClient;
+  private final Supplier<SquareApiClient> squareClient;
   private final LocalDate startDateInclusive;
   private final LocalDate endDateInclusive;
+  private final Metrics metrics;
 
   @VisibleForTesting
   KyudoInvoices(
       KyudoInvoiceOptions options, GmailClient gmailClient, SheetsClient sheetsClient,
-      SquareApiClient squareClient, LocalDate startDateInclusive, LocalDate endDateInclusive) {
+      SquareApiClient squareClient, LocalDate startDateInclusive, LocalDate endDateInclusive,
+      Metrics metrics) {
+    this(options,
+        Suppliers.ofInstance(gmailClient),
+        Suppliers.ofInstance(sheetsClient),
+        Suppliers.ofInstance(squareClient),
+        startDateInclusive,
+        endDateInclusive,
+        metrics);
+  }
+
+  private KyudoInvoices(
+      KyudoInvoiceOptions options, Supplier<GmailClient> gmailClient,
+      Supplier<SheetsClient> sheetsClient, Supplier<SquareApiClient> squareClient,
+      LocalDate startDateInclusive, LocalDate endDateInclusive, Metrics metrics) {
     this.options = options;
     this.gmailClient = gmailClient;
     this.sheetsClient = sheetsClient;
     this.squareClient = squareClient;
     this.startDateInclusive = startDateInclusive;
     this.endDateInclusive = endDateInclusive;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Validates {@code options} and creates the invoice generator.
+   *
+   * <p>Clients are only created, and the OAuth credential only requested, when a stage first
+   * needs them. Every remote call is recorded in metrics readable over JMX.
+   */
+  public static KyudoInvoices create(KyudoInvoiceOptions options) {
+    return create(options, true);
   }
 
-  public static KyudoInvoices create(
-      KyudoInvoiceOptions options) throws IOException, GeneralSecurityException {
+  /**
+   * Validates {@code options} and creates the invoice generator as above.
+   *
+   * @param interactive whether the user may be asked to authorize in a browser. If not, the
+   *     credential stored in {@code --credential_dir} by an earlier interactive run is used, and
+   *     this fails at once if there is none
+   */
+  public static KyudoInvoices create(KyudoInvoiceOptions options, boolean interactive) {
     if (options.oauthClientId.isEmpty()) {
       throw new IllegalArgumentException("No Google OAuth client id specified");
     }
@@ -63,29 +97,138 @@ public class KyudoInvoices {
     if (options.squareAccessToken.isEmpty()) {
       throw new IllegalArgumentException("No Square access token specified");
     }
+    if (!interactive && !hasStoredCredential(options)) {
+      throw new IllegalArgumentException("No Google credential stored for " + options.user +
+          " in --credential_dir; run once with the authorize command to store one");
+    }
+    if (options.gmailQuotaUnitsPerSecond <= 0) {
+      throw new IllegalArgumentException("Gmail quota units per second must be positive");
+    }
+    if (options.httpMaxConnections <= 0) {
+      throw new IllegalArgumentException("HTTP max connections must be positive");
+    }
+    if (options.squareMaxConcurrentRequests <= 0) {
+      throw new IllegalArgumentException("Square max concurrent requests must be positive");
+    }
+    if (options.squareMaxRetries < 0) {
+      throw new IllegalArgumentException("Square max retries must not be negative");
+    }
+    if (options.squareGroupsTtlMinutes < 0 || options.squareCustomersTtlMinutes < 0) {
+      throw new IllegalArgumentException("Square cache times to live must not be negative");
+    }
     LocalDate startDate =
         options.startDate.equals(LocalDate.parse("1900-01-01")) ? getStartDate() : options.startDate;
     LocalDate endDate = getEndDateInclusive(startDate);
 
-    Credential credential = createCredential(options);
+    Metrics metrics = new Metrics();
+    metrics.exportToJmx();
+    Supplier<GoogleHttp> http = lazily(() -> GoogleHttp.create(options.httpMaxConnections,
+        Duration.ofSeconds(options.httpConnectTimeoutSeconds),
+        Duration.ofSeconds(options.httpReadTimeoutSeconds),
+        metrics));
+    Supplier<Credential> credential =
+        lazily(() -> createCredential(http.get(), options, interactive));
     return new KyudoInvoices(options,
-        GmailClient.create(credential, options.user),
-        SheetsClient.create(credential),
-        SquareApiClient.create(options.squareAccessToken),
+        lazily(() -> GmailClient.create(http.get(),
+            credential.get(),
+            options.user,
+            options.gmailQuotaUnitsPerSecond,
+            metrics)),
+        lazily(() -> SheetsClient.create(http.get(), credential.get())),
+        lazily(() -> SquareApiClient.create(options.squareAccessToken,
+            options.squareMaxConcurrentRequests,
+            options.squareMaxRetries,
+            metrics,
+            SquareCache.create(options.squareCacheDir.isEmpty() ?
+                    null :
+                    Paths.get(options.squareCacheDir),
+                Duration.ofMinutes(options.squareGroupsTtlMinutes),
+                Duration.ofMinutes(options.squareCustomersTtlMinutes)))),
         startDate,
-        endDate);
+        endDate,
+        metrics);
+  }
+
+  /** Returns a thread-safe supplier that creates its value on first use. */
+  private static <T> Supplier<T> lazily(ClientFactory<T> factory) {
+    return Suppliers.memoize(() -> {
+      try {
+        return factory.create();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (GeneralSecurityException e) {
+        throw new UncheckedIOException(new IOException(e));
+      }
+    });
+  }
+
+  /** Gets a client, rethrowing the exception it could not be created with. */
+  private static <T> T client(Supplier<T> supplier) throws IOException {
+    try {
+      return supplier.get();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
   }
 
+  /**
+   * Authorizes with Google in a browser, unless a credential is already stored, and stores the
+   * credential in {@code --credential_dir} for headless runs.
+   */
+  public void authorize() throws IOException {
+    if (options.credentialDir.isEmpty()) {
+      throw new IllegalArgumentException("No credential directory specified");
+    }
+    // Creating a Google client requests the credential.
+    client(sheetsClient);
+  }
+
+  /** Returns whether {@code --credential_dir} holds a credential for the user. */
+  private static boolean hasStoredCredential(KyudoInvoiceOptions options) {
+    if (options.credentialDir.isEmpty()) {
+      return false;
+    }
+    try {
+      return StoredCredential
+          .getDefaultDataStore(new FileDataStoreFactory(new File(options.credentialDir)))
+          .containsKey(options.user);
+    } catch (IOException e) {
+      System.err.println("Could not read " + options.credentialDir + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Returns the user's credential, stored in {@code --credential_dir} if it is set. Offline
+   * access is requested so a stored credential carries a refresh token and never expires.
+   *
+   * <p>Unless {@code interactive}, only a stored credential is used: the installed app flow waits
+   * for a person to log in through a browser, and opening the browser loads AWT.
+   */
   private static Credential createCredential(
-      KyudoInvoiceOptions options) throws IOException, GeneralSecurityException {
-    GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-        GoogleNetHttpTransport.newTrustedTransport(),
+      GoogleHttp http, KyudoInvoiceOptions options, boolean interactive) throws IOException {
+    GoogleAuthorizationCodeFlow.Builder flowBuilder = new GoogleAuthorizationCodeFlow.Builder(
+        http.transport(),
         JacksonFactory.getDefaultInstance(),
         options.oauthClientId,
         options.oauthClientSecret,
         ImmutableList.of("https://www.googleapis.com/auth/gmail.compose",
             "https://www.googleapis.com/auth/gmail.send",
-            "https://www.googleapis.com/auth/spreadsheets")).build();
+            "https://www.googleapis.com/auth/spreadsheets"))
+        .setAccessType("offline")
+        .setRequestInitializer(http.initializer(null));
+    if (!options.credentialDir.isEmpty()) {
+      flowBuilder.setDataStoreFactory(new FileDataStoreFactory(new File(options.credentialDir)));
+    }
+    GoogleAuthorizationCodeFlow flow = flowBuilder.build();
+    if (!interactive) {
+      Credential credential = flow.loadCredential(options.user);
+      if (credential == null) {
+        throw new IOException("No Google credential stored for " + options.user + " in " +
+            options.credentialDir);
+      }
+      return credential;
+    }
     return new AuthorizationCodeInstalledApp(flow,
         new LocalServerReceiver()).authorize(options.user);
   }
@@ -99,78 +242,320 @@ public class KyudoInvoices {
     return startDate.plusMonths(2).minusDays(1);
   }
 
+  /**
+   * Computes invoices for the billing period and writes them to a new tab of the invoice sheet.
+   *
+   * <p>Accounts, payments and attendance only depend on the member database, so they are fetched
+   * concurrently once it has been read.
+   *
+   * <p>Starting balances are read from the balance ledger, and the period's charges, payments and
+   * carryovers are recorded in it before the tab is written, so the tab only renders the ledger.
+   */
   public void fillSpreadsheet() throws IOException, ApiException {
-    MemberDatabase memberDatabase = squareClient.getMembers();
+    try (Stages stages = Stages.create(3, metrics);
+        BalanceLedger ledger = options.balanceLedger.isEmpty() ?
+            BalanceLedger.inMemory() :
+            BalanceLedger.open(Paths.get(options.balanceLedger))) {
+      MemberDatabase memberDatabase =
+          stages.run("getMembers", () -> client(squareClient).getMembers());
 
-    SheetsClient.Accounts accounts =
-        sheetsClient.readAccounts(memberDatabase, options.invoiceSheetsId, endDateInclusive);
+      CompletableFuture<SheetsClient.Accounts> accountsFuture =
+          stages.start("readAccounts", () -> readAccounts(memberDatabase, ledger));
+      // A snapshot keeps the decoded rows the totals are computed from, so they are kept in
+      // memory even when they are not persisted.
+      OrderLedger orderLedger = !options.orderLedger.isEmpty() ?
+          OrderLedger.load(Paths.get(options.orderLedger), options.locationId) :
+          options.snapshotFile.isEmpty() ? null : OrderLedger.inMemory();
+      AttendanceCache attendanceCache = options.attendanceCache.isEmpty() ?
+          AttendanceCache.inMemory() :
+          AttendanceCache.load(Paths.get(options.attendanceCache), options.attendanceSheetsId);
+      CompletableFuture<MemberVector> paymentsFuture =
+          stages.start("getPayments", () -> readPayments(memberDatabase, orderLedger));
+      CompletableFuture<MemberVector> attendanceFuture = stages.start("readAttendanceSheet",
+          () -> readAttendance(memberDatabase, attendanceCache));
 
-    Invoices invoices = generateInvoices(memberDatabase, accounts);
+      SheetsClient.Accounts accounts = Stages.join(accountsFuture);
+      MemberVector payments = Stages.join(paymentsFuture);
+      MemberVector attendance = Stages.join(attendanceFuture);
+      MemberVector startingBalances = memberDatabase.newVector().add(accounts.balances());
 
-    sheetsClient.writeInvoices(options.invoiceSheetsId, invoices, accounts, startDateInclusive);
+      if (!options.snapshotFile.isEmpty()) {
+        stages.run("writeSnapshot", () -> {
+          RunSnapshot
+              .create(startDateInclusive,
+                  endDateInclusive,
+                  startingBalances,
+                  AttendanceParser.create(memberDatabase).decode(attendanceCache),
+                  orderLedger)
+              .write(Paths.get(options.snapshotFile));
+          return null;
+        });
+      }
 
-    System.out.println("===================================================================");
-    System.out.println("WAIVERS:");
-    System.out.println(invoices.computeWaivers());
-    System.out.println("OWED:");
-    System.out.println(invoices.computeOwed());
+      Invoices invoices = stages.run("processMembers",
+          () -> generateInvoices(startingBalances, payments, attendance));
+      stages.run("recordBalances", () -> {
+        recordBalances(ledger, accounts, payments, attendance, invoices);
+        return null;
+      });
+
+      stages.run("writeInvoices", () -> {
+        client(sheetsClient).writeInvoices(options.invoiceSheetsId,
+            invoices,
+            accounts,
+            startDateInclusive,
+            options.invoiceFormulas);
+        return null;
+      });
+
+      System.out.println("===================================================================");
+      System.out.println("WAIVERS:");
+      System.out.println(invoices.computeWaivers());
+      System.out.println("OWED:");
+      System.out.println(invoices.computeOwed());
+      System.out.println("TIMINGS:");
+      stages
+          .timings()
+          .forEach((name, duration) -> System.out.println(name + "," + duration.toMillis() + "ms"));
+    } finally {
+      writeMetrics();
+    }
   }
 
   public void printEmails() throws IOException, ApiException {
-    MemberDatabase memberDatabase = squareClient.getMembers();
+    try {
+      MemberDatabase memberDatabase = client(squareClient).getMembers();
 
-    List<Invoices.InvoiceEmail> emails = sheetsClient.generateEmails(options.invoiceSheetsId,
-        memberDatabase,
-        startDateInclusive,
-        endDateInclusive);
+      List<Invoices.InvoiceEmail> emails =
+          client(sheetsClient).generateEmails(options.invoiceSheetsId,
+              memberDatabase,
+              startDateInclusive,
+              endDateInclusive);
 
-    for (Invoices.InvoiceEmail email : emails) {
-      System.out.println(email);
+      for (Invoices.InvoiceEmail email : emails) {
+        System.out.println(email);
+      }
+    } finally {
+      writeMetrics();
     }
   }
 
+  /**
+   * Emails every member their dues and invoices AutoInvoice members through Square.
+   *
+   * <p>With {@code --send_journal}, each email, cancellation and invoice is recorded as soon as
+   * it is sent, and a rerun for the same period skips everything already recorded.
+   *
+   * <p>The period's invoices are published before outstanding invoices are cancelled, and are
+   * never cancelled themselves. Without a journal, a rerun replays the same idempotency keys and
+   * gets the invoices already published back, so it must not cancel them first.
+   */
   public void sendEmails() throws IOException, ApiException {
-    MemberDatabase memberDatabase = squareClient.getMembers();
+    try {
+      sendEmailsAndInvoices();
+    } finally {
+      writeMetrics();
+    }
+  }
 
-    List<Invoices.InvoiceEmail> emails = sheetsClient.generateEmails(options.invoiceSheetsId,
-        memberDatabase,
-        startDateInclusive,
-        endDateInclusive);
+  private void sendEmailsAndInvoices() throws IOException, ApiException {
+    SquareApiClient square = client(squareClient);
+    MemberDatabase memberDatabase = square.getMembers();
+
+    List<Invoices.InvoiceEmail> emails =
+        client(sheetsClient).generateEmails(options.invoiceSheetsId,
+            memberDatabase,
+            startDateInclusive,
+            endDateInclusive);
+
+    try (SendJournal journal = options.sendJournal.isEmpty() ?
+        SendJournal.inMemory(startDateInclusive) :
+        SendJournal.open(Paths.get(options.sendJournal), startDateInclusive)) {
+      if (journal.size(SendJournal.Kind.EMAIL) > 0 || journal.size(SendJournal.Kind.PUBLISH) > 0) {
+        System.out.println("Resuming: " + journal.size(SendJournal.Kind.EMAIL) +
+            " email(s) and " + journal.size(SendJournal.Kind.PUBLISH) +
+            " invoice(s) already sent");
+      }
+
+      System.out.println("Sending emails");
+      ImmutableList<Invoices.InvoiceEmail> unsent =
+          client(gmailClient).sendEmails(emails, journal);
+      if (!unsent.isEmpty()) {
+        System.err.println(unsent.size() + " email(s) may not have been sent");
+      }
 
-    System.out.println("Sending emails");
-    emails.forEach(gmailClient::sendEmail);
+      System.out.println("Sending invoices");
+      ImmutableList<SquareApiClient.InvoiceFailure> failures =
+          square.createAndSendInvoices(emails, options.locationId, journal);
+      if (!failures.isEmpty()) {
+        System.err.println("Failed to send invoices:");
+        failures.forEach(System.err::println);
+      }
+      // Skips the invoices just published, which the journal records even when it is in memory.
+      square.cancelOutstandingInvoicesForAutoInvoicedCustomers(memberDatabase,
+          options.locationId,
+          journal);
+    }
+  }
+
+  /** Writes the metrics of this run to the file named by {@code --metrics_file}, if any. */
+  private void writeMetrics() {
+    if (options.metricsFile.isEmpty()) {
+      return;
+    }
+    try {
+      metrics.writePrometheus(Paths.get(options.metricsFile));
+    } catch (IOException e) {
+      System.err.println("Could not write metrics to " + options.metricsFile + ": " +
+          e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the balances carried into the period, as recorded in {@code ledger}. If the ledger
+   * has no history before the period, they are first imported into it from the previous period's
+   * tab of the invoice sheet.
+   */
+  private SheetsClient.Accounts readAccounts(MemberDatabase memberDatabase, BalanceLedger ledger)
+      throws IOException {
+    LocalDate openingDate = startDateInclusive.minusDays(1);
+    LocalDate firstDate = ledger.firstDate();
+    if (firstDate == null || firstDate.isAfter(openingDate)) {
+      Ledger imported = client(sheetsClient)
+          .readAccounts(memberDatabase, options.invoiceSheetsId, endDateInclusive)
+          .balances();
+      ledger.append(imported
+          .members()
+          .stream()
+          .map(member -> BalanceLedger.Event.create(BalanceLedger.Kind.CARRYOVER,
+              openingDate,
+              member.customer().getId(),
+              imported.balance(member)))
+          .collect(ImmutableList.toImmutableList()));
+    }
+    SheetsClient.Accounts.Builder accounts = SheetsClient.Accounts.builder();
+    for (Member member : memberDatabase.members()) {
+      accounts
+          .balancesBuilder()
+          .add(member, ledger.balance(member.customer().getId(), openingDate));
+    }
+    return accounts.build();
+  }
 
-    System.out.println("Sending invoices");
-    squareClient.cancelOutstandingInvoicesForAutoInvoicedCustomers(memberDatabase,
-        options.locationId);
-    squareClient.createAndSendInvoices(emails, options.locationId);
+  /**
+   * Records the period's charges, payments and the rounding of each balance carried over in
+   * {@code ledger}, on the last day of the period, replacing any recorded by an earlier run.
+   */
+  private void recordBalances(
+      BalanceLedger ledger, SheetsClient.Accounts accounts, MemberVector payments,
+      MemberVector attendance, Invoices invoices) throws IOException {
+    MemberDatabase database = attendance.database();
+    List<BalanceLedger.Event> events = new ArrayList<>();
+    for (int index = 0; index < database.size(); ++index) {
+      Member member = database.members().get(index);
+      if (!invoices.attendanceCount().containsKey(member)) {
+        continue;
+      }
+      String customerId = member.customer().getId();
+      int charges = attendance.get(index) * Ledger.toCents(member.type().value());
+      int balance = accounts.balances().balance(member) + payments.get(index) - charges;
+      events.add(BalanceLedger.Event.create(BalanceLedger.Kind.CHARGE,
+          endDateInclusive,
+          customerId,
+          -charges));
+      events.add(BalanceLedger.Event.create(BalanceLedger.Kind.PAYMENT,
+          endDateInclusive,
+          customerId,
+          payments.get(index)));
+      events.add(BalanceLedger.Event.create(BalanceLedger.Kind.CARRYOVER,
+          endDateInclusive,
+          customerId,
+          invoices.balances().balance(member) - balance));
+    }
+    ledger.replaceDate(endDateInclusive, events);
   }
 
-  private Invoices generateInvoices(
-      MemberDatabase memberDatabase,
-      SheetsClient.Accounts accounts) throws IOException, ApiException {
-    ListMultimap<Member, Payment> paymentsTable = squareClient.getPayments(memberDatabase,
+  /** Reads payments, through {@code ledger} if there is one. */
+  private MemberVector readPayments(MemberDatabase memberDatabase, OrderLedger ledger)
+      throws IOException, ApiException {
+    if (ledger == null) {
+      return client(squareClient).getPaymentTotals(memberDatabase,
+          options.locationId,
+          startDateInclusive,
+          endDateInclusive,
+          page -> {});
+    }
+    return client(squareClient).getPaymentTotals(memberDatabase,
         options.locationId,
         startDateInclusive,
-        endDateInclusive);
+        endDateInclusive,
+        ledger);
+  }
 
-    Multiset<Member> attendance = sheetsClient.readAttendanceSheet(memberDatabase,
+  private MemberVector readAttendance(
+      MemberDatabase memberDatabase, AttendanceCache attendanceCache) throws IOException {
+    return client(sheetsClient).readAttendanceCounts(memberDatabase,
         options.attendanceSheetsId,
         startDateInclusive,
-        endDateInclusive);
+        endDateInclusive,
+        attendanceCache);
+  }
+
+  /**
+   * Recomputes the invoices of a run from the snapshot of its inputs at {@code snapshotFile},
+   * written by {@link #fillSpreadsheet} with {@code --snapshot_file}, without any API calls.
+   *
+   * <p>Nothing is written; the waivers and amounts owed are printed so that a change to how
+   * invoices are computed can be compared against the run.
+   */
+  public static Invoices replay(Path snapshotFile) throws IOException {
+    return replay(snapshotFile, null);
+  }
 
-    ListMultimap<Member, Payment> waivers = accounts.waivers();
-    ListMultimap<Member, Payment> owed = accounts.owed();
+  /**
+   * Recomputes invoices as above, but for the billing period starting at {@code startDate}, or
+   * the run's own period if null. Attendance and payments are counted again over that period,
+   * while starting balances remain those the run's period started with.
+   *
+   * @throws IllegalArgumentException if the snapshot does not hold every payment of the period
+   */
+  public static Invoices replay(Path snapshotFile, LocalDate startDate) throws IOException {
+    RunSnapshot snapshot = RunSnapshot.read(snapshotFile);
+    LocalDate start = startDate == null ? snapshot.startDateInclusive() : startDate;
+    LocalDate end = startDate == null ?
+        snapshot.endDateInclusive() :
+        getEndDateInclusive(startDate);
+    Invoices invoices = generateInvoices(snapshot.balances(),
+        snapshot.payments(start, end),
+        snapshot.attendance(start, end));
+    System.out.println("===================================================================");
+    System.out.println("REPLAY " + start + " to " + end);
+    System.out.println("WAIVERS:");
+    System.out.println(invoices.computeWaivers());
+    System.out.println("OWED:");
+    System.out.println(invoices.computeOwed());
+    return invoices;
+  }
 
+  /** Computes invoices for members who attended or paid, from totals by member index. */
+  private static Invoices generateInvoices(
+      MemberVector startingBalances, MemberVector payments, MemberVector attendance) {
+    MemberDatabase database = attendance.database();
     Invoices.Builder invoicesBuilder = Invoices.builder();
-    for (Member member : Sets.union(attendance.elementSet(), paymentsTable.keySet())) {
-      invoicesBuilder.processMember(member,
-          attendance.count(member),
-          paymentsTable.get(member),
-          waivers.get(member),
-          owed.get(member));
+    for (int member = 0; member < database.size(); ++member) {
+      if (attendance.get(member) > 0 || payments.get(member) != 0) {
+        invoicesBuilder.processMember(database.members().get(member),
+            attendance.get(member),
+            payments.get(member),
+            startingBalances.get(member));
+      }
     }
 
     return invoicesBuilder.build();
   }
+
+  /** Creates a client, possibly authorizing with the remote service. */
+  private interface ClientFactory<T> {
+    T create() throws IOException, GeneralSecurityException;
+  }
 }
@@ -0,0 +1,117 @@
+package lu.zhe.kyudo;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Balance of each member's account, in cents.
+ *
+ * <p>A positive balance is credit the member has banked, a negative balance is dues owed. Only
+ * members with a non-zero balance are kept.
+ */
+final class Ledger {
+  static final int CENTS_PER_DOLLAR = 100;
+
+  private final ImmutableMap<Member, Integer> slots;
+  private final int[] cents;
+
+  private Ledger(ImmutableMap<Member, Integer> slots, int[] cents) {
+    this.slots = slots;
+    this.cents = cents;
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  static int toCents(int dollars) {
+    return Math.multiplyExact(dollars, CENTS_PER_DOLLAR);
+  }
+
+  /** Formats cents as dollars, leaving off the cents when they are zero. */
+  static String formatDollars(int cents) {
+    return cents % CENTS_PER_DOLLAR == 0 ?
+        String.valueOf(cents / CENTS_PER_DOLLAR) :
+        BigDecimal.valueOf(cents, 2).toPlainString();
+  }
+
+  /** Members with a non-zero balance, in the order they were first added. */
+  ImmutableSet<Member> members() {
+    return slots.keySet();
+  }
+
+  /** The member's balance in cents, or 0 if the member has no account. */
+  int balance(Member member) {
+    Integer slot = slots.get(member);
+    return slot == null ? 0 : cents[slot];
+  }
+
+  /** The member's balance expressed as whole dues payments, for callers needing line items. */
+  ImmutableList<Payment> itemized(Member member) {
+    Payment dues = Payment.create(member, Payment.PaymentType.DUES);
+    return ImmutableList.copyOf(Collections.nCopies(Math.abs(balance(member)) /
+        toCents(dues.amount()), dues));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Ledger)) {
+      return false;
+    }
+    Ledger other = (Ledger) o;
+    return slots.keySet().equals(other.slots.keySet()) &&
+        slots.keySet().stream().allMatch(m -> balance(m) == other.balance(m));
+  }
+
+  @Override
+  public int hashCode() {
+    return slots.keySet().stream().mapToInt(m -> m.hashCode() ^ balance(m)).sum();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+        .toStringHelper(this)
+        .add("cents", Maps.transformValues(slots, slot -> cents[slot]))
+        .toString();
+  }
+
+  /** Accumulates amounts into each member's balance. */
+  static final class Builder {
+    private final Map<Member, Integer> slots = new LinkedHashMap<>();
+    private int[] cents = new int[16];
+
+    private Builder() {}
+
+    /** Adds {@code amountCents}, which may be negative, to the member's balance. */
+    Builder add(Member member, int amountCents) {
+      Integer slot = slots.get(member);
+      if (slot == null) {
+        slot = slots.size();
+        slots.put(member, slot);
+        if (slot == cents.length) {
+          cents = Arrays.copyOf(cents, slot * 2);
+        }
+      }
+      cents[slot] = Math.addExact(cents[slot], amountCents);
+      return this;
+    }
+
+    Ledger build() {
+      ImmutableMap.Builder<Member, Integer> builtSlots = ImmutableMap.builder();
+      int[] builtCents = new int[slots.size()];
+      int size = 0;
+      for (Map.Entry<Member, Integer> entry : slots.entrySet()) {
+        int balance = cents[entry.getValue()];
+        if (balance != 0) {
+          builtSlots.put(entry.getKey(), size);
+          builtCents[size++] = balance;
+        }
+      }
+      return new Ledger(builtSlots.build(), Arrays.copyOf(builtCents, size));
+    }
+  }
+}
@@ -1,7 +1,6 @@
 package lu.zhe.kyudo;
 
 import com.google.auto.value.*;
-import com.google.common.base.*;
 import com.squareup.square.models.*;
 
 import java.util.*;
@@ -14,15 +13,18 @@ import java.util.*;
 @AutoValue
 public abstract class Member {
   public static Member create(Customer customer, Map<String, String> groups) {
+    return create(customer, MemberGroups.create(groups));
+  }
+
+  static Member create(Customer customer, MemberGroups groups) {
     MemberType type = null;
     boolean autoInvoice = false;
     for (String groupId : customer.getGroupIds()) {
-      try {
-        type = MemberType.valueOf(Ascii.toUpperCase(groups.get(groupId)));
-      } catch (Exception e) {
-        if (groups.get(groupId).equals("AutoInvoice)")) {
-          autoInvoice = true;
-        }
+      MemberType groupType = groups.types().get(groupId);
+      if (groupType != null) {
+        type = groupType;
+      } else if (groups.autoInvoice().contains(groupId)) {
+        autoInvoice = true;
       }
     }
     if (type == null) {
@@ -30,6 +32,11 @@ public abstract class Member {
           "Member \"" + customer.getGivenName() + " " + customer.getFamilyName() +
               "\" has no type.");
     }
+    return create(customer, type, autoInvoice);
+  }
+
+  /** Creates a member whose type and AutoInvoice flag are already decoded from its groups. */
+  static Member create(Customer customer, MemberType type, boolean autoInvoice) {
     return new lu.zhe.kyudo.AutoValue_Member(type,
         customer,
         customer.getGivenName() + " " + customer.getFamilyName(),
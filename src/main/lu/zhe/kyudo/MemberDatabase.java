@@ -3,7 +3,13 @@ package lu.zhe.kyudo;
 import com.google.auto.value.*;
 import com.google.common.collect.*;
 
-/** Database for looking up members by id or full name. */
+/**
+ * Database for looking up members by id or full name.
+ *
+ * <p>Each member also has a dense index, its position in {@link #members()}, so per-member state
+ * can be kept in a {@link MemberVector} instead of maps keyed by {@link Member}, whose hash codes
+ * cover the whole Square customer.
+ */
 @AutoValue
 abstract class MemberDatabase {
   public static Builder builder() {
@@ -14,18 +20,46 @@ abstract class MemberDatabase {
 
   public abstract ImmutableMap<String, Member> nameToMember();
 
+  /** Members in the order they were added. A member's index is its position in this list. */
+  public abstract ImmutableList<Member> members();
+
+  abstract ImmutableMap<String, Integer> idToIndex();
+
+  public int size() {
+    return members().size();
+  }
+
+  /** Returns the index of the member with the customer id, or -1 if there is none. */
+  public int indexOf(String customerId) {
+    Integer index = customerId == null ? null : idToIndex().get(customerId);
+    return index == null ? -1 : index;
+  }
+
+  /** Creates a vector holding 0 for every member. */
+  MemberVector newVector() {
+    return new MemberVector(this);
+  }
+
   @AutoValue.Builder
   protected static abstract class Builder {
+    private int size;
+
     public abstract MemberDatabase build();
 
     protected abstract ImmutableMap.Builder<String, Member> idToMemberBuilder();
 
     protected abstract ImmutableMap.Builder<String, Member> nameToMemberBuilder();
 
+    protected abstract ImmutableList.Builder<Member> membersBuilder();
+
+    protected abstract ImmutableMap.Builder<String, Integer> idToIndexBuilder();
+
     public Builder addMember(Member member) {
       idToMemberBuilder().put(member.customer().getId(), member);
       nameToMemberBuilder().put(
           member.customer().getGivenName() + " " + member.customer().getFamilyName(), member);
+      membersBuilder().add(member);
+      idToIndexBuilder().put(member.customer().getId(), size++);
       return this;
     }
   }
@@ -0,0 +1,38 @@
+package lu.zhe.kyudo;
+
+import com.google.auto.value.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+import java.util.*;
+
+/** The Square customer groups that classify members, resolved once from the group names. */
+@AutoValue
+abstract class MemberGroups {
+  /** Name of the group of members who are invoiced through Square. */
+  static final String AUTOINVOICE_GROUP = "AutoInvoice";
+
+  private static final ImmutableMap<String, MemberType> TYPES_BY_NAME =
+      Maps.uniqueIndex(Arrays.asList(MemberType.values()), MemberType::name);
+
+  /** Creates the groups from the name of each customer group by id. */
+  static MemberGroups create(Map<String, String> groups) {
+    ImmutableMap.Builder<String, MemberType> types = ImmutableMap.builder();
+    ImmutableSet.Builder<String> autoInvoice = ImmutableSet.builder();
+    for (Map.Entry<String, String> group : groups.entrySet()) {
+      MemberType type = TYPES_BY_NAME.get(Ascii.toUpperCase(group.getValue()));
+      if (type != null) {
+        types.put(group.getKey(), type);
+      } else if (group.getValue().equals(AUTOINVOICE_GROUP)) {
+        autoInvoice.add(group.getKey());
+      }
+    }
+    return new lu.zhe.kyudo.AutoValue_MemberGroups(types.build(), autoInvoice.build());
+  }
+
+  /** Member type of each membership type group, by group id. */
+  abstract ImmutableMap<String, MemberType> types();
+
+  /** Ids of the groups of members who are invoiced through Square. */
+  abstract ImmutableSet<String> autoInvoice();
+}
@@ -0,0 +1,78 @@
+package lu.zhe.kyudo;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+import java.util.*;
+
+/**
+ * An int for each member of a {@link MemberDatabase}, such as an attendance count or a balance in
+ * cents, stored in an array indexed by the member's index.
+ *
+ * <p>Updates never hash a {@link Member}; conversions to {@link Ledger} and {@link Multiset} are
+ * only meant for the edges of a run.
+ */
+final class MemberVector {
+  private final MemberDatabase database;
+  private final int[] values;
+
+  MemberVector(MemberDatabase database) {
+    this.database = database;
+    this.values = new int[database.size()];
+  }
+
+  MemberDatabase database() {
+    return database;
+  }
+
+  int size() {
+    return values.length;
+  }
+
+  int get(int member) {
+    return values[member];
+  }
+
+  /** Adds {@code amount}, which may be negative, to the member's value. */
+  MemberVector add(int member, int amount) {
+    values[member] = Math.addExact(values[member], amount);
+    return this;
+  }
+
+  /** Adds each balance in {@code ledger} to its member's value. */
+  MemberVector add(Ledger ledger) {
+    for (Member member : ledger.members()) {
+      int index = database.indexOf(member.customer().getId());
+      Preconditions.checkArgument(index >= 0, "%s is not in the member database", member.name());
+      add(index, ledger.balance(member));
+    }
+    return this;
+  }
+
+  /** Returns the non-zero values as balances, in index order. */
+  Ledger toLedger() {
+    Ledger.Builder result = Ledger.builder();
+    for (int member = 0; member < values.length; ++member) {
+      if (values[member] != 0) {
+        result.add(database.members().get(member), values[member]);
+      }
+    }
+    return result.build();
+  }
+
+  /** Returns the positive values as counts, in index order. */
+  ImmutableMultiset<Member> toMultiset() {
+    ImmutableMultiset.Builder<Member> result = ImmutableMultiset.builder();
+    for (int member = 0; member < values.length; ++member) {
+      if (values[member] > 0) {
+        result.addCopies(database.members().get(member), values[member]);
+      }
+    }
+    return result.build();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this).add("values", Arrays.toString(values)).toString();
+  }
+}
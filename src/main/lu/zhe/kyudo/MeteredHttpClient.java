@@ -0,0 +1,112 @@
+package lu.zhe.kyudo;
+
+import com.google.common.io.*;
+import org.apache.http.*;
+import org.apache.http.entity.*;
+import org.apache.http.impl.client.*;
+
+import java.io.*;
+import java.time.*;
+import java.util.function.BiFunction;
+
+/**
+ * Records the latency, traffic and failures of every request made through an Apache HTTP client.
+ */
+final class MeteredHttpClient {
+  private static final String ENDPOINT = "lu.zhe.kyudo.endpoint";
+  private static final String START_NANOS = "lu.zhe.kyudo.startNanos";
+  private static final String BYTES_SENT = "lu.zhe.kyudo.bytesSent";
+
+  private MeteredHttpClient() {}
+
+  /**
+   * Adds interceptors to {@code client} that record each request under the endpoint that
+   * {@code endpoints} names for its method and path.
+   */
+  @SuppressWarnings("deprecation")
+  static void instrument(
+      AbstractHttpClient client, Metrics metrics,
+      BiFunction<String, String, String> endpoints) {
+    client.addRequestInterceptor((request, context) -> {
+      String path = path(request.getRequestLine().getUri());
+      Metrics.Endpoint endpoint =
+          metrics.endpoint(endpoints.apply(request.getRequestLine().getMethod(), path));
+      context.setAttribute(ENDPOINT, endpoint);
+      if (request instanceof HttpEntityEnclosingRequest) {
+        HttpEntityEnclosingRequest withBody = (HttpEntityEnclosingRequest) request;
+        if (withBody.getEntity() != null) {
+          CountingEntity counting = new CountingEntity(withBody.getEntity());
+          withBody.setEntity(counting);
+          context.setAttribute(BYTES_SENT, counting);
+        }
+      }
+      context.setAttribute(START_NANOS, System.nanoTime());
+    });
+    client.addResponseInterceptor((response, context) -> {
+      Metrics.Endpoint endpoint = (Metrics.Endpoint) context.getAttribute(ENDPOINT);
+      Long startNanos = (Long) context.getAttribute(START_NANOS);
+      if (endpoint == null || startNanos == null) {
+        return;
+      }
+      endpoint.record(Duration.ofNanos(System.nanoTime() - startNanos));
+      CountingEntity sent = (CountingEntity) context.removeAttribute(BYTES_SENT);
+      if (sent != null) {
+        endpoint.sent(sent.count);
+      }
+      int status = response.getStatusLine().getStatusCode();
+      if (status >= 400) {
+        endpoint.error("HTTP_" + status);
+      }
+      if (response.getEntity() != null) {
+        response.setEntity(new HttpEntityWrapper(response.getEntity()) {
+          @Override
+          public InputStream getContent() throws IOException {
+            CountingInputStream counting = new CountingInputStream(super.getContent());
+            return new FilterInputStream(counting) {
+              private boolean closed;
+
+              @Override
+              public void close() throws IOException {
+                try {
+                  super.close();
+                } finally {
+                  if (!closed) {
+                    closed = true;
+                    endpoint.received(counting.getCount());
+                  }
+                }
+              }
+            };
+          }
+        });
+      }
+    });
+  }
+
+  /** Returns the path of a request URI, which may be absolute when sent through a proxy. */
+  private static String path(String uri) {
+    int scheme = uri.indexOf("://");
+    int start = scheme < 0 ? 0 : uri.indexOf('/', scheme + 3);
+    if (start < 0) {
+      return "/";
+    }
+    int query = uri.indexOf('?', start);
+    return uri.substring(start, query < 0 ? uri.length() : query);
+  }
+
+  /** Counts the bytes of a request body as it is written to the connection. */
+  private static final class CountingEntity extends HttpEntityWrapper {
+    private long count;
+
+    CountingEntity(HttpEntity entity) {
+      super(entity);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      CountingOutputStream counting = new CountingOutputStream(out);
+      super.writeTo(counting);
+      count += counting.getCount();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package lu.zhe.kyudo;
+
+import com.fasterxml.jackson.databind.*;
+import com.google.common.annotations.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.squareup.square.http.client.*;
+import com.squareup.square.http.request.*;
+import com.squareup.square.http.response.*;
+
+import java.io.*;
+import java.net.*;
+import java.time.*;
+import java.util.concurrent.*;
+
+/**
+ * Records the latency, traffic and error categories of every call made by a Square client.
+ *
+ * <p>Error responses are categorized by the {@code category} of the first error Square returns,
+ * e.g. {@code RATE_LIMIT_ERROR}, falling back to the HTTP status.
+ */
+final class MeteredSquareCallback implements HttpCallback {
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  private final Metrics metrics;
+  /** Start time of each request in flight, by identity. */
+  private final ConcurrentMap<HttpRequest, Long> startNanos =
+      new MapMaker().weakKeys().makeMap();
+
+  MeteredSquareCallback(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void onBeforeRequest(HttpRequest request) {
+    startNanos.put(request, System.nanoTime());
+  }
+
+  @Override
+  public void onAfterResponse(HttpContext context) {
+    HttpRequest request = context.getRequest();
+    Long start = startNanos.remove(request);
+    Metrics.Endpoint endpoint =
+        metrics.endpoint(endpoint(request.getHttpMethod().name(), request.getQueryUrl()));
+    if (start != null) {
+      endpoint.record(Duration.ofNanos(System.nanoTime() - start));
+    }
+    if (request instanceof HttpBodyRequest) {
+      Object body = ((HttpBodyRequest) request).getBody();
+      if (body instanceof String) {
+        endpoint.sent(Utf8.encodedLength((String) body));
+      }
+    }
+    HttpResponse response = context.getResponse();
+    String responseBody = response instanceof HttpStringResponse ?
+        ((HttpStringResponse) response).getBody() :
+        null;
+    if (responseBody != null) {
+      endpoint.received(Utf8.encodedLength(responseBody));
+    }
+    if (response.getStatusCode() >= 400) {
+      endpoint.error(errorCategory(response.getStatusCode(), responseBody));
+    }
+  }
+
+  private static String errorCategory(int status, String body) {
+    if (body != null) {
+      try {
+        JsonNode category = JSON.readTree(body).path("errors").path(0).path("category");
+        if (category.isTextual()) {
+          return category.asText();
+        }
+      } catch (IOException e) {
+        // Not a JSON error response.
+      }
+    }
+    return "HTTP_" + status;
+  }
+
+  /** Names the Square API call made to {@code url}, e.g. {@code square.searchOrders}. */
+  @VisibleForTesting
+  static String endpoint(String method, String url) {
+    String path = URI.create(url).getPath();
+    switch (method + " " + path) {
+      case "GET /v2/customers":
+        return "square.listCustomers";
+      case "POST /v2/customers/search":
+        return "square.searchCustomers";
+      case "GET /v2/customers/groups":
+        return "square.listCustomerGroups";
+      case "POST /v2/orders/search":
+        return "square.searchOrders";
+      case "POST /v2/orders":
+        return "square.createOrder";
+      case "POST /v2/invoices/search":
+        return "square.searchInvoices";
+      case "POST /v2/invoices":
+        return "square.createInvoice";
+      default:
+        break;
+    }
+    if (path.startsWith("/v2/invoices/") && path.endsWith("/publish")) {
+      return "square.publishInvoice";
+    } else if (path.startsWith("/v2/invoices/") && path.endsWith("/cancel")) {
+      return "square.cancelInvoice";
+    }
+    return "square.other";
+  }
+}
@@ -0,0 +1,293 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+
+import javax.management.*;
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Latency, traffic, paging, retry and error statistics for each remote API endpoint.
+ *
+ * <p>Endpoints are named after the call they serve, e.g. {@code square.searchOrders} or
+ * {@code sheets.values.get}. Statistics can be read over JMX once {@link #exportToJmx} has been
+ * called, and written out in the Prometheus text format with {@link #writePrometheus}.
+ */
+class Metrics {
+  /** Upper bounds of the latency histogram buckets, in seconds. */
+  private static final double[] LATENCY_BUCKETS =
+      {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+  private static final String JMX_DOMAIN = "lu.zhe.kyudo";
+
+  private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentSkipListMap<>();
+  private final Map<String, Duration> stages = Collections.synchronizedMap(new LinkedHashMap<>());
+  private volatile boolean exportedToJmx;
+
+  /** Returns the statistics for {@code name}, creating them on first use. */
+  Endpoint endpoint(String name) {
+    Endpoint endpoint = endpoints.get(name);
+    if (endpoint == null) {
+      Endpoint created = new Endpoint();
+      endpoint = endpoints.putIfAbsent(name, created);
+      if (endpoint == null) {
+        endpoint = created;
+        if (exportedToJmx) {
+          register(name, created);
+        }
+      }
+    }
+    return endpoint;
+  }
+
+  /** Records how long a stage of the current run took. */
+  void stage(String name, Duration duration) {
+    stages.put(name, duration);
+  }
+
+  /** Registers every endpoint, including ones first used later, with the platform MBean server. */
+  void exportToJmx() {
+    exportedToJmx = true;
+    endpoints.forEach(Metrics::register);
+  }
+
+  private static void register(String name, Endpoint endpoint) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = objectName(name);
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(endpoint, objectName);
+    } catch (JMException e) {
+      System.err.println("Could not export metrics for " + name + ": " + e.getMessage());
+    }
+  }
+
+  static ObjectName objectName(String endpoint) throws MalformedObjectNameException {
+    return new ObjectName(JMX_DOMAIN + ":type=ApiEndpoint,name=" + ObjectName.quote(endpoint));
+  }
+
+  /**
+   * Writes all statistics to {@code path} in the Prometheus text format, replacing the file
+   * atomically.
+   */
+  void writePrometheus(Path path) throws IOException {
+    AtomicFiles.write(path, temp -> {
+      try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        writePrometheus(writer);
+      }
+    });
+  }
+
+  void writePrometheus(Writer writer) throws IOException {
+    Map<String, Endpoint> snapshot = ImmutableMap.copyOf(endpoints);
+    PrintWriter out = new PrintWriter(writer);
+
+    header(out,
+        "kyudo_api_request_duration_seconds",
+        "histogram",
+        "Time from sending a remote API call to receiving its response headers.");
+    snapshot.forEach((name, endpoint) -> {
+      long cumulative = 0;
+      for (int i = 0; i <= LATENCY_BUCKETS.length; ++i) {
+        cumulative += endpoint.buckets.get(i);
+        String le = i < LATENCY_BUCKETS.length ? String.valueOf(LATENCY_BUCKETS[i]) : "+Inf";
+        out.println("kyudo_api_request_duration_seconds_bucket{endpoint=\"" + escape(name) +
+            "\",le=\"" + le + "\"} " + cumulative);
+      }
+      out.println("kyudo_api_request_duration_seconds_sum" + label(name) + " " +
+          endpoint.latencyNanos.sum() / 1e9);
+      out.println("kyudo_api_request_duration_seconds_count" + label(name) + " " +
+          endpoint.calls.sum());
+    });
+
+    header(out, "kyudo_api_sent_bytes_total", "counter", "Request body bytes sent.");
+    snapshot.forEach((name, endpoint) -> out.println(
+        "kyudo_api_sent_bytes_total" + label(name) + " " + endpoint.bytesSent.sum()));
+    header(out, "kyudo_api_received_bytes_total", "counter", "Response body bytes received.");
+    snapshot.forEach((name, endpoint) -> out.println(
+        "kyudo_api_received_bytes_total" + label(name) + " " + endpoint.bytesReceived.sum()));
+    header(out, "kyudo_api_pages_total", "counter", "Pages of results read.");
+    snapshot.forEach((name, endpoint) -> out.println(
+        "kyudo_api_pages_total" + label(name) + " " + endpoint.pages.sum()));
+    header(out, "kyudo_api_retries_total", "counter", "Calls sent again after failing.");
+    snapshot.forEach((name, endpoint) -> out.println(
+        "kyudo_api_retries_total" + label(name) + " " + endpoint.retries.sum()));
+    header(out, "kyudo_api_errors_total", "counter", "Failed calls, by error category.");
+    snapshot.forEach((name, endpoint) -> endpoint.errors
+        .entrySet()
+        .forEach(e -> out.println("kyudo_api_errors_total{endpoint=\"" + escape(name) +
+            "\",category=\"" + escape(e.getElement()) + "\"} " + e.getCount())));
+
+    header(out, "kyudo_stage_duration_seconds", "gauge", "Duration of each stage of the run.");
+    synchronized (stages) {
+      stages.forEach((name, duration) -> out.println("kyudo_stage_duration_seconds{stage=\"" +
+          escape(name) + "\"} " + duration.toNanos() / 1e9));
+    }
+    out.flush();
+    if (out.checkError()) {
+      throw new IOException("Could not write metrics");
+    }
+  }
+
+  private static void header(PrintWriter out, String metric, String type, String help) {
+    out.println("# HELP " + metric + " " + help);
+    out.println("# TYPE " + metric + " " + type);
+  }
+
+  private static String label(String endpoint) {
+    return "{endpoint=\"" + escape(endpoint) + "\"}";
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /** Statistics for one endpoint, readable over JMX. */
+  public interface ApiEndpointMXBean {
+    long getCalls();
+
+    long getErrors();
+
+    Map<String, Long> getErrorCategories();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getPages();
+
+    long getRetries();
+
+    double getMeanLatencyMillis();
+
+    /** Upper bound of the histogram bucket holding the median latency. */
+    double getMedianLatencyMillis();
+
+    /** Upper bound of the histogram bucket holding the 99th percentile latency. */
+    double getP99LatencyMillis();
+  }
+
+  /** Statistics for one endpoint. All methods are thread-safe. */
+  static final class Endpoint implements ApiEndpointMXBean {
+    private final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final ConcurrentHashMultiset<String> errors = ConcurrentHashMultiset.create();
+
+    private Endpoint() {}
+
+    /** Records a call that received a response after {@code latency}. */
+    void record(Duration latency) {
+      long nanos = latency.toNanos();
+      int bucket = 0;
+      while (bucket < LATENCY_BUCKETS.length && nanos > LATENCY_BUCKETS[bucket] * 1e9) {
+        ++bucket;
+      }
+      buckets.incrementAndGet(bucket);
+      latencyNanos.add(nanos);
+      calls.increment();
+    }
+
+    void sent(long bytes) {
+      bytesSent.add(bytes);
+    }
+
+    void received(long bytes) {
+      bytesReceived.add(bytes);
+    }
+
+    /** Records a failed call, e.g. {@code HTTP_429} or {@code RATE_LIMIT_ERROR}. */
+    void error(String category) {
+      errors.add(category);
+    }
+
+    void page() {
+      pages.increment();
+    }
+
+    void retry() {
+      retries.increment();
+    }
+
+    @Override
+    public long getCalls() {
+      return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+      return errors.size();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCategories() {
+      return errors
+          .entrySet()
+          .stream()
+          .collect(ImmutableMap.toImmutableMap(Multiset.Entry::getElement,
+              e -> (long) e.getCount()));
+    }
+
+    @Override
+    public long getBytesSent() {
+      return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+      return bytesReceived.sum();
+    }
+
+    @Override
+    public long getPages() {
+      return pages.sum();
+    }
+
+    @Override
+    public long getRetries() {
+      return retries.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+      long count = calls.sum();
+      return count == 0 ? 0 : latencyNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getMedianLatencyMillis() {
+      return quantileMillis(0.5);
+    }
+
+    @Override
+    public double getP99LatencyMillis() {
+      return quantileMillis(0.99);
+    }
+
+    private double quantileMillis(double quantile) {
+      long total = 0;
+      for (int i = 0; i < buckets.length(); ++i) {
+        total += buckets.get(i);
+      }
+      long cumulative = 0;
+      for (int i = 0; i < LATENCY_BUCKETS.length; ++i) {
+        cumulative += buckets.get(i);
+        if (total > 0 && cumulative >= quantile * total) {
+          return LATENCY_BUCKETS[i] * 1000;
+        }
+      }
+      return total == 0 ? 0 : Double.POSITIVE_INFINITY;
+    }
+  }
+}
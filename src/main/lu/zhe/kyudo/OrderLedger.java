@@ -0,0 +1,172 @@
+package lu.zhe.kyudo;
+
+import com.google.auto.value.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Local copy of the dues payments decoded from Square orders that have already been downloaded.
+ *
+ * <p>Completed orders do not change, so once the orders closed in a stretch of time have been
+ * read they never need to be read again. The ledger covers the orders of {@link #customerIds}
+ * from {@link #coveredFrom} to its {@link #watermark}, the latest {@code closed_at} of any order
+ * seen, and can answer the totals of any billing window inside it. Orders are keyed by id, so
+ * reading an order again, as when refetching an overlap for late arrivals, does not count it
+ * twice.
+ *
+ * <p>The ledger is stored as a text file whose first line is the location id, the second the
+ * coverage start and watermark and the third the covered customer ids, followed by one
+ * {@code orderId<TAB>customerId<TAB>closedAt<TAB>type<TAB>quantity} line per payment.
+ */
+class OrderLedger {
+  private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+
+  /** Where the ledger is stored, or null if it is not persisted. */
+  private final Path path;
+  private final String locationId;
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+  private final Set<String> customerIds = new LinkedHashSet<>();
+  private Instant coveredFrom;
+  private Instant watermark;
+
+  private OrderLedger(Path path, String locationId) {
+    this.path = path;
+    this.locationId = locationId;
+  }
+
+  /** Creates a ledger that is not persisted, so every run reads its whole window. */
+  static OrderLedger inMemory() {
+    return new OrderLedger(null, "");
+  }
+
+  /**
+   * Loads the ledger stored at {@code path}, or an empty ledger if there is no file yet or it was
+   * written for a different location.
+   */
+  static OrderLedger load(Path path, String locationId) throws IOException {
+    OrderLedger ledger = new OrderLedger(path, locationId);
+    if (Files.exists(path)) {
+      List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+      if (lines.size() >= 3 && lines.get(0).equals(locationId)) {
+        List<String> coverage = TAB_SPLITTER.splitToList(lines.get(1));
+        ledger.coveredFrom = Instant.parse(coverage.get(0));
+        ledger.watermark = Instant.parse(coverage.get(1));
+        TAB_SPLITTER.omitEmptyStrings().split(lines.get(2)).forEach(ledger.customerIds::add);
+        for (String line : lines.subList(3, lines.size())) {
+          List<String> fields = TAB_SPLITTER.splitToList(line);
+          ledger.add(fields.get(0),
+              fields.get(1),
+              Instant.parse(fields.get(2)),
+              Payment.PaymentType.valueOf(fields.get(3)),
+              Integer.parseInt(fields.get(4)));
+        }
+      }
+    }
+    return ledger;
+  }
+
+  /** Start of the time the ledger holds every order for, or null if it holds none yet. */
+  synchronized Instant coveredFrom() {
+    return coveredFrom;
+  }
+
+  /** Latest {@code closed_at} of the orders read, or {@link #coveredFrom} if none were. */
+  synchronized Instant watermark() {
+    return watermark;
+  }
+
+  /** Customers whose orders the ledger holds. */
+  synchronized ImmutableSet<String> customerIds() {
+    return ImmutableSet.copyOf(customerIds);
+  }
+
+  /**
+   * Records that every order of {@code customers} closed from {@code from} to the watermark has
+   * been read.
+   */
+  synchronized void cover(Instant from, Collection<String> customers) {
+    coveredFrom = coveredFrom == null || from.isBefore(coveredFrom) ? from : coveredFrom;
+    customerIds.addAll(customers);
+    advance(from);
+  }
+
+  /** Records that an order closed at {@code closedAt} has been read. */
+  synchronized void advance(Instant closedAt) {
+    watermark = watermark == null || closedAt.isAfter(watermark) ? closedAt : watermark;
+  }
+
+  /** Records an order's payment, replacing any earlier record of the same order. */
+  synchronized void add(
+      String orderId, String customerId, Instant closedAt, Payment.PaymentType type,
+      int quantity) {
+    Preconditions.checkArgument(CharMatcher.anyOf("\t\n").matchesNoneOf(orderId + customerId),
+        "Ledger entries may not contain tabs or newlines");
+    entries.put(orderId, new lu.zhe.kyudo.AutoValue_OrderLedger_Entry(customerId,
+        closedAt,
+        type,
+        quantity));
+  }
+
+  /** Every payment recorded, keyed by order id. */
+  synchronized ImmutableMap<String, Entry> entries() {
+    return ImmutableMap.copyOf(entries);
+  }
+
+  /** Number of payments recorded. */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the total each member paid in cents for orders closed between the instants,
+   * inclusive, by member index. Payments by customers who are not in {@code database} are
+   * ignored.
+   */
+  synchronized MemberVector totals(MemberDatabase database, Instant from, Instant to) {
+    MemberVector result = database.newVector();
+    for (Entry entry : entries.values()) {
+      if (entry.closedAt().isBefore(from) || entry.closedAt().isAfter(to)) {
+        continue;
+      }
+      int member = database.indexOf(entry.customerId());
+      if (member >= 0) {
+        Payment payment = Payment.create(database.members().get(member), entry.type());
+        result.add(member,
+            Math.multiplyExact(entry.quantity(), Ledger.toCents(payment.amount())));
+      }
+    }
+    return result;
+  }
+
+  /** Writes the ledger back to disk, replacing the previous file atomically. */
+  synchronized void save() throws IOException {
+    if (path == null || coveredFrom == null) {
+      return;
+    }
+    List<String> lines = new ArrayList<>(entries.size() + 3);
+    lines.add(locationId);
+    lines.add(coveredFrom + "\t" + watermark);
+    lines.add(String.join("\t", customerIds));
+    entries.forEach((orderId, entry) -> lines.add(orderId + "\t" + entry.customerId() + "\t" +
+        entry.closedAt() + "\t" + entry.type() + "\t" + entry.quantity()));
+    AtomicFiles.writeLines(path, lines);
+  }
+
+  /** A dues payment decoded from an order. */
+  @AutoValue
+  abstract static class Entry {
+    abstract String customerId();
+
+    abstract Instant closedAt();
+
+    abstract Payment.PaymentType type();
+
+    abstract int quantity();
+  }
+}
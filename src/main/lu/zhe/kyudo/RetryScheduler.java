@@ -0,0 +1,176 @@
+package lu.zhe.kyudo;
+
+import com.google.common.annotations.*;
+import com.google.common.base.*;
+import com.google.common.primitives.*;
+import com.google.common.util.concurrent.*;
+import com.squareup.square.exceptions.*;
+
+import java.io.*;
+import java.time.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
+
+/**
+ * Retries Square calls that were throttled or failed transiently.
+ *
+ * <p>A call is retried after a 429, a 5xx or an I/O error, waiting for the {@code Retry-After}
+ * the server asked for or else a jittered exponential backoff. A throttled call also holds back
+ * every other call made through the same scheduler until its wait is over, so concurrent calls
+ * back off together instead of being throttled one after another.
+ *
+ * <p>Calls are only safe to retry if they are reads or carry an idempotency key.
+ */
+class RetryScheduler {
+  private static final Duration DEFAULT_BASE_DELAY = Duration.ofMillis(500);
+  private static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(30);
+
+  private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("square-retry").build());
+
+  private final int maxRetries;
+  private final Duration baseDelay;
+  private final Duration maxDelay;
+  private final Metrics metrics;
+  /** {@link System#nanoTime} before which no call may be sent. */
+  private final AtomicLong resumeAtNanos = new AtomicLong(System.nanoTime());
+
+  @VisibleForTesting
+  RetryScheduler(int maxRetries, Duration baseDelay, Duration maxDelay, Metrics metrics) {
+    Preconditions.checkArgument(maxRetries >= 0, "maxRetries must not be negative");
+    this.maxRetries = maxRetries;
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.metrics = metrics;
+  }
+
+  /** Creates a scheduler that sends each call at most {@code maxRetries} more times. */
+  static RetryScheduler create(int maxRetries, Metrics metrics) {
+    return new RetryScheduler(maxRetries, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, metrics);
+  }
+
+  /** Makes {@code call} on the calling thread, sleeping between attempts. */
+  <T> T call(String endpoint, Call<T> call) throws IOException, ApiException {
+    for (int attempt = 0; ; ++attempt) {
+      sleep(resumeAtNanos.get() - System.nanoTime());
+      try {
+        return call.call();
+      } catch (IOException | ApiException e) {
+        if (attempt >= maxRetries || !isRetryable(e)) {
+          throw e;
+        }
+        metrics.endpoint(endpoint).retry();
+        sleep(delay(e, attempt).toNanos());
+      }
+    }
+  }
+
+  /**
+   * Makes {@code call} asynchronously, scheduling retries without blocking a thread.
+   *
+   * <p>The returned future fails with the last attempt's exception, unwrapped.
+   */
+  <T> CompletableFuture<T> callAsync(String endpoint, Supplier<CompletableFuture<T>> call) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    attempt(endpoint, call, 0, result);
+    return result;
+  }
+
+  private <T> void attempt(
+      String endpoint, Supplier<CompletableFuture<T>> call, int attempt,
+      CompletableFuture<T> result) {
+    long waitNanos = resumeAtNanos.get() - System.nanoTime();
+    if (waitNanos > 0) {
+      TIMER.schedule(() -> attempt(endpoint, call, attempt, result),
+          waitNanos,
+          TimeUnit.NANOSECONDS);
+      return;
+    }
+    CompletableFuture<T> future;
+    try {
+      future = call.get();
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+      return;
+    }
+    future.whenComplete((value, e) -> {
+      if (e == null) {
+        result.complete(value);
+        return;
+      }
+      Throwable cause = e instanceof CompletionException && e.getCause() != null ?
+          e.getCause() :
+          e;
+      if (attempt >= maxRetries || !isRetryable(cause)) {
+        result.completeExceptionally(cause);
+        return;
+      }
+      metrics.endpoint(endpoint).retry();
+      TIMER.schedule(() -> attempt(endpoint, call, attempt + 1, result),
+          delay(cause, attempt).toNanos(),
+          TimeUnit.NANOSECONDS);
+    });
+  }
+
+  @VisibleForTesting
+  static boolean isRetryable(Throwable e) {
+    if (e instanceof IOException) {
+      return true;
+    }
+    if (!(e instanceof ApiException)) {
+      return false;
+    }
+    int status = ((ApiException) e).getResponseCode();
+    return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+  }
+
+  /**
+   * Returns how long to wait before attempt {@code attempt + 1}. A throttled call pauses every
+   * call for that long.
+   */
+  private Duration delay(Throwable e, int attempt) {
+    Duration delay = retryAfter(e);
+    if (delay == null) {
+      long capNanos = Math.min(maxDelay.toNanos(), baseDelay.toNanos() << Math.min(attempt, 20));
+      delay = Duration.ofNanos(ThreadLocalRandom.current().nextLong(capNanos + 1));
+    }
+    if (e instanceof ApiException && ((ApiException) e).getResponseCode() == 429) {
+      long resumeAt = System.nanoTime() + delay.toNanos();
+      resumeAtNanos.accumulateAndGet(resumeAt,
+          (current, next) -> next - current > 0 ? next : current);
+    }
+    return delay;
+  }
+
+  /** Returns the wait the server asked for in seconds, if any. */
+  private static Duration retryAfter(Throwable e) {
+    if (!(e instanceof ApiException) || ((ApiException) e).getHttpContext() == null) {
+      return null;
+    }
+    String value = ((ApiException) e)
+        .getHttpContext()
+        .getResponse()
+        .getHeaders()
+        .value("Retry-After");
+    Long seconds = value == null ? null : Longs.tryParse(value.trim());
+    return seconds == null || seconds < 0 ? null : Duration.ofSeconds(seconds);
+  }
+
+  private static void sleep(long nanos) throws InterruptedIOException {
+    if (nanos <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+
+  /** A blocking Square call. */
+  interface Call<T> {
+    T call() throws IOException, ApiException;
+  }
+}
@@ -0,0 +1,341 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import com.squareup.square.models.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * The decoded inputs of a run: its members, the balances they started the period with, every
+ * attendance form row decoded to member indices, and the dues payments of the orders read.
+ *
+ * <p>A snapshot is written once every input has been fetched, so invoices can later be recomputed
+ * from it without any API calls. Attendance and payments are kept as rows rather than totals, so
+ * they are counted and priced again on every replay: a replay after changing a rate in
+ * {@link MemberType} shows what the period would have been charged, and a replay of another
+ * window shows what it would have been charged over that window, as long as the snapshot holds
+ * its payments. Starting balances are only known for the snapshot's own period, so a replay of
+ * another window still starts from them.
+ *
+ * <p>It is stored in a compact binary format that is read through a memory mapping: a header of
+ * magic number, version, period dates, payment coverage in epoch milliseconds and row counts;
+ * then the balances, attendance rows and order rows as arrays of ints and longs; the member
+ * types, AutoInvoice flags and payment types as arrays of bytes; and last each member's customer
+ * id, given name, family name and email address and each order's id as length-prefixed UTF-8
+ * strings.
+ */
+final class RunSnapshot {
+  private static final int MAGIC = 0x4B594453;
+  private static final int VERSION = 2;
+  private static final int HEADER_BYTES = 4 + 4 + 4 * 8 + 3 * 4;
+
+  private final LocalDate startDateInclusive;
+  private final LocalDate endDateInclusive;
+  private final MemberVector balances;
+  private final AttendanceParser.Attendance attendance;
+  private final OrderLedger payments;
+  /** Instants between which {@link #payments} holds every member's payments. */
+  private final Instant paymentsFrom;
+  private final Instant paymentsTo;
+
+  private RunSnapshot(
+      LocalDate startDateInclusive, LocalDate endDateInclusive, MemberVector balances,
+      AttendanceParser.Attendance attendance, OrderLedger payments, Instant paymentsFrom,
+      Instant paymentsTo) {
+    this.startDateInclusive = startDateInclusive;
+    this.endDateInclusive = endDateInclusive;
+    this.balances = balances;
+    this.attendance = attendance;
+    this.payments = payments;
+    this.paymentsFrom = paymentsFrom;
+    this.paymentsTo = paymentsTo;
+  }
+
+  /**
+   * Creates a snapshot of a period's inputs over the members of {@code balances}. Attendance
+   * must be decoded against the same member database, and {@code ledger} must hold every
+   * payment of the period; payments of customers who are not members are left out.
+   */
+  static RunSnapshot create(
+      LocalDate startDateInclusive, LocalDate endDateInclusive, MemberVector balances,
+      AttendanceParser.Attendance attendance, OrderLedger ledger) {
+    MemberDatabase database = balances.database();
+    Instant windowStart = startOfDay(startDateInclusive);
+    Instant paymentsFrom = ledger.coveredFrom() == null ||
+        ledger.coveredFrom().isAfter(windowStart) ? windowStart : ledger.coveredFrom();
+    Instant paymentsTo = endOfDay(endDateInclusive);
+    OrderLedger payments = OrderLedger.inMemory();
+    ledger.entries().forEach((orderId, entry) -> {
+      if (database.indexOf(entry.customerId()) >= 0 && !entry.closedAt().isAfter(paymentsTo)) {
+        payments.add(orderId,
+            entry.customerId(),
+            entry.closedAt(),
+            entry.type(),
+            entry.quantity());
+      }
+    });
+    return new RunSnapshot(startDateInclusive,
+        endDateInclusive,
+        balances,
+        attendance,
+        payments,
+        paymentsFrom,
+        paymentsTo);
+  }
+
+  /**
+   * Reads the snapshot at {@code path}.
+   *
+   * @throws IOException if the file could not be read or is not a snapshot of this version
+   */
+  static RunSnapshot read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+        throw new IOException(path + " is not a run snapshot");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException(path + " is a version " + version + " run snapshot");
+      }
+      LocalDate startDate = LocalDate.ofEpochDay(buffer.getLong());
+      LocalDate endDate = LocalDate.ofEpochDay(buffer.getLong());
+      Instant paymentsFrom = Instant.ofEpochMilli(buffer.getLong());
+      Instant paymentsTo = Instant.ofEpochMilli(buffer.getLong());
+      int size = buffer.getInt();
+      int attendanceSize = buffer.getInt();
+      int orders = buffer.getInt();
+      if (size < 0 || attendanceSize < 0 || orders < 0) {
+        throw new IOException(path + " is a corrupt run snapshot");
+      }
+
+      int[] balanceCents = getInts(buffer, size);
+      int[] attendanceDays = getInts(buffer, attendanceSize);
+      int[] attendanceMembers = getInts(buffer, attendanceSize);
+      long[] closedAt = getLongs(buffer, orders);
+      int[] orderMembers = getInts(buffer, orders);
+      int[] quantities = getInts(buffer, orders);
+      byte[] types = new byte[size];
+      byte[] autoInvoice = new byte[size];
+      byte[] paymentTypes = new byte[orders];
+      buffer.get(types).get(autoInvoice).get(paymentTypes);
+
+      MemberDatabase.Builder database = MemberDatabase.builder();
+      for (int member = 0; member < size; ++member) {
+        Customer customer = new Customer.Builder()
+            .id(getString(buffer))
+            .givenName(getString(buffer))
+            .familyName(getString(buffer))
+            .emailAddress(getString(buffer))
+            .build();
+        database.addMember(Member.create(customer,
+            MemberType.values()[types[member]],
+            autoInvoice[member] != 0));
+      }
+      MemberDatabase members = database.build();
+      MemberVector balances = members.newVector();
+      for (int member = 0; member < size; ++member) {
+        balances.add(member, balanceCents[member]);
+      }
+      for (int member : attendanceMembers) {
+        checkMember(path, members, member);
+      }
+      OrderLedger payments = OrderLedger.inMemory();
+      for (int order = 0; order < orders; ++order) {
+        checkMember(path, members, orderMembers[order]);
+        payments.add(getString(buffer),
+            members.members().get(orderMembers[order]).customer().getId(),
+            Instant.ofEpochMilli(closedAt[order]),
+            Payment.PaymentType.values()[paymentTypes[order]],
+            quantities[order]);
+      }
+      return new RunSnapshot(startDate,
+          endDate,
+          balances,
+          new AttendanceParser.Attendance(attendanceDays, attendanceMembers, attendanceSize),
+          payments,
+          paymentsFrom,
+          paymentsTo);
+    } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new IOException(path + " is a truncated or corrupt run snapshot", e);
+    }
+  }
+
+  LocalDate startDateInclusive() {
+    return startDateInclusive;
+  }
+
+  LocalDate endDateInclusive() {
+    return endDateInclusive;
+  }
+
+  MemberDatabase database() {
+    return balances.database();
+  }
+
+  /** Balance each member started the snapshot's period with, in cents. */
+  MemberVector balances() {
+    return balances;
+  }
+
+  /**
+   * Total each member paid between the dates, in cents, priced at the current rates.
+   *
+   * @throws IllegalArgumentException if the snapshot does not hold every payment between them
+   */
+  MemberVector payments(LocalDate startDateInclusive, LocalDate endDateInclusive) {
+    checkCovered(startDateInclusive, endDateInclusive);
+    return payments.totals(database(),
+        startOfDay(startDateInclusive),
+        endOfDay(endDateInclusive));
+  }
+
+  /**
+   * Billable attendance of each member between the dates, counted by the current rules.
+   *
+   * @throws IllegalArgumentException if the snapshot was taken before the window ended
+   */
+  MemberVector attendance(LocalDate startDateInclusive, LocalDate endDateInclusive) {
+    checkCovered(startDateInclusive, endDateInclusive);
+    return AttendanceParser
+        .create(database())
+        .count(attendance, startDateInclusive, endDateInclusive);
+  }
+
+  /** Writes the snapshot to {@code path}, replacing any previous file atomically. */
+  void write(Path path) throws IOException {
+    MemberDatabase database = database();
+    int size = database.size();
+    ImmutableMap<String, OrderLedger.Entry> orders = payments.entries();
+    List<byte[]> strings = new ArrayList<>(size * 4 + orders.size());
+    for (Member member : database.members()) {
+      Customer customer = member.customer();
+      strings.add(utf8(customer.getId()));
+      strings.add(utf8(customer.getGivenName()));
+      strings.add(utf8(customer.getFamilyName()));
+      strings.add(utf8(customer.getEmailAddress()));
+    }
+    orders.keySet().forEach(id -> strings.add(utf8(id)));
+    int stringBytes = 0;
+    for (byte[] bytes : strings) {
+      stringBytes += 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    int orderCount = orders.size();
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + size * (4 + 2) +
+        attendance.size() * 8 + orderCount * (8 + 4 + 4 + 1) + stringBytes);
+    buffer
+        .putInt(MAGIC)
+        .putInt(VERSION)
+        .putLong(startDateInclusive.toEpochDay())
+        .putLong(endDateInclusive.toEpochDay())
+        .putLong(paymentsFrom.toEpochMilli())
+        .putLong(paymentsTo.toEpochMilli())
+        .putInt(size)
+        .putInt(attendance.size())
+        .putInt(orderCount);
+    for (int member = 0; member < size; ++member) {
+      buffer.putInt(balances.get(member));
+    }
+    for (int entry = 0; entry < attendance.size(); ++entry) {
+      buffer.putInt(attendance.epochDay(entry));
+    }
+    for (int entry = 0; entry < attendance.size(); ++entry) {
+      buffer.putInt(attendance.member(entry));
+    }
+    for (OrderLedger.Entry entry : orders.values()) {
+      buffer.putLong(entry.closedAt().toEpochMilli());
+    }
+    for (OrderLedger.Entry entry : orders.values()) {
+      buffer.putInt(database.indexOf(entry.customerId()));
+    }
+    for (OrderLedger.Entry entry : orders.values()) {
+      buffer.putInt(entry.quantity());
+    }
+    for (Member member : database.members()) {
+      buffer.put((byte) member.type().ordinal());
+    }
+    for (Member member : database.members()) {
+      buffer.put((byte) (member.autoInvoice() ? 1 : 0));
+    }
+    for (OrderLedger.Entry entry : orders.values()) {
+      buffer.put((byte) entry.type().ordinal());
+    }
+    for (byte[] bytes : strings) {
+      if (bytes == null) {
+        buffer.putInt(-1);
+      } else {
+        buffer.putInt(bytes.length).put(bytes);
+      }
+    }
+    buffer.flip();
+
+    AtomicFiles.write(path, temp -> {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    });
+  }
+
+  private void checkCovered(LocalDate startDateInclusive, LocalDate endDateInclusive) {
+    if (startOfDay(startDateInclusive).isBefore(paymentsFrom) ||
+        endOfDay(endDateInclusive).isAfter(paymentsTo)) {
+      throw new IllegalArgumentException("Snapshot only holds payments from " +
+          paymentsFrom.atZone(SquareApiClient.ORDER_ZONE).toLocalDate() + " to " +
+          paymentsTo.atZone(SquareApiClient.ORDER_ZONE).toLocalDate());
+    }
+  }
+
+  private static Instant startOfDay(LocalDate date) {
+    return date.atStartOfDay(SquareApiClient.ORDER_ZONE).toInstant();
+  }
+
+  /** Last second of {@code date}, as billing windows end. */
+  private static Instant endOfDay(LocalDate date) {
+    return startOfDay(date.plusDays(1)).minusSeconds(1);
+  }
+
+  private static void checkMember(Path path, MemberDatabase database, int member)
+      throws IOException {
+    if (member < 0 || member >= database.size()) {
+      throw new IOException(path + " refers to member " + member + " of " + database.size());
+    }
+  }
+
+  private static int[] getInts(ByteBuffer buffer, int count) {
+    int[] values = new int[count];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + count * 4);
+    return values;
+  }
+
+  private static long[] getLongs(ByteBuffer buffer, int count) {
+    long[] values = new long[count];
+    buffer.asLongBuffer().get(values);
+    buffer.position(buffer.position() + count * 8);
+    return values;
+  }
+
+  private static byte[] utf8(String text) {
+    return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Reads a length-prefixed UTF-8 string, or null for a length of -1. */
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,111 @@
+package lu.zhe.kyudo;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Record of the emails, cancellations and invoices already sent for a billing period, so that an
+ * interrupted send can be resumed without repeating them.
+ *
+ * <p>The journal is an append-only text file with one tab separated line of kind, period start,
+ * key and value per completed step. Each line is forced to disk before {@link #record} returns,
+ * so a step is only recorded once it finished, and a line torn by a crash is dropped by
+ * {@link AppendOnlyFiles} when the journal is next opened. Lines for other periods are kept but
+ * ignored.
+ */
+class SendJournal implements Closeable {
+  private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+
+  /** A step of sending invoices. */
+  enum Kind {
+    /** An invoice email was sent to the member with the given customer id. */
+    EMAIL,
+    /** The invoice with the given id was canceled. */
+    CANCEL,
+    /** An invoice, whose id is the value, was published to the given customer id. */
+    PUBLISH
+  }
+
+  /** Where the journal is appended to, or null if it is not persisted. */
+  private final FileChannel channel;
+  private final LocalDate periodStart;
+  private final Map<Kind, Map<String, String>> entries = new EnumMap<>(Kind.class);
+
+  private SendJournal(FileChannel channel, LocalDate periodStart) {
+    this.channel = channel;
+    this.periodStart = periodStart;
+    for (Kind kind : Kind.values()) {
+      entries.put(kind, new ConcurrentHashMap<>());
+    }
+  }
+
+  /** Creates a journal for the period that is not persisted, so nothing is skipped by reruns. */
+  static SendJournal inMemory(LocalDate periodStart) {
+    return new SendJournal(null, periodStart);
+  }
+
+  /** Opens the journal at {@code path}, creating it if there is no file yet. */
+  static SendJournal open(Path path, LocalDate periodStart) throws IOException {
+    return AppendOnlyFiles.open(path,
+        channel -> new SendJournal(channel, periodStart),
+        (journal, line) -> {
+          List<String> fields = TAB_SPLITTER.splitToList(line);
+          if (fields.size() == 4 && fields.get(1).equals(periodStart.toString())) {
+            journal.entries.get(Kind.valueOf(fields.get(0))).put(fields.get(2), fields.get(3));
+          }
+        });
+  }
+
+  /** Start of the billing period this journal records. */
+  LocalDate periodStart() {
+    return periodStart;
+  }
+
+  boolean contains(Kind kind, String key) {
+    return entries.get(kind).containsKey(key);
+  }
+
+  /** Keys recorded for {@code kind}, mapped to their values. */
+  ImmutableMap<String, String> entries(Kind kind) {
+    return ImmutableMap.copyOf(entries.get(kind));
+  }
+
+  int size(Kind kind) {
+    return entries.get(kind).size();
+  }
+
+  void record(Kind kind, String key) throws IOException {
+    record(kind, key, "");
+  }
+
+  /** Records a completed step, returning once it is on disk. */
+  synchronized void record(Kind kind, String key, String value) throws IOException {
+    Preconditions.checkArgument(CharMatcher.anyOf("\t\n").matchesNoneOf(key + value),
+        "Journal entries may not contain tabs or newlines");
+    if (channel != null) {
+      ByteBuffer line = ByteBuffer.wrap((kind + "\t" + periodStart + "\t" + key + "\t" + value +
+          "\n").getBytes(StandardCharsets.UTF_8));
+      while (line.hasRemaining()) {
+        channel.write(line);
+      }
+      channel.force(false);
+    }
+    entries.get(kind).put(key, value);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+  }
+}
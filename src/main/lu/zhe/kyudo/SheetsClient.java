@@ -1,7 +1,6 @@
 package lu.zhe.kyudo;
 
 import com.google.api.client.auth.oauth2.*;
-import com.google.api.client.googleapis.javanet.*;
 import com.google.api.client.json.jackson2.*;
 import com.google.api.services.sheets.v4.*;
 import com.google.api.services.sheets.v4.model.*;
@@ -9,13 +8,12 @@ import com.google.auto.value.*;
 import com.google.common.annotations.*;
 import com.google.common.base.*;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
 
 import java.io.*;
-import java.security.*;
 import java.time.*;
-import java.time.format.*;
 import java.util.*;
-import java.util.function.Supplier;
+import java.util.concurrent.*;
 
 /** Client for interfacing with Google sheets to process attendance. */
 public class SheetsClient {
@@ -27,9 +25,11 @@ public class SheetsClient {
       "charges",
       "payments",
       "ending amount");
-  private static final Splitter ATTENDANCE_SPLITTER = Splitter.on(", ");
-  private static final DateTimeFormatter ATTENDANCE_DATE_FORMATTER =
-      DateTimeFormatter.ofPattern("M/d/yyyy");
+  /** Rows written by each invoice tab update, well under the API's request size limit. */
+  private static final int INVOICE_ROWS_PER_REQUEST = 2000;
+  private static final int MAX_CONCURRENT_WRITES = 4;
+  /** Serial number of 1970-01-01 in Sheets, which counts days from 1899-12-30. */
+  private static final int SERIAL_NUMBER_OF_EPOCH = 25569;
   private final Sheets sheets;
 
   @VisibleForTesting
@@ -37,11 +37,10 @@ public class SheetsClient {
     this.sheets = sheets;
   }
 
-  public static SheetsClient create(
-      Credential credential) throws GeneralSecurityException, IOException {
-    return new SheetsClient(new Sheets.Builder(GoogleNetHttpTransport.newTrustedTransport(),
+  public static SheetsClient create(GoogleHttp http, Credential credential) {
+    return new SheetsClient(new Sheets.Builder(http.transport(),
         JacksonFactory.getDefaultInstance(),
-        credential).setApplicationName(KyudoInvoices.APP_NAME).build());
+        http.initializer(credential)).setApplicationName(KyudoInvoices.APP_NAME).build());
   }
 
   private static String getTabName(YearMonth firstYearMonth) {
@@ -61,62 +60,110 @@ public class SheetsClient {
     throw new IllegalStateException("Unknown type");
   }
 
-  private static int getAmountOwedOrBanked(
-      Supplier<ListMultimap<Member, Payment>> owedSupplier,
-      Supplier<ListMultimap<Member, Payment>> waiverSupplier, Member member) {
-    ListMultimap<Member, Payment> owed = owedSupplier.get();
-    ListMultimap<Member, Payment> waivers = waiverSupplier.get();
-    if (owed.containsKey(member)) {
-      return -owed.get(member).stream().mapToInt(Payment::amount).sum();
-    } else if (waivers.containsKey(member)) {
-      return waivers.get(member).stream().mapToInt(Payment::amount).sum();
-    }
-    return 0;
+  public ImmutableMultiset<Member> readAttendanceSheet(
+      MemberDatabase memberDatabase, String sheetId, LocalDate startDateInclusive,
+      LocalDate endDateInclusive) throws IOException {
+    return readAttendanceSheet(memberDatabase,
+        sheetId,
+        startDateInclusive,
+        endDateInclusive,
+        AttendanceCache.inMemory());
   }
 
+  /**
+   * Reads attendance, only downloading the form rows that were appended since {@code cache} was
+   * last saved.
+   */
   public ImmutableMultiset<Member> readAttendanceSheet(
       MemberDatabase memberDatabase, String sheetId, LocalDate startDateInclusive,
-      LocalDate endDateInclusive) throws IOException {
-    ImmutableMultiset.Builder<Member> builder = ImmutableMultiset.builder();
-    SetMultimap<Member, YearMonth> attendanceByMonth = HashMultimap.create();
-    ValueRange response =
-        sheets.spreadsheets().values().get(sheetId, "Form Responses 1!A2:E").execute();
-    for (List<Object> row : response.getValues()) {
-      LocalDate date = LocalDate.parse((String) row.get(4), ATTENDANCE_DATE_FORMATTER);
-      if (date.isBefore(startDateInclusive) || date.isAfter(endDateInclusive)) {
-        continue;
-      }
-      String members = (String) row.get(2);
-      for (String memberName : ATTENDANCE_SPLITTER.splitToList(members)) {
-        Member member = memberDatabase.nameToMember().get(memberName);
-        switch (member.type()) {
-          case ASSOCIATE:
-            builder.add(member);
-            break;
-          case MEMBER:
-            break;
-          case REGULAR:
-            // fall through intended
-          case STUDENT:
-            attendanceByMonth.put(member, YearMonth.of(date.getYear(), date.getMonth()));
-        }
-      }
+      LocalDate endDateInclusive, AttendanceCache cache) throws IOException {
+    return readAttendanceCounts(memberDatabase,
+        sheetId,
+        startDateInclusive,
+        endDateInclusive,
+        cache).toMultiset();
+  }
+
+  /** Reads attendance as above, returning each member's count by member index. */
+  MemberVector readAttendanceCounts(
+      MemberDatabase memberDatabase, String sheetId, LocalDate startDateInclusive,
+      LocalDate endDateInclusive, AttendanceCache cache) throws IOException {
+    // Row 1 holds the form's headers.
+    List<List<Object>> rows =
+        batchGet(sheetId, "Form Responses 1!A" + (cache.watermark() + 2) + ":E").get(0);
+    if (!rows.isEmpty()) {
+      addAttendanceRows(cache, rows);
+      cache.save();
     }
-    attendanceByMonth.asMap().forEach((m, c) -> builder.addCopies(m, c.size()));
-    int months = 0;
-    LocalDate date = startDateInclusive;
-    while (date.isBefore(endDateInclusive)) {
-      ++months;
-      date = date.plusMonths(1);
+    return countAttendance(memberDatabase, cache, startDateInclusive, endDateInclusive);
+  }
+
+  /** Decodes form response rows and appends them to {@code cache}. */
+  @VisibleForTesting
+  static void addAttendanceRows(AttendanceCache cache, List<List<Object>> values) {
+    for (List<Object> row : values) {
+      cache.add(epochDayCell(row.get(4)), (String) row.get(2));
     }
-    int monthsCopy = months;
-    memberDatabase
-        .nameToMember()
+  }
+
+  /**
+   * Reads the values of {@code ranges} of a spreadsheet in one call.
+   *
+   * <p>Values are read unformatted, so numbers arrive as {@link Number}s and dates as serial
+   * numbers, and the response is masked down to the values themselves. Empty ranges are returned
+   * as empty lists.
+   */
+  @VisibleForTesting
+  ImmutableList<List<List<Object>>> batchGet(String sheetId, String... ranges) throws IOException {
+    BatchGetValuesResponse response = sheets
+        .spreadsheets()
         .values()
-        .stream()
-        .filter(m -> m.type() == MemberType.MEMBER)
-        .forEach(m -> builder.addCopies(m, monthsCopy));
-    return builder.build();
+        .batchGet(sheetId)
+        .setRanges(Arrays.asList(ranges))
+        .setValueRenderOption("UNFORMATTED_VALUE")
+        .setDateTimeRenderOption("SERIAL_NUMBER")
+        .setFields("valueRanges(values)")
+        .execute();
+    ImmutableList.Builder<List<List<Object>>> result = ImmutableList.builder();
+    for (int i = 0; i < ranges.length; ++i) {
+      List<List<Object>> values = response.getValueRanges() == null ?
+          null :
+          response.getValueRanges().get(i).getValues();
+      result.add(values == null ? ImmutableList.of() : values);
+    }
+    return result.build();
+  }
+
+  /** Reads a whole number cell, which is a number when read unformatted and text otherwise. */
+  @VisibleForTesting
+  static int intCell(Object cell) {
+    if (cell instanceof Number) {
+      return Math.toIntExact(Math.round(((Number) cell).doubleValue()));
+    }
+    return Integer.parseInt(String.valueOf(cell));
+  }
+
+  /**
+   * Reads a date cell as an epoch day. Dates read unformatted are serial numbers, days since
+   * 1899-12-30 with the time of day as the fraction; text is parsed as {@code M/d/yyyy}.
+   */
+  @VisibleForTesting
+  static int epochDayCell(Object cell) {
+    if (cell instanceof Number) {
+      return Math.toIntExact((long) Math.floor(((Number) cell).doubleValue())) -
+          SERIAL_NUMBER_OF_EPOCH;
+    }
+    return AttendanceParser.parseEpochDay(String.valueOf(cell));
+  }
+
+  /** Counts the billable attendance of each member between the dates, by member index. */
+  @VisibleForTesting
+  static MemberVector countAttendance(
+      MemberDatabase memberDatabase, AttendanceCache cache, LocalDate startDateInclusive,
+      LocalDate endDateInclusive) {
+    return AttendanceParser
+        .create(memberDatabase)
+        .count(cache, startDateInclusive, endDateInclusive);
   }
 
   /**
@@ -126,23 +173,13 @@ public class SheetsClient {
       MemberDatabase memberDatabase, String sheetId, LocalDate endDate) throws IOException {
     LocalDate firstMonth = endDate.minusMonths(3);
     String previousAccountsTab = getTabName(YearMonth.from(firstMonth));
-    ValueRange response =
-        sheets.spreadsheets().values().get(sheetId, previousAccountsTab + "!A2:H").execute();
     Accounts.Builder result = Accounts.builder();
-    for (List<Object> row : response.getValues()) {
+    for (List<Object> row : batchGet(sheetId, previousAccountsTab + "!A2:H").get(0)) {
       Member member = memberDatabase.nameToMember().get(row.get(0));
-      int amount = Integer.parseInt((String) row.get(7));
-      Payment payment = Payment.create(member, Payment.PaymentType.DUES);
-      int count = amount / payment.amount();
-      if (amount > 0) {
-        result
-            .waiversBuilder()
-            .putAll(member, ImmutableList.copyOf(Collections.nCopies(count, payment)));
-      } else {
-        result
-            .owedBuilder()
-            .putAll(member, ImmutableList.copyOf(Collections.nCopies(-count, payment)));
-      }
+      int amount = intCell(row.get(7));
+      int rate = member.type().value();
+      // Balances are carried over in whole multiples of the member's rate.
+      result.balancesBuilder().add(member, Ledger.toCents(amount / rate * rate));
     }
     return result.build();
   }
@@ -151,59 +188,133 @@ public class SheetsClient {
   public void writeInvoices(
       String sheetsId, Invoices invoices, Accounts accounts,
       LocalDate startDate) throws IOException {
-    String tabName = getTabName(YearMonth.from(startDate));
-    AddSheetRequest addSheetRequest =
-        new AddSheetRequest().setProperties(new SheetProperties().setTitle(tabName));
-    sheets
-        .spreadsheets()
-        .batchUpdate(sheetsId,
-            new BatchUpdateSpreadsheetRequest().setRequests(ImmutableList.of(new Request().setAddSheet(
-                addSheetRequest))))
-        .execute();
+    writeInvoices(sheetsId, invoices, accounts, startDate, false);
+  }
 
-    List<List<Object>> values = new ArrayList<>();
+  /**
+   * Writes invoices to a new tab of the invoice sheet.
+   *
+   * <p>Charges and ending amounts are computed here and written as numbers, so Sheets has nothing
+   * to recalculate. The tab is created and its first rows written by a single batch update; the
+   * rows of large memberships are split into chunks that are written concurrently once the tab
+   * exists.
+   *
+   * @param rowFormulas whether to also write the charges and ending amount of each row as formulas
+   *     over that row's cells, so the sheet shows how they were computed
+   */
+  public void writeInvoices(
+      String sheetsId, Invoices invoices, Accounts accounts, LocalDate startDate,
+      boolean rowFormulas) throws IOException {
+    YearMonth firstMonth = YearMonth.from(startDate);
+    String tabName = getTabName(firstMonth);
+    int tabId = getTabId(firstMonth);
 
-    values.add(INVOICE_SHEET_HEADERS);
+    List<RowData> rows = new ArrayList<>();
+    rows.add(new RowData().setValues(INVOICE_SHEET_HEADERS
+        .stream()
+        .map(header -> cell(new ExtendedValue().setStringValue((String) header)))
+        .collect(ImmutableList.toImmutableList())));
     for (Member member : Streams
-        .concat(accounts.owed().keySet().stream(),
-            invoices.attendanceCount().keySet().stream(),
-            accounts.waivers().keySet().stream())
+        .concat(accounts.balances().members().stream(),
+            invoices.attendanceCount().keySet().stream())
         .distinct()
         .sorted(Comparator.comparing(Member::name))
         .collect(ImmutableList.toImmutableList())) {
-      values.add(ImmutableList.of(member.name(),
-          getInvoiceMemberType(member),
-          getAmountOwedOrBanked(accounts::owed, accounts::waivers, member),
-          invoices.attendanceCount().getOrDefault(member, 0),
-          member.type().value(),
-          "= D:D * E:E",
-          invoices.payments().getOrDefault(member, 0),
-          "= C:C - F:F + G:G"));
+      int startingAmount = accounts.balances().balance(member) / Ledger.CENTS_PER_DOLLAR;
+      int billable = invoices.attendanceCount().getOrDefault(member, 0);
+      int rate = member.type().value();
+      int charges = billable * rate;
+      int payments = invoices.payments().getOrDefault(member, 0);
+      int endingAmount = startingAmount - charges + payments;
+      // One-based row number in A1 notation.
+      int row = rows.size() + 1;
+      rows.add(new RowData().setValues(ImmutableList.of(
+          cell(new ExtendedValue().setStringValue(member.name())),
+          cell(new ExtendedValue().setStringValue(getInvoiceMemberType(member))),
+          number(startingAmount),
+          number(billable),
+          number(rate),
+          rowFormulas ?
+              cell(new ExtendedValue().setFormulaValue("=D" + row + "*E" + row)) :
+              number(charges),
+          number(payments),
+          rowFormulas ?
+              cell(new ExtendedValue().setFormulaValue("=C" + row + "-F" + row + "+G" + row)) :
+              number(endingAmount))));
     }
-    ValueRange writeData = new ValueRange().setValues(values);
 
+    List<List<RowData>> chunks = Lists.partition(rows, INVOICE_ROWS_PER_REQUEST);
+    // Cells cannot be written past the grid, which is 1000 rows unless sized when it is added.
+    AddSheetRequest addSheetRequest = new AddSheetRequest().setProperties(new SheetProperties()
+        .setSheetId(tabId)
+        .setTitle(tabName)
+        .setGridProperties(new GridProperties()
+            .setRowCount(rows.size())
+            .setColumnCount(INVOICE_SHEET_HEADERS.size())));
     sheets
         .spreadsheets()
-        .values()
-        .append(sheetsId, tabName + "!A1", writeData)
-        .setValueInputOption("USER_ENTERED")
-        .setInsertDataOption("INSERT_ROWS")
+        .batchUpdate(sheetsId,
+            new BatchUpdateSpreadsheetRequest().setRequests(ImmutableList.of(
+                new Request().setAddSheet(addSheetRequest),
+                updateCells(tabId, 0, chunks.get(0)))))
         .execute();
+    if (chunks.size() == 1) {
+      return;
+    }
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(chunks.size() - 1, MAX_CONCURRENT_WRITES));
+    try {
+      List<Future<?>> writes = new ArrayList<>();
+      for (int chunk = 1; chunk < chunks.size(); ++chunk) {
+        Request request =
+            updateCells(tabId, chunk * INVOICE_ROWS_PER_REQUEST, chunks.get(chunk));
+        writes.add(executor.submit(() -> sheets
+            .spreadsheets()
+            .batchUpdate(sheetsId,
+                new BatchUpdateSpreadsheetRequest().setRequests(ImmutableList.of(request)))
+            .execute()));
+      }
+      for (Future<?> write : writes) {
+        Futures.getChecked(write, IOException.class);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Sheet id of a period's invoice tab, chosen up front so the tab is filled as it is added. */
+  private static int getTabId(YearMonth firstYearMonth) {
+    return firstYearMonth.getYear() * 100 + firstYearMonth.getMonthValue();
+  }
+
+  private static Request updateCells(int tabId, int startRow, List<RowData> rows) {
+    return new Request().setUpdateCells(new UpdateCellsRequest()
+        .setStart(new GridCoordinate().setSheetId(tabId).setRowIndex(startRow).setColumnIndex(0))
+        .setRows(rows)
+        .setFields("userEnteredValue"));
+  }
+
+  private static CellData cell(ExtendedValue value) {
+    return new CellData().setUserEnteredValue(value);
+  }
+
+  private static CellData number(int value) {
+    return cell(new ExtendedValue().setNumberValue((double) value));
   }
 
   public ImmutableList<Invoices.InvoiceEmail> generateEmails(
       String sheetId, MemberDatabase memberDatabase, LocalDate startDate,
       LocalDate endDate) throws IOException {
     String tabName = getTabName(YearMonth.from(startDate));
-    ValueRange response = sheets.spreadsheets().values().get(sheetId, tabName + "!A2:H").execute();
     ImmutableList.Builder<Invoices.InvoiceEmail> emails = ImmutableList.builder();
-    for (List<Object> row : response.getValues()) {
+    for (List<Object> row : batchGet(sheetId, tabName + "!A2:H").get(0)) {
       Member member = memberDatabase.nameToMember().get(row.get(0));
-      int owed = -Integer.parseInt(String.valueOf(row.get(7)));
+      int owed = -intCell(row.get(7));
       if (owed < 0) {
         owed = 0;
       }
-      int attendance = Integer.parseInt(String.valueOf(row.get(3)));
+      int attendance = intCell(row.get(3));
       if (owed > 0 || attendance > 0) {
         emails.add(Invoices.InvoiceEmail.create(member, attendance, owed, startDate, endDate));
       }
@@ -217,15 +328,12 @@ public class SheetsClient {
       return new lu.zhe.kyudo.AutoValue_SheetsClient_Accounts.Builder();
     }
 
-    public abstract ImmutableListMultimap<Member, Payment> owed();
-
-    public abstract ImmutableListMultimap<Member, Payment> waivers();
+    /** Balance carried over from the previous period. */
+    public abstract Ledger balances();
 
     @AutoValue.Builder
     public abstract static class Builder {
-      abstract ImmutableListMultimap.Builder<Member, Payment> owedBuilder();
-
-      abstract ImmutableListMultimap.Builder<Member, Payment> waiversBuilder();
+      abstract Ledger.Builder balancesBuilder();
 
       public abstract Accounts build();
     }
@@ -1,5 +1,7 @@
 package lu.zhe.kyudo;
 
+import com.fasterxml.jackson.core.type.*;
+import com.google.auto.value.*;
 import com.google.common.annotations.*;
 import com.google.common.base.*;
 import com.google.common.collect.*;
@@ -8,50 +10,160 @@ import com.squareup.square.exceptions.*;
 import com.squareup.square.models.*;
 
 import java.io.*;
+import java.nio.charset.*;
 import java.time.*;
 import java.time.format.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.*;
 
 /** Client to integrating with the Square API. */
 public class SquareApiClient {
-  private static final String AUTOINVOICE_GROUP = "AutoInvoice";
+  private static final int INVOICE_SEARCH_PAGE_SIZE = 200;
+  /** The largest page of customers {@code SearchCustomers} returns. */
+  private static final long CUSTOMER_SEARCH_PAGE_SIZE = 100;
+  /** The most customer ids a {@code SearchOrders} customer filter accepts. */
+  private static final int ORDER_SEARCH_MAX_CUSTOMERS = 10;
+  /**
+   * Length of the slices that a billing window's orders are searched in separately, when there
+   * are too many to fit on one page.
+   */
+  private static final Period ORDER_SEARCH_PARTITION = Period.ofWeeks(1);
+  /** Timezone whose days billing windows are made of. */
+  static final ZoneId ORDER_ZONE = ZoneId.of("America/New_York");
+  /** How far before an order ledger's watermark orders are searched for again. */
+  private static final Duration ORDER_LEDGER_OVERLAP = Duration.ofDays(1);
+  private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+  private static final int DEFAULT_MAX_RETRIES = 5;
   private final SquareClient client;
+  private final int maxConcurrentRequests;
+  private final Metrics metrics;
+  private final RetryScheduler retries;
+  private final SquareCache cache;
 
   @VisibleForTesting
   SquareApiClient(SquareClient client) {
+    this(client, DEFAULT_MAX_CONCURRENT_REQUESTS);
+  }
+
+  @VisibleForTesting
+  SquareApiClient(SquareClient client, int maxConcurrentRequests) {
+    this(client, maxConcurrentRequests, new Metrics());
+  }
+
+  private SquareApiClient(SquareClient client, int maxConcurrentRequests, Metrics metrics) {
+    this(client,
+        maxConcurrentRequests,
+        metrics,
+        RetryScheduler.create(DEFAULT_MAX_RETRIES, metrics));
+  }
+
+  @VisibleForTesting
+  SquareApiClient(
+      SquareClient client, int maxConcurrentRequests, Metrics metrics, RetryScheduler retries) {
+    this(client, maxConcurrentRequests, metrics, retries, SquareCache.inMemory());
+  }
+
+  private SquareApiClient(
+      SquareClient client, int maxConcurrentRequests, Metrics metrics, RetryScheduler retries,
+      SquareCache cache) {
+    Preconditions.checkArgument(maxConcurrentRequests > 0,
+        "maxConcurrentRequests must be positive");
     this.client = client;
+    this.maxConcurrentRequests = maxConcurrentRequests;
+    this.metrics = metrics;
+    this.retries = retries;
+    this.cache = cache;
   }
 
-  public static SquareApiClient create(String accessToken) {
-    return new SquareApiClient(new SquareClient.Builder()
+  public static SquareApiClient create(String accessToken, int maxConcurrentRequests) {
+    return create(accessToken,
+        maxConcurrentRequests,
+        DEFAULT_MAX_RETRIES,
+        new Metrics(),
+        SquareCache.inMemory());
+  }
+
+  static SquareApiClient create(
+      String accessToken, int maxConcurrentRequests, int maxRetries, Metrics metrics,
+      SquareCache cache) {
+    return create(new SquareClient.Builder()
         .environment(Environment.PRODUCTION)
-        .accessToken(accessToken)
-        .build());
+        .accessToken(accessToken), maxConcurrentRequests, maxRetries, metrics, cache);
+  }
+
+  static SquareApiClient create(
+      SquareClient.Builder builder, int maxConcurrentRequests, int maxRetries, Metrics metrics) {
+    return create(builder, maxConcurrentRequests, maxRetries, metrics, SquareCache.inMemory());
+  }
+
+  /**
+   * Creates a client built by {@code builder} that records every call in {@code metrics} and
+   * sends each call at most {@code maxRetries} more times if it is throttled or fails
+   * transiently. Customer groups and customers are read through {@code cache}.
+   */
+  static SquareApiClient create(
+      SquareClient.Builder builder, int maxConcurrentRequests, int maxRetries, Metrics metrics,
+      SquareCache cache) {
+    return new SquareApiClient(builder.httpCallback(new MeteredSquareCallback(metrics)).build(),
+        maxConcurrentRequests,
+        metrics,
+        RetryScheduler.create(maxRetries, metrics),
+        cache);
+  }
+
+  /**
+   * Returns the idempotency key for a member's call in a billing period, so that sending the
+   * call again, even concurrently or from a later run, cannot create a second order or invoice.
+   */
+  @VisibleForTesting
+  static String idempotencyKey(String stage, String customerId, LocalDate periodStart) {
+    String name = stage + "/" + customerId + "/" + periodStart;
+    return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
   }
 
-  private static List<Payment> getPayment(Order order, Member member) {
+  /** Returns the amount paid by {@code order} in cents, or 0 if it is not a dues payment. */
+  @VisibleForTesting
+  static int paymentCents(Order order, Member member) {
+    Payment.PaymentType type = paymentType(order);
+    if (type == null) {
+      return 0;
+    }
+    return Math.multiplyExact(Integer.parseInt(order.getLineItems().get(0).getQuantity()),
+        Ledger.toCents(Payment.create(member, type).amount()));
+  }
+
+  /** Returns what {@code order} paid for, or null if it is not a dues payment. */
+  private static Payment.PaymentType paymentType(Order order) {
     if (order.getLineItems() == null || order.getLineItems().isEmpty()) {
-      return ImmutableList.of();
-    }
-    OrderLineItem item = order.getLineItems().get(0);
-    final Payment.PaymentType type;
-    if (Ascii.toUpperCase(item.getName()).contains("FIRST SHOT")) {
-      type = Payment.PaymentType.FIRST_SHOT;
-    } else if (Ascii.toUpperCase(item.getName()).contains("DUES")) {
-      type = Payment.PaymentType.DUES;
-    } else {
-      return ImmutableList.of();
+      return null;
     }
-    return ImmutableList.copyOf(Collections.nCopies(Integer.parseInt(item.getQuantity()),
-        Payment.create(member, type)));
+    String name = Ascii.toUpperCase(order.getLineItems().get(0).getName());
+    if (name.contains("FIRST SHOT")) {
+      return Payment.PaymentType.FIRST_SHOT;
+    } else if (name.contains("DUES")) {
+      return Payment.PaymentType.DUES;
+    }
+    return null;
   }
 
+  /** Returns the name of each customer group by id, fetched at most once per cache lifetime. */
   public ImmutableMap<String, String> getMemberGroups() throws IOException, ApiException {
+    return ImmutableMap.copyOf(cache.get(SquareCache.Kind.GROUPS,
+        new TypeReference<Map<String, String>>() {},
+        this::listCustomerGroups));
+  }
+
+  private ImmutableMap<String, String> listCustomerGroups() throws IOException, ApiException {
     ImmutableMap.Builder<String, String> groups = ImmutableMap.builder();
     String cursor = null;
     do {
-      ListCustomerGroupsResponse response =
-          client.getCustomerGroupsApi().listCustomerGroups(cursor);
+      String pageCursor = cursor;
+      ListCustomerGroupsResponse response = retries.call("square.listCustomerGroups",
+          () -> client.getCustomerGroupsApi().listCustomerGroups(pageCursor));
+      metrics.endpoint("square.listCustomerGroups").page();
       for (CustomerGroup group : response.getGroups()) {
         groups.put(group.getId(), group.getName());
       }
@@ -60,195 +172,625 @@ public class SquareApiClient {
     return groups.build();
   }
 
+  /**
+   * Returns every member, from customers fetched at most once per cache lifetime. Only customers
+   * in a membership type group are fetched, so customers who are not members are never paged.
+   * Cached customers are keyed by those groups, so they are fetched again once the groups change.
+   */
   public MemberDatabase getMembers() throws IOException, ApiException {
-    Map<String, String> groups = getMemberGroups();
+    MemberGroups groups = MemberGroups.create(getMemberGroups());
+    List<Customer> customers = cache.get(SquareCache.Kind.CUSTOMERS,
+        String.join(",", ImmutableSortedSet.copyOf(groups.types().keySet())),
+        new TypeReference<List<Customer>>() {},
+        () -> searchCustomers(groups.types().keySet()));
     MemberDatabase.Builder result = MemberDatabase.builder();
+    customers.stream().map(c -> Member.create(c, groups)).forEach(result::addMember);
+    return result.build();
+  }
+
+  /** Returns the customers in any of the groups. */
+  private ImmutableList<Customer> searchCustomers(Set<String> groupIds)
+      throws IOException, ApiException {
+    ImmutableList.Builder<Customer> customers = ImmutableList.builder();
+    if (groupIds.isEmpty()) {
+      return customers.build();
+    }
+    CustomerQuery query = new CustomerQuery.Builder()
+        .filter(new CustomerFilter.Builder()
+            .groupIds(new FilterValue.Builder().any(ImmutableList.copyOf(groupIds)).build())
+            .build())
+        .build();
     String cursor = null;
     do {
-      ListCustomersResponse response = client.getCustomersApi().listCustomers(cursor, null, null);
+      SearchCustomersRequest request = new SearchCustomersRequest.Builder()
+          .cursor(cursor)
+          .limit(CUSTOMER_SEARCH_PAGE_SIZE)
+          .query(query)
+          .build();
+      SearchCustomersResponse response = retries.call("square.searchCustomers",
+          () -> client.getCustomersApi().searchCustomers(request));
+      metrics.endpoint("square.searchCustomers").page();
       cursor = response.getCursor();
       if (response.getCustomers() != null) {
-        response
-            .getCustomers()
-            .stream()
-            .map(c -> Member.create(c, groups))
-            .forEach(result::addMember);
+        customers.addAll(response.getCustomers());
       }
     } while (cursor != null);
-    return result.build();
+    return customers.build();
   }
 
-  public ListMultimap<Member, Payment> getPayments(
+  /** Returns the total each member paid between the dates, in cents. */
+  public Ledger getPayments(
       MemberDatabase database, String locationId, LocalDate startDate,
       LocalDate endDateInclusive) throws IOException, ApiException {
-    SearchOrdersDateTimeFilter dateTimeFilter = new SearchOrdersDateTimeFilter(null,
-        null,
-        new TimeRange(startDate
-            .atStartOfDay(ZoneId.of("America/New_York"))
-            .format(DateTimeFormatter.ISO_OFFSET_DATE_TIME),
-            endDateInclusive
-                .plusDays(1)
-                .atStartOfDay(ZoneId.of("America/New_York"))
-                .minusSeconds(1)
-                .format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)));
+    return getPaymentTotals(database, locationId, startDate, endDateInclusive, page -> {})
+        .toLedger();
+  }
+
+  /**
+   * Returns the total each member paid between the dates, in cents.
+   *
+   * <p>Each page of orders is folded into per-member totals as it arrives and handed to
+   * {@code onPage} before the next page of its search is requested, so memory is bounded by the
+   * number of members rather than the number of orders.
+   */
+  public Ledger getPayments(
+      MemberDatabase database, String locationId, LocalDate startDate,
+      LocalDate endDateInclusive, Consumer<Ledger> onPage) throws IOException, ApiException {
+    return getPaymentTotals(database,
+        locationId,
+        startDate,
+        endDateInclusive,
+        page -> onPage.accept(page.toLedger())).toLedger();
+  }
+
+  /**
+   * Returns the total each member paid between the dates in cents, by member index, handing the
+   * totals of each page of orders to {@code onPage}.
+   *
+   * <p>Orders are searched for as in {@link #searchMemberOrders}. {@code onPage} is never called
+   * concurrently.
+   */
+  MemberVector getPaymentTotals(
+      MemberDatabase database, String locationId, LocalDate startDate,
+      LocalDate endDateInclusive, Consumer<MemberVector> onPage) throws IOException, ApiException {
+    List<TimeRange> partitions = partition(startDate, endDateInclusive);
+    // Adjacent partitions share their boundary, so when a chunk is searched by partition, an
+    // order closed exactly on one is returned by both searches and must be counted once.
+    Set<Instant> boundaries = partitions
+        .stream()
+        .skip(1)
+        .map(range -> OffsetDateTime.parse(range.getStartAt()).toInstant())
+        .collect(ImmutableSet.toImmutableSet());
+    Set<String> boundaryOrderIds = ConcurrentHashMap.newKeySet();
+    MemberVector result = database.newVector();
+    searchMemberOrders(customerIds(database),
+        locationId,
+        ImmutableList.of(partitions),
+        orders -> {
+          MemberVector page = database.newVector();
+          for (Order order : orders) {
+            if (order.getClosedAt() != null &&
+                boundaries.contains(OffsetDateTime.parse(order.getClosedAt()).toInstant()) &&
+                !boundaryOrderIds.add(order.getId())) {
+              continue;
+            }
+            int member = memberIndex(database, order);
+            if (member >= 0) {
+              page.add(member, paymentCents(order, database.members().get(member)));
+            }
+          }
+          synchronized (result) {
+            for (int member = 0; member < page.size(); ++member) {
+              result.add(member, page.get(member));
+            }
+            onPage.accept(page);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Returns the total each member paid between the dates in cents, by member index, answered from
+   * {@code ledger} and saved back to it.
+   *
+   * <p>Only orders the ledger does not cover are searched for: those closed before its coverage
+   * starts, those closed after its watermark, less {@link #ORDER_LEDGER_OVERLAP} for orders that
+   * arrived late, and every order of members it does not cover yet. Rerunning a window, or any
+   * window inside one already read, therefore only searches from shortly before the watermark.
+   */
+  MemberVector getPaymentTotals(
+      MemberDatabase database, String locationId, LocalDate startDate,
+      LocalDate endDateInclusive, OrderLedger ledger) throws IOException, ApiException {
+    ZonedDateTime startAt = startDate.atStartOfDay(ORDER_ZONE);
+    ZonedDateTime endAt = endDateInclusive.plusDays(1).atStartOfDay(ORDER_ZONE).minusSeconds(1);
+    List<String> customerIds = customerIds(database);
+    Consumer<List<Order>> addToLedger = orders -> {
+      for (Order order : orders) {
+        int member = memberIndex(database, order);
+        if (member < 0 || order.getClosedAt() == null) {
+          continue;
+        }
+        Instant closedAt = OffsetDateTime.parse(order.getClosedAt()).toInstant();
+        ledger.advance(closedAt);
+        Payment.PaymentType type = paymentType(order);
+        if (type != null) {
+          ledger.add(order.getId(),
+              database.members().get(member).customer().getId(),
+              closedAt,
+              type,
+              Integer.parseInt(order.getLineItems().get(0).getQuantity()));
+        }
+      }
+    };
+    if (ledger.coveredFrom() == null) {
+      searchMemberOrders(customerIds,
+          locationId,
+          ImmutableList.of(partition(startAt, endAt)),
+          addToLedger);
+    } else {
+      ZonedDateTime coveredFrom = ledger.coveredFrom().atZone(ORDER_ZONE);
+      ZonedDateTime watermark = ledger.watermark().atZone(ORDER_ZONE);
+      ZonedDateTime resumeAt = watermark.minus(ORDER_LEDGER_OVERLAP);
+      Set<String> covered = ledger.customerIds();
+      List<String> known = new ArrayList<>();
+      List<String> unknown = new ArrayList<>();
+      customerIds.forEach(id -> (covered.contains(id) ? known : unknown).add(id));
+      List<List<TimeRange>> windows = new ArrayList<>();
+      if (startAt.isBefore(coveredFrom)) {
+        windows.add(partition(startAt, coveredFrom));
+      }
+      if (endAt.isAfter(resumeAt)) {
+        windows.add(partition(resumeAt, endAt));
+      }
+      searchMemberOrders(known, locationId, windows, addToLedger);
+      searchMemberOrders(unknown,
+          locationId,
+          ImmutableList.of(partition(startAt.isBefore(coveredFrom) ? startAt : coveredFrom,
+              endAt.isAfter(watermark) ? endAt : watermark)),
+          addToLedger);
+    }
+    ledger.cover(startAt.toInstant(), customerIds);
+    ledger.save();
+    return ledger.totals(database, startAt.toInstant(), endAt.toInstant());
+  }
+
+  /**
+   * Searches for the completed orders of the customers closed in each window, handing each page
+   * of orders to {@code onPage}. Each window is given as its consecutive partitions, as returned
+   * by {@link #partition}.
+   *
+   * <p>Only members' orders are searched for: members are split into chunks of as many customer
+   * ids as a customer filter accepts, and each chunk's orders are first searched for over the
+   * whole window. Most chunks' orders fit on one page, so this is usually one request per chunk.
+   * Only when a chunk's orders do not fit, its first page is dropped and its orders are paged
+   * through separately for each partition instead, so a busy window takes about as long as its
+   * slowest partition rather than as long as paging through all of it. Searches are concurrent,
+   * with at most {@code maxConcurrentRequests} in flight. {@code onPage} may be called
+   * concurrently.
+   */
+  private void searchMemberOrders(
+      List<String> customerIds, String locationId, List<? extends List<TimeRange>> windows,
+      Consumer<List<Order>> onPage) throws IOException, ApiException {
+    List<SearchOrdersQuery> queries = new ArrayList<>();
+    Map<SearchOrdersQuery, List<SearchOrdersQuery>> partitionQueries = new HashMap<>();
+    for (List<String> chunk : Lists.partition(customerIds, ORDER_SEARCH_MAX_CUSTOMERS)) {
+      for (List<TimeRange> partitions : windows) {
+        if (partitions.isEmpty()) {
+          continue;
+        }
+        SearchOrdersQuery query = ordersQuery(chunk, new TimeRange(partitions.get(0).getStartAt(),
+            partitions.get(partitions.size() - 1).getEndAt()));
+        queries.add(query);
+        if (partitions.size() > 1) {
+          partitionQueries.put(query,
+              partitions
+                  .stream()
+                  .map(partition -> ordersQuery(chunk, partition))
+                  .collect(Collectors.toList()));
+        }
+      }
+    }
+    List<SearchOrdersQuery> split = Collections.synchronizedList(new ArrayList<>());
+    try {
+      forEachConcurrently(queries, query -> {
+        if (!partitionQueries.containsKey(query)) {
+          return searchOrders(locationId, query, null, onPage);
+        }
+        return searchOrdersPage(locationId, query, null).thenAccept(response -> {
+          if (response.getCursor() != null) {
+            split.addAll(partitionQueries.get(query));
+          } else if (response.getOrders() != null) {
+            onPage.accept(response.getOrders());
+          }
+        });
+      });
+      forEachConcurrently(split, query -> searchOrders(locationId, query, null, onPage));
+    } catch (CompletionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class, ApiException.class);
+      throw e;
+    }
+  }
+
+  /** Returns a query for the completed orders of the customers closed in {@code range}. */
+  private static SearchOrdersQuery ordersQuery(List<String> customerIds, TimeRange range) {
     SearchOrdersFilter filter =
         new SearchOrdersFilter(new SearchOrdersStateFilter(ImmutableList.of("COMPLETED")),
-            dateTimeFilter,
+            new SearchOrdersDateTimeFilter(null, null, range),
             null,
             null,
-            null);
-    SearchOrdersQuery query =
-        new SearchOrdersQuery(filter, new SearchOrdersSort("CLOSED_AT", null));
-    ImmutableListMultimap.Builder<Member, Payment> result = ImmutableListMultimap.builder();
-    String cursor = null;
-    do {
-      SearchOrdersRequest request =
-          new SearchOrdersRequest(ImmutableList.of(locationId), cursor, query, null, false);
-      SearchOrdersResponse response = client.getOrdersApi().searchOrders(request);
-      if (response.getOrders() != null) {
-        response.getOrders().stream().filter(o -> o.getCustomerId() != null).forEach(o -> {
-          Member member = database.idToMember().get(o.getCustomerId());
-          if (member == null) {
-            member = database.idToMember().get(o.getTenders().get(0).getCustomerId());
+            new SearchOrdersCustomerFilter(customerIds));
+    return new SearchOrdersQuery(filter, new SearchOrdersSort("CLOSED_AT", null));
+  }
+
+  private static ImmutableList<String> customerIds(MemberDatabase database) {
+    return database
+        .members()
+        .stream()
+        .map(member -> member.customer().getId())
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** Returns the index of the member who placed {@code order}, or -1 if there is none. */
+  private static int memberIndex(MemberDatabase database, Order order) {
+    if (order.getCustomerId() == null) {
+      return -1;
+    }
+    int member = database.indexOf(order.getCustomerId());
+    if (member < 0) {
+      member = database.indexOf(order.getTenders().get(0).getCustomerId());
+    }
+    if (member < 0) {
+      System.err.println("No member for order " + order.getId());
+    }
+    return member;
+  }
+
+  /**
+   * Splits the days between the dates into consecutive time ranges of at most
+   * {@link #ORDER_SEARCH_PARTITION}. Each range ends where the next starts, and the last ends at
+   * the final second of {@code endDateInclusive}.
+   */
+  @VisibleForTesting
+  static ImmutableList<TimeRange> partition(LocalDate startDate, LocalDate endDateInclusive) {
+    return partition(startDate.atStartOfDay(ORDER_ZONE),
+        endDateInclusive.plusDays(1).atStartOfDay(ORDER_ZONE).minusSeconds(1));
+  }
+
+  /** Splits the time between the instants into consecutive ranges as above. */
+  private static ImmutableList<TimeRange> partition(ZonedDateTime startAt, ZonedDateTime endAt) {
+    ImmutableList.Builder<TimeRange> partitions = ImmutableList.builder();
+    for (ZonedDateTime from = startAt; from.isBefore(endAt);
+        from = from.plus(ORDER_SEARCH_PARTITION)) {
+      ZonedDateTime to = from.plus(ORDER_SEARCH_PARTITION);
+      partitions.add(new TimeRange(from.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME),
+          (to.isBefore(endAt) ? to : endAt).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)));
+    }
+    return partitions.build();
+  }
+
+  /**
+   * Searches for the orders matching {@code query} from {@code cursor} on, handing each page to
+   * {@code onPage} before requesting the next.
+   */
+  private CompletableFuture<Void> searchOrders(
+      String locationId, SearchOrdersQuery query, String cursor, Consumer<List<Order>> onPage) {
+    return searchOrdersPage(locationId, query, cursor)
+        .thenCompose(response -> {
+          if (response.getOrders() != null) {
+            onPage.accept(response.getOrders());
           }
-          result.putAll(member, getPayment(o, member));
+          return response.getCursor() == null ?
+              CompletableFuture.completedFuture(null) :
+              searchOrders(locationId, query, response.getCursor(), onPage);
         });
-      }
-      cursor = response.getCursor();
-    } while (cursor != null);
-    return result.build();
   }
 
+  /** Requests the page of orders matching {@code query} at {@code cursor}. */
+  private CompletableFuture<SearchOrdersResponse> searchOrdersPage(
+      String locationId, SearchOrdersQuery query, String cursor) {
+    SearchOrdersRequest request =
+        new SearchOrdersRequest(ImmutableList.of(locationId), cursor, query, null, false);
+    return retries
+        .callAsync("square.searchOrders", () -> client.getOrdersApi().searchOrdersAsync(request))
+        .thenApply(response -> {
+          metrics.endpoint("square.searchOrders").page();
+          return response;
+        });
+  }
+
+  /**
+   * Cancels unpaid invoices created within the last year for members in the AutoInvoice group.
+   *
+   * <p>Invoices for the whole location are searched newest first, so paging stops at the first
+   * invoice past the time boundary. Cancellations are sent concurrently, with at most
+   * {@code maxConcurrentRequests} in flight.
+   */
   public void cancelOutstandingInvoicesForAutoInvoicedCustomers(
       MemberDatabase memberDatabase, String locationId) throws IOException, ApiException {
-    for (Map.Entry<String, Member> entry : memberDatabase.idToMember().entrySet()) {
-      if (entry
-          .getValue()
-          .customer()
-          .getGroupIds()
-          .stream()
-          .noneMatch(g -> AUTOINVOICE_GROUP.equals(g))) {
+    cancelOutstandingInvoicesForAutoInvoicedCustomers(memberDatabase,
+        locationId,
+        SendJournal.inMemory(LocalDate.MIN));
+  }
+
+  /**
+   * Cancels unpaid invoices as above, except those {@code journal} records as published for its
+   * period, recording each cancellation in {@code journal}.
+   */
+  void cancelOutstandingInvoicesForAutoInvoicedCustomers(
+      MemberDatabase memberDatabase, String locationId,
+      SendJournal journal) throws IOException, ApiException {
+    Set<String> published = ImmutableSet.copyOf(journal.entries(SendJournal.Kind.PUBLISH).values());
+    ImmutableSet<String> customerIds = memberDatabase
+        .idToMember()
+        .entrySet()
+        .stream()
+        .filter(e -> e.getValue().autoInvoice())
+        .map(Map.Entry::getKey)
+        .collect(ImmutableSet.toImmutableSet());
+    if (customerIds.isEmpty()) {
+      return;
+    }
+
+    Instant earliestTime = Instant.now().minus(Duration.ofDays(365));
+    List<Invoice> unpaidInvoices = new ArrayList<>();
+    String cursor = null;
+    do {
+      SearchInvoicesRequest request = new SearchInvoicesRequest.Builder(new InvoiceQuery.Builder(
+          new InvoiceFilter.Builder(ImmutableList.of(locationId)).build())
+          .sort(new InvoiceSort.Builder("INVOICE_SORT_DATE").order("DESC").build())
+          .build()).limit(INVOICE_SEARCH_PAGE_SIZE).cursor(cursor).build();
+      SearchInvoicesResponse searchResponse = retries.call("square.searchInvoices",
+          () -> client.getInvoicesApi().searchInvoices(request));
+      metrics.endpoint("square.searchInvoices").page();
+      cursor = searchResponse.getCursor();
+      if (searchResponse.getErrors() != null && !searchResponse.getErrors().isEmpty()) {
+        searchResponse
+            .getErrors()
+            .forEach(error -> System.err.println(error.getCategory() + " " + error.getDetail()));
         continue;
       }
-      String cursor = null;
-      do {
-        SearchInvoicesResponse searchResponse = client
-            .getInvoicesApi()
-            .searchInvoices(new SearchInvoicesRequest.Builder(new InvoiceQuery.Builder(new InvoiceFilter.Builder(
-                ImmutableList.of(locationId)).customerIds(ImmutableList.of(entry.getKey())).build())
-                .sort(new InvoiceSort.Builder("INVOICE_SORT_DATE").order("DESC").build())
-                .build()).cursor(cursor).build());
-        cursor = searchResponse.getCursor();
-        if (searchResponse.getErrors() != null && !searchResponse.getErrors().isEmpty()) {
-          searchResponse
-              .getErrors()
-              .forEach(error -> System.err.println(error.getCategory() + " " + error.getDetail()));
-          continue;
+      if (searchResponse.getInvoices() == null) {
+        continue;
+      }
+      for (Invoice invoice : searchResponse.getInvoices()) {
+        if (Instant.parse(invoice.getCreatedAt()).isBefore(earliestTime)) {
+          // Earlier than time boundary, and so is everything on the following pages.
+          cursor = null;
+          break;
         }
-        if (searchResponse.getInvoices() == null) {
+        if (!invoice.getStatus().equals("UNPAID") || invoice.getPrimaryRecipient() == null ||
+            !customerIds.contains(invoice.getPrimaryRecipient().getCustomerId()) ||
+            published.contains(invoice.getId()) ||
+            journal.contains(SendJournal.Kind.CANCEL, invoice.getId())) {
           continue;
         }
-        Instant earliestTime = Instant.now().minus(Duration.ofDays(365));
-        for (Invoice invoice : searchResponse.getInvoices()) {
-          if (Instant.parse(invoice.getCreatedAt()).isBefore(earliestTime)) {
-            // Earlier than time boundary
-            break;
-          }
-          if (!invoice.getStatus().equals("UNPAID")) {
-            continue;
-          }
-          String invoiceId = invoice.getId();
-          int version = invoice.getVersion();
-          CancelInvoiceResponse cancelInvoiceResponse = client
-              .getInvoicesApi()
-              .cancelInvoice(invoiceId, new CancelInvoiceRequest.Builder(version).build());
-          if (cancelInvoiceResponse.getErrors() != null &&
-              !cancelInvoiceResponse.getErrors().isEmpty()) {
-            cancelInvoiceResponse
-                .getErrors()
-                .forEach(error -> System.err.println(
-                    error.getCategory() + " " + error.getDetail()));
-          }
-        }
-      } while (cursor != null);
-    }
+        unpaidInvoices.add(invoice);
+      }
+    } while (cursor != null);
+
+    forEachConcurrently(unpaidInvoices,
+        invoice -> retries
+            .callAsync("square.cancelInvoice",
+                () -> client
+                    .getInvoicesApi()
+                    .cancelInvoiceAsync(invoice.getId(),
+                        new CancelInvoiceRequest.Builder(invoice.getVersion()).build()))
+            .handle((response, e) -> {
+              if (e != null) {
+                System.err.println("Failed to cancel invoice " + invoice.getId() + ": " +
+                    e.getMessage());
+              } else if (response.getErrors() != null && !response.getErrors().isEmpty()) {
+                response
+                    .getErrors()
+                    .forEach(error -> System.err.println(
+                        error.getCategory() + " " + error.getDetail()));
+              } else {
+                try {
+                  journal.record(SendJournal.Kind.CANCEL, invoice.getId());
+                } catch (IOException journalError) {
+                  System.err.println("Failed to record cancellation of invoice " +
+                      invoice.getId() + ": " + journalError.getMessage());
+                }
+              }
+              return null;
+            }));
   }
 
-  public void createAndSendInvoices(
-      List<Invoices.InvoiceEmail> invoices, String locationId) throws IOException, ApiException {
-    Map<String, String> groups = getMemberGroups();
-    for (Invoices.InvoiceEmail entry : invoices) {
-      if (entry
-          .member()
-          .customer()
-          .getGroupIds()
-          .stream()
-          .map(groups::get)
-          .noneMatch(AUTOINVOICE_GROUP::equals)) {
-        continue;
-      }
+  /**
+   * Creates, invoices and publishes an order for every AutoInvoice member that owes dues for the
+   * billing period starting on {@code periodStart}.
+   *
+   * <p>Each member's calls are chained through the async Square API, so a member's next call is
+   * sent as soon as the previous one completes, with up to {@code maxConcurrentRequests} members
+   * in flight at once. Calls are keyed by member and period, so throttled or failed calls are
+   * retried, and the whole method can be run again, without invoicing anyone twice.
+   *
+   * @return the members that could not be invoiced, sorted by name
+   */
+  public ImmutableList<InvoiceFailure> createAndSendInvoices(
+      List<Invoices.InvoiceEmail> invoices, String locationId,
+      LocalDate periodStart) throws IOException, ApiException {
+    return createAndSendInvoices(invoices, locationId, SendJournal.inMemory(periodStart));
+  }
 
-      if (entry.owed().isEmpty()) {
-        continue;
-      }
+  /**
+   * Invoices members as above for the journal's period, skipping members whose invoice
+   * {@code journal} records as published and recording each invoice published.
+   */
+  ImmutableList<InvoiceFailure> createAndSendInvoices(
+      List<Invoices.InvoiceEmail> invoices, String locationId,
+      SendJournal journal) throws IOException, ApiException {
+    List<Invoices.InvoiceEmail> toSend = invoices
+        .stream()
+        .filter(entry -> entry.member().autoInvoice())
+        .filter(entry -> !entry.owed().isEmpty())
+        .filter(entry -> !journal.contains(SendJournal.Kind.PUBLISH,
+            entry.member().customer().getId()))
+        .collect(ImmutableList.toImmutableList());
 
-      Order order = new Order.Builder(locationId)
-          .customerId(entry.member().customer().getId())
-          .lineItems(ImmutableList.of(new OrderLineItem.Builder(String.valueOf(entry.owed().size()))
-              .name("Dues")
-              .basePriceMoney(new Money(Long.valueOf(entry.owed().iterator().next().amount() * 100),
-                  "USD"))
-              .build()))
-          .build();
-      CreateOrderResponse orderResponse = client
-          .getOrdersApi()
-          .createOrder(new CreateOrderRequest(order, Instant.now().toString()));
+    Queue<InvoiceFailure> failures = new ConcurrentLinkedQueue<>();
+    forEachConcurrently(toSend,
+        entry -> sendInvoice(entry, locationId, journal).exceptionally(e -> {
+      Throwable cause = unwrap(e);
+      failures.add(cause instanceof StageException ?
+          InvoiceFailure.create(entry.member(),
+              ((StageException) cause).stage,
+              cause.getMessage()) :
+          InvoiceFailure.create(entry.member(), "unknown", String.valueOf(cause)));
+      return null;
+    }));
+    return failures
+        .stream()
+        .sorted(Comparator.comparing(f -> f.member().name()))
+        .collect(ImmutableList.toImmutableList());
+  }
 
-      if (orderResponse.getErrors() != null && !orderResponse.getErrors().isEmpty()) {
-        orderResponse
-            .getErrors()
-            .forEach(error -> System.err.println(error.getCategory() + " " + error.getDetail()));
-        continue;
-      }
+  private CompletableFuture<PublishInvoiceResponse> sendInvoice(
+      Invoices.InvoiceEmail entry, String locationId, SendJournal journal) {
+    LocalDate periodStart = journal.periodStart();
+    String customerId = entry.member().customer().getId();
+    Order order = new Order.Builder(locationId)
+        .customerId(customerId)
+        .lineItems(ImmutableList.of(new OrderLineItem.Builder(String.valueOf(entry.owed().size()))
+            .name("Dues")
+            .basePriceMoney(new Money(Long.valueOf(entry.owed().iterator().next().amount() * 100),
+                "USD"))
+            .build()))
+        .build();
+    CreateOrderRequest orderRequest = new CreateOrderRequest(order,
+        idempotencyKey("createOrder", customerId, periodStart));
+    return checkStage("createOrder",
+        retries.callAsync("square.createOrder",
+            () -> client.getOrdersApi().createOrderAsync(orderRequest)),
+        CreateOrderResponse::getErrors)
+        .thenCompose(orderResponse -> {
+          CreateInvoiceRequest invoiceRequest =
+              createInvoiceRequest(orderResponse.getOrder().getId(),
+                  customerId,
+                  locationId,
+                  idempotencyKey("createInvoice", customerId, periodStart));
+          return checkStage("createInvoice",
+              retries.callAsync("square.createInvoice",
+                  () -> client.getInvoicesApi().createInvoiceAsync(invoiceRequest)),
+              CreateInvoiceResponse::getErrors);
+        })
+        .thenCompose(invoiceResponse -> {
+          Invoice invoice = invoiceResponse.getInvoice();
+          PublishInvoiceRequest publishRequest = new PublishInvoiceRequest(invoice.getVersion(),
+              idempotencyKey("publishInvoice", customerId, periodStart));
+          return checkStage("publishInvoice",
+              retries.callAsync("square.publishInvoice",
+                  () -> client.getInvoicesApi().publishInvoiceAsync(invoice.getId(),
+                      publishRequest)),
+              PublishInvoiceResponse::getErrors).thenApply(published -> {
+            try {
+              journal.record(SendJournal.Kind.PUBLISH, customerId, invoice.getId());
+            } catch (IOException e) {
+              throw new StageException("journal",
+                  "Published " + invoice.getId() + " but could not record it: " + e.getMessage());
+            }
+            return published;
+          });
+        });
+  }
 
-      CreateInvoiceResponse invoiceResponse = client
-          .getInvoicesApi()
-          .createInvoice(new CreateInvoiceRequest.Builder(new Invoice.Builder()
-              .orderId(orderResponse.getOrder().getId())
-              .locationId(locationId)
-              .primaryRecipient(new InvoiceRecipient.Builder()
-                  .customerId(entry.member().customer().getId())
-                  .build())
-              .paymentRequests(ImmutableList.of(new InvoicePaymentRequest.Builder()
-                  .requestMethod("EMAIL")
-                  .requestType("BALANCE")
-                  .dueDate(LocalDate.now().toString())
-                  .tippingEnabled(false)
-                  .build()))
-              .acceptedPaymentMethods(new InvoiceAcceptedPaymentMethods.Builder()
-                  .card(true)
-                  .bankAccount(true)
-                  .build())
-              .build()).idempotencyKey(Instant.now().toString()).build());
-
-      if (invoiceResponse.getErrors() != null && !invoiceResponse.getErrors().isEmpty()) {
-        invoiceResponse
-            .getErrors()
-            .forEach(error -> System.err.println(error.getCategory() + " " + error.getDetail()));
-        continue;
+  private static CreateInvoiceRequest createInvoiceRequest(
+      String orderId, String customerId, String locationId, String idempotencyKey) {
+    return new CreateInvoiceRequest.Builder(new Invoice.Builder()
+        .orderId(orderId)
+        .locationId(locationId)
+        .primaryRecipient(new InvoiceRecipient.Builder().customerId(customerId).build())
+        .paymentRequests(ImmutableList.of(new InvoicePaymentRequest.Builder()
+            .requestMethod("EMAIL")
+            .requestType("BALANCE")
+            .dueDate(LocalDate.now().toString())
+            .tippingEnabled(false)
+            .build()))
+        .acceptedPaymentMethods(new InvoiceAcceptedPaymentMethods.Builder()
+            .card(true)
+            .bankAccount(true)
+            .build())
+        .build()).idempotencyKey(idempotencyKey).build();
+  }
+
+  /**
+   * Fails {@code future} with a {@link StageException} naming {@code stage} if the call threw or
+   * its response carries errors.
+   */
+  private static <R> CompletableFuture<R> checkStage(
+      String stage, CompletableFuture<R> future,
+      Function<R, List<com.squareup.square.models.Error>> errors) {
+    return future.handle((response, e) -> {
+      if (e != null) {
+        throw new StageException(stage, String.valueOf(unwrap(e).getMessage()));
+      }
+      List<com.squareup.square.models.Error> responseErrors = errors.apply(response);
+      if (responseErrors != null && !responseErrors.isEmpty()) {
+        throw new StageException(stage,
+            responseErrors
+                .stream()
+                .map(error -> error.getCategory() + " " + error.getDetail())
+                .collect(Collectors.joining("; ")));
       }
+      return response;
+    });
+  }
 
-      PublishInvoiceResponse publishResponse = client
-          .getInvoicesApi()
-          .publishInvoice(invoiceResponse.getInvoice().getId(),
-              new PublishInvoiceRequest(0, Instant.now().toString()));
+  private static Throwable unwrap(Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+  }
 
-      if (publishResponse.getErrors() != null && !publishResponse.getErrors().isEmpty()) {
-        publishResponse
-            .getErrors()
-            .forEach(error -> System.err.println(error.getCategory() + " " + error.getDetail()));
-        continue;
+  /**
+   * Starts {@code call} for every item, keeping at most {@code maxConcurrentRequests} of the
+   * returned futures incomplete at once, and waits for all of them to finish.
+   */
+  private <T> void forEachConcurrently(
+      List<T> items, Function<T, CompletableFuture<?>> call) {
+    Semaphore permits = new Semaphore(maxConcurrentRequests);
+    List<CompletableFuture<?>> futures = new ArrayList<>();
+    for (T item : items) {
+      permits.acquireUninterruptibly();
+      CompletableFuture<?> future;
+      try {
+        future = call.apply(item);
+      } catch (RuntimeException e) {
+        permits.release();
+        throw e;
       }
+      futures.add(future.whenComplete((result, e) -> permits.release()));
+    }
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+  }
+
+  /** A member whose invoice could not be created or sent. */
+  @AutoValue
+  public abstract static class InvoiceFailure {
+    static InvoiceFailure create(Member member, String stage, String message) {
+      return new lu.zhe.kyudo.AutoValue_SquareApiClient_InvoiceFailure(member, stage, message);
+    }
+
+    public abstract Member member();
+
+    /** The call that failed, e.g. {@code createOrder}. */
+    public abstract String stage();
+
+    public abstract String message();
+
+    @Override
+    public String toString() {
+      return member().name() + " (" + stage() + "): " + message();
+    }
+  }
+
+  /** Thrown inside an invoice pipeline to record which call failed. */
+  private static class StageException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String stage;
+
+    StageException(String stage, String message) {
+      super(message);
+      this.stage = stage;
     }
   }
 }
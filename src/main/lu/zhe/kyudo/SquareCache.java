@@ -0,0 +1,180 @@
+package lu.zhe.kyudo;
+
+import com.fasterxml.jackson.core.type.*;
+import com.fasterxml.jackson.databind.*;
+import com.fasterxml.jackson.databind.node.*;
+import com.google.common.annotations.*;
+import com.google.common.base.*;
+import com.google.common.cache.*;
+import com.google.common.collect.*;
+import com.squareup.square.exceptions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Cache of Square reference data, the customer groups and customers, which rarely changes while
+ * invoices are being computed and sent.
+ *
+ * <p>Each kind of entry expires after its own time to live, and entries are evicted once they
+ * hold more than a maximum number of items between them. An entry may also be loaded under a
+ * key, such as the filter it was loaded with, and is only reused for the same key. With a
+ * directory, entries are also stored there as JSON, so later runs reuse them until they expire.
+ *
+ * <p>Stored customers include names and email addresses, in plain text. Where the file system
+ * supports POSIX permissions, the directory is created, and each file written, so that only
+ * their owner can read them.
+ */
+final class SquareCache {
+  private static final ObjectMapper JSON = new ObjectMapper();
+  private static final Duration DEFAULT_GROUPS_TTL = Duration.ofHours(1);
+  private static final Duration DEFAULT_CUSTOMERS_TTL = Duration.ofMinutes(10);
+  private static final long MAX_ITEMS = 100_000;
+
+  /** A kind of cached reference data. */
+  enum Kind {
+    GROUPS,
+    CUSTOMERS
+  }
+
+  private final Map<Kind, Duration> ttls;
+  /** Where entries are stored between runs, or null if they are only kept in memory. */
+  private final Path directory;
+  private final Clock clock;
+  private final Cache<Kind, Entry> entries;
+
+  @VisibleForTesting
+  SquareCache(Map<Kind, Duration> ttls, Path directory, long maxItems, Clock clock) {
+    this.ttls = Maps.immutableEnumMap(ttls);
+    this.directory = directory;
+    this.clock = clock;
+    this.entries = CacheBuilder
+        .newBuilder()
+        // A single segment, so that the limit applies to all entries rather than to each segment.
+        .concurrencyLevel(1)
+        .maximumWeight(maxItems)
+        .weigher((Kind kind, Entry entry) -> entry.size)
+        .build();
+  }
+
+  /** Creates a cache that keeps entries in memory for the default times to live. */
+  static SquareCache inMemory() {
+    return new SquareCache(ImmutableMap.of(Kind.GROUPS,
+        DEFAULT_GROUPS_TTL,
+        Kind.CUSTOMERS,
+        DEFAULT_CUSTOMERS_TTL), null, MAX_ITEMS, Clock.systemUTC());
+  }
+
+  /**
+   * Creates a cache that keeps groups and customers for the given times to live, storing them in
+   * {@code directory} if it is not null.
+   */
+  static SquareCache create(Path directory, Duration groupsTtl, Duration customersTtl) {
+    return new SquareCache(ImmutableMap.of(Kind.GROUPS, groupsTtl, Kind.CUSTOMERS, customersTtl),
+        directory,
+        MAX_ITEMS,
+        Clock.systemUTC());
+  }
+
+  /**
+   * Returns the cached value of {@code kind}, or loads and caches it with {@code loader} if there
+   * is none that is still fresh.
+   *
+   * <p>Loads are serialized, so concurrent callers share a single load.
+   */
+  <T> T get(Kind kind, TypeReference<T> type, Loader<T> loader) throws IOException, ApiException {
+    return get(kind, "", type, loader);
+  }
+
+  /**
+   * Returns the cached value of {@code kind} as above, but only reuses a value that was loaded
+   * under the same {@code key}; a value of another key is replaced.
+   */
+  synchronized <T> T get(
+      Kind kind, String key, TypeReference<T> type, Loader<T> loader)
+      throws IOException, ApiException {
+    Instant now = clock.instant();
+    Entry entry = entries.getIfPresent(kind);
+    if (entry == null || !entry.key.equals(key) || !now.isBefore(entry.expiresAt)) {
+      entry = read(kind, key, type, now);
+    }
+    if (entry == null) {
+      T value = loader.load();
+      entry = new Entry(key, value, now.plus(ttls.get(kind)));
+      write(kind, entry);
+    }
+    entries.put(kind, entry);
+    @SuppressWarnings("unchecked") T value = (T) entry.value;
+    return value;
+  }
+
+  /**
+   * Reads a fresh entry of {@code key} stored by an earlier run, or returns null if there is
+   * none.
+   */
+  private Entry read(Kind kind, String key, TypeReference<?> type, Instant now) {
+    if (directory == null || !Files.exists(file(kind))) {
+      return null;
+    }
+    try {
+      JsonNode stored = JSON.readTree(file(kind).toFile());
+      Instant expiresAt = Instant.parse(stored.path("expiresAt").asText());
+      if (!stored.path("key").asText().equals(key) || !now.isBefore(expiresAt)) {
+        return null;
+      }
+      return new Entry(key, JSON.readValue(JSON.treeAsTokens(stored.get("value")),
+          JSON.getTypeFactory().constructType(type)), expiresAt);
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Ignoring unreadable cache file " + file(kind) + ": " + e);
+      return null;
+    }
+  }
+
+  private void write(Kind kind, Entry entry) throws IOException {
+    if (directory == null) {
+      return;
+    }
+    ObjectNode stored = JSON
+        .createObjectNode()
+        .put("key", entry.key)
+        .put("expiresAt", entry.expiresAt.toString());
+    stored.set("value", JSON.valueToTree(entry.value));
+    if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      Files.createDirectories(directory,
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    } else {
+      Files.createDirectories(directory);
+    }
+    AtomicFiles.write(file(kind), temp -> JSON.writeValue(temp.toFile(), stored));
+  }
+
+  private Path file(Kind kind) {
+    return directory.resolve(Ascii.toLowerCase(kind.name()) + ".json");
+  }
+
+  /** Fetches a value from Square. */
+  interface Loader<T> {
+    T load() throws IOException, ApiException;
+  }
+
+  private static final class Entry {
+    /** Key the value was loaded under. */
+    final String key;
+    final Object value;
+    final Instant expiresAt;
+    /** Number of items held, which entries are evicted by. */
+    final int size;
+
+    Entry(String key, Object value, Instant expiresAt) {
+      this.key = key;
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.size = value instanceof Collection ?
+          ((Collection<?>) value).size() :
+          value instanceof Map ? ((Map<?, ?>) value).size() : 1;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package lu.zhe.kyudo;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
+import com.squareup.square.exceptions.*;
+
+import java.io.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the stages of an invoice run and records how long each one took.
+ *
+ * <p>Stages that only depend on data already fetched can be started in the background with
+ * {@link #start} so that independent remote reads overlap.
+ */
+class Stages implements AutoCloseable {
+  private final ExecutorService executor;
+  private final Metrics metrics;
+  private final Map<String, Duration> timings = Collections.synchronizedMap(new LinkedHashMap<>());
+
+  private Stages(ExecutorService executor, Metrics metrics) {
+    this.executor = executor;
+    this.metrics = metrics;
+  }
+
+  /** Creates stages that run at most {@code threads} background stages at once. */
+  static Stages create(int threads) {
+    return create(threads, new Metrics());
+  }
+
+  /** Creates stages as above that also record their timings in {@code metrics}. */
+  static Stages create(int threads, Metrics metrics) {
+    return new Stages(Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("stage-%d").build()), metrics);
+  }
+
+  /** Runs {@code stage} on the calling thread. */
+  <T> T run(String name, Stage<T> stage) throws IOException, ApiException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    try {
+      return stage.run();
+    } finally {
+      Duration elapsed = stopwatch.elapsed();
+      timings.put(name, elapsed);
+      metrics.stage(name, elapsed);
+    }
+  }
+
+  /** Starts {@code stage} in the background. Use {@link #join} to wait for its result. */
+  <T> CompletableFuture<T> start(String name, Stage<T> stage) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return run(name, stage);
+      } catch (IOException | ApiException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+
+  /** Waits for a stage started with {@link #start}, rethrowing the exception it failed with. */
+  static <T> T join(CompletableFuture<T> future) throws IOException, ApiException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class, ApiException.class);
+      throw e;
+    }
+  }
+
+  /** How long each finished stage took, in the order they finished. */
+  ImmutableMap<String, Duration> timings() {
+    synchronized (timings) {
+      return ImmutableMap.copyOf(timings);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /** A unit of work that may call the remote APIs. */
+  interface Stage<T> {
+    T run() throws IOException, ApiException;
+  }
+}
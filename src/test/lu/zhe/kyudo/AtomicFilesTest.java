@@ -0,0 +1,52 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import org.junit.*;
+import org.junit.rules.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+import static com.google.common.truth.Truth.*;
+import static org.junit.Assert.*;
+
+/** Unit tests for {@link AtomicFiles}. */
+@RunWith(JUnit4.class)
+public class AtomicFilesTest {
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void writeLinesReplacesFile() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("file");
+    AtomicFiles.writeLines(path, ImmutableList.of("old"));
+
+    AtomicFiles.writeLines(path, ImmutableList.of("new", "lines"));
+
+    assertThat(Files.readAllLines(path, StandardCharsets.UTF_8))
+        .containsExactly("new", "lines")
+        .inOrder();
+    assertThat(temporaryFolder.getRoot().list()).asList().containsExactly("file");
+  }
+
+  @Test
+  public void failedWriteKeepsPreviousFileAndDeletesTemporaryFile() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("file");
+    AtomicFiles.writeLines(path, ImmutableList.of("old"));
+
+    try {
+      AtomicFiles.write(path, temp -> {
+        Files.write(temp, ImmutableList.of("partial"), StandardCharsets.UTF_8);
+        throw new IOException("disk full");
+      });
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+
+    assertThat(Files.readAllLines(path, StandardCharsets.UTF_8)).containsExactly("old");
+    assertThat(temporaryFolder.getRoot().list()).asList().containsExactly("file");
+  }
+}
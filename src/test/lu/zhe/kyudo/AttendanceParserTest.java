@@ -0,0 +1,73 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import com.squareup.square.models.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.time.*;
+import java.time.format.*;
+
+import static com.google.common.truth.Truth.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/** Unit tests for {@link AttendanceParser}. */
+@RunWith(JUnit4.class)
+public class AttendanceParserTest {
+  @Test
+  public void parseEpochDayMatchesJavaTime() {
+    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("M/d/yyyy");
+    for (LocalDate date = LocalDate.parse("1899-01-01"); date.getYear() < 2101;
+        date = date.plusDays(1)) {
+      assertThat(AttendanceParser.parseEpochDay(date.format(formatter)))
+          .isEqualTo(date.toEpochDay());
+    }
+    assertThat(AttendanceParser.parseEpochDay("02/01/2018"))
+        .isEqualTo(LocalDate.parse("2018-02-01").toEpochDay());
+  }
+
+  @Test
+  public void parseEpochDayRejectsMalformedDates() {
+    for (String text : ImmutableList.of("",
+        "2018-02-01",
+        "2/30/2018",
+        "2/29/2019",
+        "13/1/2018",
+        "0/1/2018",
+        "1//2018",
+        "1/1/18",
+        "1/1/20180",
+        "123/1/2018",
+        "1/1/2018 ")) {
+      try {
+        AttendanceParser.parseEpochDay(text);
+        fail("Expected DateTimeParseException for " + text);
+      } catch (DateTimeParseException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void countSkipsUnknownAndEmptyNames() {
+    Customer johnDoe = mock(Customer.class);
+    when(johnDoe.getId()).thenReturn("asdf");
+    when(johnDoe.getGivenName()).thenReturn("John");
+    when(johnDoe.getFamilyName()).thenReturn("Doe");
+    when(johnDoe.getGroupIds()).thenReturn(ImmutableList.of("associate"));
+    Member member = Member.create(johnDoe, ImmutableMap.of("associate", "ASSOCIATE"));
+    AttendanceCache cache = AttendanceCache.inMemory();
+    int day = (int) LocalDate.parse("2018-02-01").toEpochDay();
+    cache.add(day, "John Doe, Jane Roe");
+    cache.add(day, "");
+    cache.add(day + 1, "John Doe, , John Do");
+
+    MemberVector counts = AttendanceParser
+        .create(MemberDatabase.builder().addMember(member).build())
+        .count(cache, LocalDate.parse("2018-02-01"), LocalDate.parse("2018-03-31"));
+
+    assertThat(counts.get(0)).isEqualTo(2);
+    assertThat(counts.toMultiset()).containsExactly(member, member);
+  }
+}
@@ -0,0 +1,110 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import org.junit.*;
+import org.junit.rules.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+import static com.google.common.truth.Truth.*;
+
+/** Unit tests for {@link BalanceLedger}. */
+@RunWith(JUnit4.class)
+public class BalanceLedgerTest {
+  private static final LocalDate DAY = LocalDate.parse("2021-01-31");
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void balanceSumsEventsUpToDate() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("balances");
+    try (BalanceLedger ledger = BalanceLedger.open(path)) {
+      ledger.append(ImmutableList.of(event(BalanceLedger.Kind.CARRYOVER, DAY, "asdf", 4000),
+          event(BalanceLedger.Kind.CHARGE, DAY.plusMonths(2), "asdf", -8000),
+          event(BalanceLedger.Kind.PAYMENT, DAY.plusMonths(2), "asdf", 2000),
+          event(BalanceLedger.Kind.PAYMENT, DAY.plusMonths(2), "foobar", 1500)));
+    }
+
+    try (BalanceLedger ledger = BalanceLedger.open(path)) {
+      assertThat(ledger.firstDate()).isEqualTo(DAY);
+      assertThat(ledger.balance("asdf", DAY.minusDays(1))).isEqualTo(0);
+      assertThat(ledger.balance("asdf", DAY)).isEqualTo(4000);
+      assertThat(ledger.balance("asdf", DAY.plusMonths(2))).isEqualTo(-2000);
+      assertThat(ledger.balance("foobar", DAY.plusYears(1))).isEqualTo(1500);
+      assertThat(ledger.balance("qux", DAY)).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void replaceDateZeroesEventsNotReplaced() throws IOException {
+    BalanceLedger ledger = BalanceLedger.inMemory();
+    ledger.append(ImmutableList.of(event(BalanceLedger.Kind.CHARGE, DAY, "asdf", -4000),
+        event(BalanceLedger.Kind.CHARGE, DAY, "foobar", -4000)));
+
+    ledger.replaceDate(DAY, ImmutableList.of(event(BalanceLedger.Kind.CHARGE, DAY, "asdf", -8000)));
+
+    assertThat(ledger.balance("asdf", DAY)).isEqualTo(-8000);
+    assertThat(ledger.balance("foobar", DAY)).isEqualTo(0);
+  }
+
+  @Test
+  public void snapshotsMatchFullSums() throws IOException {
+    BalanceLedger ledger = BalanceLedger.inMemory();
+    Random random = new Random(1);
+    List<BalanceLedger.Event> events = new ArrayList<>();
+    for (int i = 0; i < 10 * BalanceLedger.SNAPSHOT_INTERVAL; ++i) {
+      events.add(event(BalanceLedger.Kind.values()[random.nextInt(3)],
+          DAY.plusDays(random.nextInt(365)),
+          "customer" + random.nextInt(20),
+          random.nextInt(10000) - 5000));
+    }
+    ledger.append(events);
+
+    for (int day = -1; day <= 365; day += 7) {
+      LocalDate date = DAY.plusDays(day);
+      for (int customer = 0; customer < 20; ++customer) {
+        String id = "customer" + customer;
+        int expected = 0;
+        Set<List<Object>> keys = new HashSet<>();
+        // Later events replace earlier ones of the same kind, date and customer.
+        for (int i = events.size() - 1; i >= 0; --i) {
+          BalanceLedger.Event event = events.get(i);
+          if (event.customerId().equals(id) && !event.date().isAfter(date) &&
+              keys.add(ImmutableList.of(event.kind(), event.date()))) {
+            expected += event.cents();
+          }
+        }
+        assertThat(ledger.balance(id, date)).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  public void dropsTornLine() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("balances");
+    Files.write(path,
+        ("PAYMENT\t" + DAY + "\tasdf\t4000\nPAYMENT\t" + DAY + "\tfoo").getBytes(
+            StandardCharsets.UTF_8));
+
+    try (BalanceLedger ledger = BalanceLedger.open(path)) {
+      assertThat(ledger.size()).isEqualTo(1);
+      ledger.append(ImmutableList.of(event(BalanceLedger.Kind.PAYMENT, DAY, "foobar", 100)));
+    }
+
+    assertThat(Files.readAllLines(path, StandardCharsets.UTF_8)).containsExactly(
+        "PAYMENT\t" + DAY + "\tasdf\t4000",
+        "PAYMENT\t" + DAY + "\tfoobar\t100").inOrder();
+  }
+
+  private static BalanceLedger.Event event(
+      BalanceLedger.Kind kind, LocalDate date, String customerId, int cents) {
+    return BalanceLedger.Event.create(kind, date, customerId, cents);
+  }
+}
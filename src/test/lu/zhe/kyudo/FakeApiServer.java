@@ -0,0 +1,1169 @@
+package lu.zhe.kyudo;
+
+import com.fasterxml.jackson.databind.*;
+import com.fasterxml.jackson.databind.node.*;
+import com.google.api.client.json.jackson2.*;
+import com.google.api.services.gmail.*;
+import com.google.api.services.sheets.v4.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.io.*;
+import com.google.common.util.concurrent.*;
+import com.google.devtools.common.options.*;
+import com.squareup.square.*;
+import com.sun.net.httpserver.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+/**
+ * In-process stand-in for the Square, Sheets and Gmail endpoints used by {@link KyudoInvoices}.
+ *
+ * <p>Serves a synthetic club whose attendance, orders and previous accounts fall in the two
+ * months starting at the configured start date. Square endpoints are served under
+ * {@link #squareUrl()} and Google endpoints under {@link #googleRootUrl()}, so the real clients
+ * can be pointed at it. Every request waits for the configured latency, listings are paged at
+ * the configured page size, and every {@code throttleEvery}th API call is rejected with 429.
+ */
+final class FakeApiServer implements AutoCloseable {
+  static final String LOCATION_ID = "location";
+  static final String ATTENDANCE_SHEET_ID = "attendance";
+  static final String INVOICE_SHEET_ID = "invoices";
+  static final String ATTENDANCE_TAB = "Form Responses 1";
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+  /** Gmail quota spent by clients of this server: a full batch of sends every 10ms. */
+  private static final double GMAIL_QUOTA_UNITS_PER_SECOND = 500_000;
+  private static final ZoneId ZONE = ZoneId.of("America/New_York");
+  private static final DateTimeFormatter ATTENDANCE_DATE_FORMATTER =
+      DateTimeFormatter.ofPattern("M/d/yyyy");
+  private static final ImmutableList<String> MEMBER_TYPES =
+      ImmutableList.of("Regular", "Student", "Associate", "Member");
+  private static final String AUTOINVOICE_GROUP_ID = "group-autoinvoice";
+  private static final int MAX_ORDER_SEARCH_CUSTOMERS = 10;
+  private static final Pattern INVOICE_ACTION = Pattern.compile("/v2/invoices/([^/]+)/(\\w+)");
+  private static final Pattern SPREADSHEET_VALUES =
+      Pattern.compile("/v4/spreadsheets/([^/]+)/values/([^/]+?)(:append)?");
+  private static final Pattern SPREADSHEET_BATCH_GET =
+      Pattern.compile("/v4/spreadsheets/([^/]+)/values:batchGet");
+  private static final Pattern SPREADSHEET_BATCH_UPDATE =
+      Pattern.compile("/v4/spreadsheets/([^/]+):batchUpdate");
+  private static final Pattern GMAIL_CALL = Pattern.compile("/gmail/v1/users/([^/]+)/(.+)");
+  private static final Pattern A1_RANGE = Pattern.compile("([A-Z]+)(\\d*)(?::([A-Z]+)(\\d*))?");
+  private static final Pattern FORMULA_TOKEN =
+      Pattern.compile("\\s*([A-Z]+)(?::\\1|\\d+)|\\s*(\\d+)|\\s*(.)");
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final LocalDate startDate;
+  private final Duration latency;
+  private final int pageSize;
+  private final int throttleEvery;
+  private final int retryAfterSeconds;
+
+  private final ImmutableList<ObjectNode> groups;
+  private final ImmutableList<ObjectNode> customers;
+  private final ImmutableList<ObjectNode> orders;
+
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicInteger throttled = new AtomicInteger();
+  private final AtomicInteger ordersMatched = new AtomicInteger();
+  private final AtomicInteger ids = new AtomicInteger();
+  private final ConcurrentHashMultiset<String> requests = ConcurrentHashMultiset.create();
+
+  // Mutable state, guarded by this.
+  private final Map<String, ObjectNode> invoices = new LinkedHashMap<>();
+  private final Map<String, Reply> idempotentReplies = new HashMap<>();
+  private final Map<String, Map<String, Tab>> spreadsheets = new HashMap<>();
+  private final List<String> sentEmails = new ArrayList<>();
+  private final List<String> drafts = new ArrayList<>();
+
+  private FakeApiServer(Builder builder) throws IOException {
+    this.startDate = builder.startDate;
+    this.latency = builder.latency;
+    this.pageSize = builder.pageSize;
+    this.throttleEvery = builder.throttleEvery;
+    this.retryAfterSeconds = builder.retryAfterSeconds;
+
+    Random random = new Random(builder.seed);
+    LocalDate start = builder.startDate;
+    int days = (int) (start.plusMonths(2).toEpochDay() - start.toEpochDay());
+
+    ImmutableList.Builder<ObjectNode> groupsBuilder = ImmutableList.builder();
+    for (String type : MEMBER_TYPES) {
+      groupsBuilder.add(JSON
+          .createObjectNode()
+          .put("id", "group-" + Ascii.toLowerCase(type))
+          .put("name", type));
+    }
+    groupsBuilder.add(JSON
+        .createObjectNode()
+        .put("id", AUTOINVOICE_GROUP_ID)
+        .put("name", "AutoInvoice"));
+    this.groups = groupsBuilder.build();
+
+    ImmutableList.Builder<ObjectNode> customersBuilder = ImmutableList.builder();
+    List<ObjectNode> ordersBuilder = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    Tab accounts = new Tab(0);
+    accounts.rows.add(new ArrayList<>(SheetsClient.INVOICE_SHEET_HEADERS));
+    for (int i = 0; i < builder.members; ++i) {
+      String type = MEMBER_TYPES.get(random.nextInt(MEMBER_TYPES.size()));
+      String id = "customer-" + i;
+      ObjectNode customer = JSON
+          .createObjectNode()
+          .put("id", id)
+          .put("given_name", "Given" + i)
+          .put("family_name", "Family" + i)
+          .put("email_address", "member" + i + "@example.com")
+          .put("created_at", "2019-01-01T00:00:00Z");
+      ArrayNode groupIds = customer.putArray("group_ids").add("group-" + Ascii.toLowerCase(type));
+      boolean autoInvoice = random.nextInt(5) == 0;
+      if (autoInvoice) {
+        groupIds.add(AUTOINVOICE_GROUP_ID);
+        Instant createdAt = Instant.now().minus(Duration.ofDays(30));
+        putInvoice(outstandingInvoice("invoice-seed-" + i, id, createdAt));
+      }
+      customersBuilder.add(customer);
+      String name = "Given" + i + " Family" + i;
+      names.add(name);
+
+      for (int j = 0; j < builder.ordersPerMember; ++j) {
+        int kind = random.nextInt(4);
+        ObjectNode order = JSON
+            .createObjectNode()
+            .put("id", "order-" + i + "-" + j)
+            .put("location_id", LOCATION_ID)
+            .put("customer_id", id)
+            .put("state", "COMPLETED")
+            .put("closed_at", start
+                .plusDays(random.nextInt(days))
+                .atTime(12, random.nextInt(60))
+                .atZone(ZONE)
+                .format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+        order
+            .putArray("line_items")
+            .addObject()
+            .put("name", kind == 0 ? "First Shot" : kind == 1 ? "Arrows" : "Dues")
+            .put("quantity", String.valueOf(1 + random.nextInt(2)));
+        order
+            .putArray("tenders")
+            .addObject()
+            .put("id", "tender-" + i + "-" + j)
+            .put("customer_id", id);
+        ordersBuilder.add(order);
+      }
+
+      int rate = type.equals("Associate") ? 15 : type.equals("Student") ? 20 : 40;
+      accounts.rows.add(new ArrayList<>(ImmutableList.of(name,
+          Ascii.toLowerCase(type),
+          "0",
+          "0",
+          String.valueOf(rate),
+          "0",
+          "0",
+          String.valueOf((random.nextInt(5) - 2) * rate))));
+    }
+    for (int i = 0; i < builder.nonMembers; ++i) {
+      customersBuilder.add(JSON
+          .createObjectNode()
+          .put("id", "buyer-" + i)
+          .put("given_name", "Buyer" + i)
+          .put("family_name", "Family" + i)
+          .put("created_at", "2019-01-01T00:00:00Z"));
+      ObjectNode order = JSON
+          .createObjectNode()
+          .put("id", "order-buyer-" + i)
+          .put("location_id", LOCATION_ID)
+          .put("customer_id", "buyer-" + i)
+          .put("state", "COMPLETED")
+          .put("closed_at",
+              start.atTime(12, 0).atZone(ZONE).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+      order.putArray("line_items").addObject().put("name", "Arrows").put("quantity", "1");
+      ordersBuilder.add(order);
+    }
+    this.customers = customersBuilder.build();
+    ordersBuilder.sort(Comparator.comparing(o -> OffsetDateTime
+        .parse(o.get("closed_at").asText())
+        .toInstant()));
+    this.orders = ImmutableList.copyOf(ordersBuilder);
+
+    Tab attendance = new Tab(0);
+    attendance.rows.add(new ArrayList<>(ImmutableList.of("Timestamp",
+        "Email Address",
+        "Members",
+        "Notes",
+        "Date")));
+    for (int i = 0; i < builder.attendanceRows && !names.isEmpty(); ++i) {
+      LocalDate date = start.plusDays(random.nextInt(days));
+      Set<String> present = new LinkedHashSet<>();
+      int count = 1 + random.nextInt(Math.min(10, names.size()));
+      while (present.size() < count) {
+        present.add(names.get(random.nextInt(names.size())));
+      }
+      attendance.rows.add(new ArrayList<>(ImmutableList.of(date + " 19:00:00",
+          "instructor@example.com",
+          String.join(", ", present),
+          "",
+          date)));
+    }
+    spreadsheets.put(ATTENDANCE_SHEET_ID, new LinkedHashMap<>(ImmutableMap.of(ATTENDANCE_TAB,
+        attendance)));
+    YearMonth previous = YearMonth.from(start).minusMonths(2);
+    spreadsheets.put(INVOICE_SHEET_ID,
+        new LinkedHashMap<>(ImmutableMap.of(previous + " to " + previous.plusMonths(1),
+            accounts)));
+
+    this.executor = Executors.newFixedThreadPool(builder.threads);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /** Base URL to give the Square client as its custom environment URL. */
+  String squareUrl() {
+    return "http://" + address();
+  }
+
+  /** Root URL to give Google API clients in place of the production one. */
+  String googleRootUrl() {
+    return "http://" + address() + "/";
+  }
+
+  /**
+   * Creates an invoice generator for the dataset's billing period whose clients all talk to this
+   * server, using the connection settings in {@code options}.
+   */
+  KyudoInvoices connect(
+      KyudoInvoiceOptions options) throws GeneralSecurityException, IOException {
+    return connect(options, new Metrics());
+  }
+
+  /** Creates an invoice generator as above that records every call in {@code metrics}. */
+  KyudoInvoices connect(
+      KyudoInvoiceOptions options,
+      Metrics metrics) throws GeneralSecurityException, IOException {
+    options.attendanceSheetsId = ATTENDANCE_SHEET_ID;
+    options.invoiceSheetsId = INVOICE_SHEET_ID;
+    options.locationId = LOCATION_ID;
+    options.user = "me";
+    // Gmail quota is not enforced here, so emails are only spread out as far as tests need.
+    options.gmailQuotaUnitsPerSecond = GMAIL_QUOTA_UNITS_PER_SECOND;
+    GoogleHttp http = GoogleHttp.create(options.httpMaxConnections,
+        Duration.ofSeconds(options.httpConnectTimeoutSeconds),
+        Duration.ofSeconds(options.httpReadTimeoutSeconds),
+        metrics);
+    Sheets sheets = new Sheets.Builder(http.transport(),
+        JacksonFactory.getDefaultInstance(),
+        http.initializer(null))
+        .setRootUrl(googleRootUrl())
+        .setApplicationName(KyudoInvoices.APP_NAME)
+        .build();
+    Gmail gmail = new Gmail.Builder(http.transport(),
+        JacksonFactory.getDefaultInstance(),
+        http.initializer(null))
+        .setRootUrl(googleRootUrl())
+        .setApplicationName(KyudoInvoices.APP_NAME)
+        .build();
+    SquareClient.Builder square = new SquareClient.Builder()
+        .environment(Environment.CUSTOM)
+        .customUrl(squareUrl())
+        .accessToken("fake");
+    return new KyudoInvoices(options,
+        new GmailClient(gmail,
+            options.user,
+            RateLimiter.create(options.gmailQuotaUnitsPerSecond),
+            metrics),
+        new SheetsClient(sheets),
+        SquareApiClient.create(square,
+            options.squareMaxConcurrentRequests,
+            options.squareMaxRetries,
+            metrics),
+        startDate,
+        startDate.plusMonths(2).minusDays(1),
+        metrics);
+  }
+
+  /** Creates a Gmail client that talks to this server and records every call in {@code metrics}. */
+  GmailClient gmailClient(Metrics metrics) throws GeneralSecurityException, IOException {
+    KyudoInvoiceOptions options = Options.getDefaults(KyudoInvoiceOptions.class);
+    GoogleHttp http = GoogleHttp.create(options.httpMaxConnections,
+        Duration.ofSeconds(options.httpConnectTimeoutSeconds),
+        Duration.ofSeconds(options.httpReadTimeoutSeconds),
+        metrics);
+    return new GmailClient(new Gmail.Builder(http.transport(),
+        JacksonFactory.getDefaultInstance(),
+        http.initializer(null))
+        .setRootUrl(googleRootUrl())
+        .setApplicationName(KyudoInvoices.APP_NAME)
+        .build(), "me", RateLimiter.create(GMAIL_QUOTA_UNITS_PER_SECOND), metrics);
+  }
+
+  /** Creates a Sheets client that talks to this server. */
+  SheetsClient sheetsClient() throws GeneralSecurityException, IOException {
+    KyudoInvoiceOptions options = Options.getDefaults(KyudoInvoiceOptions.class);
+    GoogleHttp http = GoogleHttp.create(options.httpMaxConnections,
+        Duration.ofSeconds(options.httpConnectTimeoutSeconds),
+        Duration.ofSeconds(options.httpReadTimeoutSeconds),
+        new Metrics());
+    return new SheetsClient(new Sheets.Builder(http.transport(),
+        JacksonFactory.getDefaultInstance(),
+        http.initializer(null))
+        .setRootUrl(googleRootUrl())
+        .setApplicationName(KyudoInvoices.APP_NAME)
+        .build());
+  }
+
+  /** Number of calls served by each endpoint, including throttled calls. */
+  ImmutableMultiset<String> requests() {
+    return ImmutableMultiset.copyOf(requests);
+  }
+
+  /** Number of calls rejected with 429. */
+  int throttled() {
+    return throttled.get();
+  }
+
+  /** Number of orders matched by order searches, counted once per search. */
+  int ordersMatched() {
+    return ordersMatched.get();
+  }
+
+  synchronized ImmutableList<String> sentEmails() {
+    return ImmutableList.copyOf(sentEmails);
+  }
+
+  synchronized ImmutableList<String> drafts() {
+    return ImmutableList.copyOf(drafts);
+  }
+
+  /** Status of every invoice, keyed by invoice id. */
+  synchronized ImmutableMap<String, String> invoiceStatuses() {
+    return invoices
+        .values()
+        .stream()
+        .collect(ImmutableMap.toImmutableMap(i -> i.get("id").asText(),
+            i -> i.get("status").asText()));
+  }
+
+  /** Raw cells of a tab, formulas unevaluated, or null if there is no such tab. */
+  synchronized ImmutableList<List<Object>> sheet(String spreadsheetId, String tabName) {
+    Tab tab = spreadsheets.getOrDefault(spreadsheetId, ImmutableMap.of()).get(tabName);
+    return tab == null ? null : ImmutableList.copyOf(tab.rows);
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private String address() {
+    return server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!latency.isZero()) {
+        Thread.sleep(latency.toMillis());
+      }
+      InputStream requestBody = exchange.getRequestBody();
+      if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+        requestBody = new GZIPInputStream(requestBody);
+      }
+      byte[] body = ByteStreams.toByteArray(requestBody);
+      String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8");
+      Reply reply = path.equals("/batch/gmail/v1") ?
+          batch(exchange.getRequestHeaders().getFirst("Content-Type"), body) :
+          call(exchange.getRequestMethod(), path, exchange.getRequestURI().getRawQuery(), body);
+      reply.headers.forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+      exchange.getResponseHeaders().add("Content-Type", reply.contentType);
+      exchange.sendResponseHeaders(reply.status, reply.body.length == 0 ? -1 : reply.body.length);
+      exchange.getResponseBody().write(reply.body);
+    } catch (Exception e) {
+      byte[] message = String.valueOf(e).getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(500, message.length);
+      exchange.getResponseBody().write(message);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /** Serves one API call, or rejects it if it is due to be throttled. */
+  private Reply call(String method, String path, String rawQuery, byte[] body) throws IOException {
+    ListMultimap<String, String> query = parseQuery(rawQuery);
+    JsonNode request = body.length == 0 ? JSON.createObjectNode() : JSON.readTree(body);
+    String endpoint = endpoint(method, path);
+    requests.add(endpoint);
+    if (throttleEvery > 0 && calls.incrementAndGet() % throttleEvery == 0) {
+      throttled.incrementAndGet();
+      Reply reply = path.startsWith("/v2/") ?
+          squareError(429, "RATE_LIMIT_ERROR", "RATE_LIMITED", "Too many requests") :
+          googleError(429, "RESOURCE_EXHAUSTED", "Rate Limit Exceeded");
+      reply.headers.put("Retry-After", String.valueOf(retryAfterSeconds));
+      return reply;
+    }
+    switch (endpoint) {
+      case "square.listCustomers":
+        return page("customers", customers, Iterables.getFirst(query.get("cursor"), null), null);
+      case "square.searchCustomers":
+        return searchCustomers(request);
+      case "square.listCustomerGroups":
+        return page("groups", groups, Iterables.getFirst(query.get("cursor"), null), null);
+      case "square.searchOrders":
+        return searchOrders(request);
+      case "square.createOrder":
+        return idempotent("createOrder", request, () -> {
+          ObjectNode order = request.get("order").deepCopy();
+          order.put("id", "order-new-" + ids.incrementAndGet()).put("state", "OPEN");
+          return json(200, JSON.createObjectNode().set("order", order));
+        });
+      case "square.searchInvoices":
+        return searchInvoices(request);
+      case "square.createInvoice":
+        return idempotent("createInvoice", request, () -> {
+          ObjectNode invoice = request.get("invoice").deepCopy();
+          invoice
+              .put("id", "invoice-new-" + ids.incrementAndGet())
+              .put("version", 0)
+              .put("status", "DRAFT")
+              .put("created_at", Instant.now().toString());
+          putInvoice(invoice);
+          return json(200, JSON.createObjectNode().set("invoice", invoice.deepCopy()));
+        });
+      case "square.publishInvoice":
+        return idempotent("publishInvoice", request, () -> updateInvoice(path, request));
+      case "square.cancelInvoice":
+        return updateInvoice(path, request);
+      case "sheets.get":
+        return getValues(path);
+      case "sheets.batchGet":
+        return batchGetValues(path, query);
+      case "sheets.append":
+        return appendValues(path, request);
+      case "sheets.batchUpdate":
+        return batchUpdate(path, request);
+      case "gmail.send":
+        return sendMessage(request.get("raw").asText());
+      case "gmail.createDraft":
+        return createDraft(request.path("message").path("raw").asText());
+      default:
+        return googleError(404, "NOT_FOUND", "No fake for " + method + " " + path);
+    }
+  }
+
+  private static String endpoint(String method, String path) {
+    switch (method + " " + path) {
+      case "GET /v2/customers":
+        return "square.listCustomers";
+      case "POST /v2/customers/search":
+        return "square.searchCustomers";
+      case "GET /v2/customers/groups":
+        return "square.listCustomerGroups";
+      case "POST /v2/orders/search":
+        return "square.searchOrders";
+      case "POST /v2/orders":
+        return "square.createOrder";
+      case "POST /v2/invoices/search":
+        return "square.searchInvoices";
+      case "POST /v2/invoices":
+        return "square.createInvoice";
+      default:
+        break;
+    }
+    Matcher invoiceAction = INVOICE_ACTION.matcher(path);
+    if (method.equals("POST") && invoiceAction.matches()) {
+      return "square." + invoiceAction.group(2) + "Invoice";
+    }
+    if (SPREADSHEET_BATCH_GET.matcher(path).matches()) {
+      return "sheets.batchGet";
+    }
+    Matcher values = SPREADSHEET_VALUES.matcher(path);
+    if (values.matches()) {
+      return values.group(3) == null ? "sheets.get" : "sheets.append";
+    }
+    if (SPREADSHEET_BATCH_UPDATE.matcher(path).matches()) {
+      return "sheets.batchUpdate";
+    }
+    Matcher gmail = GMAIL_CALL.matcher(path);
+    if (gmail.matches()) {
+      return gmail.group(2).equals("messages/send") ? "gmail.send" :
+          gmail.group(2).equals("drafts") ? "gmail.createDraft" : "gmail.unknown";
+    }
+    return "unknown";
+  }
+
+  private Reply searchCustomers(JsonNode request) {
+    Set<String> anyGroups = new HashSet<>();
+    request
+        .path("query")
+        .path("filter")
+        .path("group_ids")
+        .path("any")
+        .forEach(id -> anyGroups.add(id.asText()));
+    List<ObjectNode> matching = new ArrayList<>();
+    for (ObjectNode customer : customers) {
+      boolean matches = anyGroups.isEmpty();
+      for (JsonNode groupId : customer.path("group_ids")) {
+        matches |= anyGroups.contains(groupId.asText());
+      }
+      if (matches) {
+        matching.add(customer);
+      }
+    }
+    return page("customers", matching, text(request, "cursor"), limit(request));
+  }
+
+  private Reply searchOrders(JsonNode request) {
+    JsonNode filter = request.path("query").path("filter");
+    Set<String> states = new HashSet<>();
+    filter.path("state_filter").path("states").forEach(s -> states.add(s.asText()));
+    Set<String> customerIds = new HashSet<>();
+    filter
+        .path("customer_filter")
+        .path("customer_ids")
+        .forEach(id -> customerIds.add(id.asText()));
+    if (customerIds.size() > MAX_ORDER_SEARCH_CUSTOMERS) {
+      return squareError(400,
+          "INVALID_REQUEST_ERROR",
+          "ARRAY_LENGTH_TOO_LONG",
+          "At most " + MAX_ORDER_SEARCH_CUSTOMERS + " customer ids may be searched for");
+    }
+    JsonNode closedAt = filter.path("date_time_filter").path("closed_at");
+    Instant start = closedAt.has("start_at") ?
+        OffsetDateTime.parse(closedAt.get("start_at").asText()).toInstant() : Instant.MIN;
+    Instant end = closedAt.has("end_at") ?
+        OffsetDateTime.parse(closedAt.get("end_at").asText()).toInstant() : Instant.MAX;
+    Set<String> locationIds = new HashSet<>();
+    request.path("location_ids").forEach(id -> locationIds.add(id.asText()));
+
+    List<ObjectNode> matching = new ArrayList<>();
+    for (ObjectNode order : orders) {
+      Instant closed = OffsetDateTime.parse(order.get("closed_at").asText()).toInstant();
+      if (locationIds.contains(order.get("location_id").asText()) &&
+          (states.isEmpty() || states.contains(order.get("state").asText())) &&
+          (customerIds.isEmpty() || customerIds.contains(order.get("customer_id").asText())) &&
+          !closed.isBefore(start) && !closed.isAfter(end)) {
+        matching.add(order);
+      }
+    }
+    if (!request.hasNonNull("cursor")) {
+      ordersMatched.addAndGet(matching.size());
+    }
+    if ("DESC".equals(request.path("query").path("sort").path("sort_order").asText(null))) {
+      Collections.reverse(matching);
+    }
+    return page("orders", matching, text(request, "cursor"), limit(request));
+  }
+
+  private synchronized Reply searchInvoices(JsonNode request) {
+    JsonNode filter = request.path("query").path("filter");
+    Set<String> locationIds = new HashSet<>();
+    filter.path("location_ids").forEach(id -> locationIds.add(id.asText()));
+    Set<String> customerIds = new HashSet<>();
+    filter.path("customer_ids").forEach(id -> customerIds.add(id.asText()));
+    List<ObjectNode> matching = new ArrayList<>();
+    for (ObjectNode invoice : invoices.values()) {
+      if (locationIds.contains(invoice.path("location_id").asText()) && (customerIds.isEmpty() ||
+          customerIds.contains(invoice.path("primary_recipient").path("customer_id").asText()))) {
+        matching.add(invoice.deepCopy());
+      }
+    }
+    matching.sort(Comparator.comparing(i -> Instant.parse(i.get("created_at").asText())));
+    if ("DESC".equals(request.path("query").path("sort").path("order").asText(null))) {
+      Collections.reverse(matching);
+    }
+    return page("invoices", matching, text(request, "cursor"), limit(request));
+  }
+
+  private synchronized Reply updateInvoice(String path, JsonNode request) {
+    Matcher matcher = INVOICE_ACTION.matcher(path);
+    Preconditions.checkState(matcher.matches());
+    ObjectNode invoice = invoices.get(matcher.group(1));
+    if (invoice == null) {
+      return squareError(404, "INVALID_REQUEST_ERROR", "NOT_FOUND", "No such invoice");
+    }
+    if (request.path("version").asInt(-1) != invoice.get("version").asInt()) {
+      return squareError(400, "INVALID_REQUEST_ERROR", "VERSION_MISMATCH", "Stale version");
+    }
+    String status = invoice.get("status").asText();
+    boolean publish = matcher.group(2).equals("publish");
+    if (publish ? !status.equals("DRAFT") : !status.equals("UNPAID")) {
+      return squareError(400, "INVALID_REQUEST_ERROR", "BAD_REQUEST", "Invoice is " + status);
+    }
+    invoice
+        .put("status", publish ? "UNPAID" : "CANCELED")
+        .put("version", invoice.get("version").asInt() + 1);
+    return json(200, JSON.createObjectNode().set("invoice", invoice.deepCopy()));
+  }
+
+  private synchronized Reply getValues(String path) {
+    Matcher matcher = SPREADSHEET_VALUES.matcher(path);
+    Preconditions.checkState(matcher.matches());
+    Range range = Range.parse(matcher.group(2));
+    Tab tab = spreadsheets.getOrDefault(matcher.group(1), ImmutableMap.of()).get(range.tab);
+    if (tab == null) {
+      return googleError(400, "INVALID_ARGUMENT", "Unable to parse range: " + matcher.group(2));
+    }
+    ObjectNode response =
+        JSON.createObjectNode().put("range", matcher.group(2)).put("majorDimension", "ROWS");
+    ArrayNode values = JSON.createArrayNode();
+    for (int r = range.startRow; r < Math.min(range.endRow, tab.rows.size()); ++r) {
+      List<Object> row = tab.rows.get(r);
+      ArrayNode cells = JSON.createArrayNode();
+      for (int c = range.startColumn; c <= Math.min(range.endColumn, row.size() - 1); ++c) {
+        cells.add(formatCell(evaluate(row, c)));
+      }
+      values.add(cells);
+    }
+    if (values.size() > 0) {
+      response.set("values", values);
+    }
+    return json(200, response);
+  }
+
+  /**
+   * Reads several ranges of a spreadsheet. Numbers, including evaluated formulas, are returned as
+   * numbers when they are read unformatted, and dates as serial numbers if those are asked for.
+   */
+  private synchronized Reply batchGetValues(String path, ListMultimap<String, String> query) {
+    Matcher matcher = SPREADSHEET_BATCH_GET.matcher(path);
+    Preconditions.checkState(matcher.matches());
+    boolean unformatted = query.get("valueRenderOption").contains("UNFORMATTED_VALUE");
+    boolean serialDates = query.get("dateTimeRenderOption").contains("SERIAL_NUMBER");
+    boolean masked = !query.get("fields").isEmpty();
+    ObjectNode response = JSON.createObjectNode();
+    if (!masked) {
+      response.put("spreadsheetId", matcher.group(1));
+    }
+    ArrayNode valueRanges = response.putArray("valueRanges");
+    for (String a1 : query.get("ranges")) {
+      Range range = Range.parse(a1);
+      Tab tab = spreadsheets.getOrDefault(matcher.group(1), ImmutableMap.of()).get(range.tab);
+      if (tab == null) {
+        return googleError(400, "INVALID_ARGUMENT", "Unable to parse range: " + a1);
+      }
+      ObjectNode valueRange = valueRanges.addObject();
+      if (!masked) {
+        valueRange.put("range", a1).put("majorDimension", "ROWS");
+      }
+      ArrayNode values = JSON.createArrayNode();
+      for (int r = range.startRow; r < Math.min(range.endRow, tab.rows.size()); ++r) {
+        List<Object> row = tab.rows.get(r);
+        ArrayNode cells = values.addArray();
+        for (int c = range.startColumn; c <= Math.min(range.endColumn, row.size() - 1); ++c) {
+          Object value = evaluate(row, c);
+          if (!unformatted) {
+            cells.add(formatCell(value));
+          } else if (value instanceof Number) {
+            cells.add(((Number) value).doubleValue());
+          } else if (value instanceof LocalDate && serialDates) {
+            cells.add(((LocalDate) value).toEpochDay() + 25569);
+          } else {
+            cells.add(formatCell(value));
+          }
+        }
+      }
+      if (values.size() > 0) {
+        valueRange.set("values", values);
+      }
+    }
+    return json(200, response);
+  }
+
+  private synchronized Reply appendValues(String path, JsonNode request) {
+    Matcher matcher = SPREADSHEET_VALUES.matcher(path);
+    Preconditions.checkState(matcher.matches());
+    Range range = Range.parse(matcher.group(2));
+    Tab tab = spreadsheets.getOrDefault(matcher.group(1), ImmutableMap.of()).get(range.tab);
+    if (tab == null) {
+      return googleError(400, "INVALID_ARGUMENT", "Unable to parse range: " + matcher.group(2));
+    }
+    int updatedRows = 0;
+    for (JsonNode row : request.path("values")) {
+      List<Object> cells = new ArrayList<>();
+      row.forEach(cell -> cells.add(cell.isNumber() ? cell.numberValue() : cell.asText()));
+      tab.rows.add(cells);
+      ++updatedRows;
+    }
+    ObjectNode response = JSON.createObjectNode().put("spreadsheetId", matcher.group(1));
+    response.putObject("updates").put("updatedRows", updatedRows);
+    return json(200, response);
+  }
+
+  private synchronized Reply batchUpdate(String path, JsonNode request) {
+    Matcher matcher = SPREADSHEET_BATCH_UPDATE.matcher(path);
+    Preconditions.checkState(matcher.matches());
+    Map<String, Tab> tabs = spreadsheets.get(matcher.group(1));
+    if (tabs == null) {
+      return googleError(404, "NOT_FOUND", "Requested entity was not found.");
+    }
+    ObjectNode response = JSON.createObjectNode().put("spreadsheetId", matcher.group(1));
+    ArrayNode replies = response.putArray("replies");
+    for (JsonNode update : request.path("requests")) {
+      if (update.has("addSheet")) {
+        JsonNode properties = update.get("addSheet").path("properties");
+        String title = properties.path("title").asText();
+        if (tabs.containsKey(title)) {
+          return googleError(400,
+              "INVALID_ARGUMENT",
+              "A sheet with the name \"" + title + "\" already exists.");
+        }
+        int sheetId = properties.path("sheetId").asInt(ids.incrementAndGet());
+        if (tab(tabs, sheetId) != null) {
+          return googleError(400,
+              "INVALID_ARGUMENT",
+              "A sheet with the id " + sheetId + " already exists.");
+        }
+        JsonNode grid = properties.path("gridProperties");
+        tabs.put(title,
+            new Tab(sheetId,
+                grid.path("rowCount").asInt(Tab.DEFAULT_ROWS),
+                grid.path("columnCount").asInt(Tab.DEFAULT_COLUMNS)));
+        replies
+            .addObject()
+            .putObject("addSheet")
+            .putObject("properties")
+            .put("sheetId", sheetId)
+            .put("title", title)
+            .put("index", tabs.size() - 1);
+      } else if (update.has("updateCells")) {
+        JsonNode updateCells = update.get("updateCells");
+        JsonNode start = updateCells.path("start");
+        Tab tab = tab(tabs, start.path("sheetId").asInt());
+        if (tab == null) {
+          return googleError(400, "INVALID_ARGUMENT", "No grid with id: " + start.get("sheetId"));
+        }
+        int row = start.path("rowIndex").asInt();
+        int lastRow = row + updateCells.path("rows").size() - 1;
+        int lastColumn = start.path("columnIndex").asInt() - 1;
+        for (JsonNode rowData : updateCells.path("rows")) {
+          lastColumn = Math.max(lastColumn,
+              start.path("columnIndex").asInt() + rowData.path("values").size() - 1);
+        }
+        if (lastRow >= tab.rowCount || lastColumn >= tab.columnCount) {
+          return googleError(400,
+              "INVALID_ARGUMENT",
+              "Range (" + lastRow + ", " + lastColumn + ") exceeds grid limits. Max rows: " +
+                  (tab.rowCount - 1) + ", max columns: " + (tab.columnCount - 1));
+        }
+        for (JsonNode rowData : updateCells.path("rows")) {
+          while (tab.rows.size() <= row) {
+            tab.rows.add(new ArrayList<>());
+          }
+          List<Object> cells = tab.rows.get(row++);
+          int column = start.path("columnIndex").asInt();
+          for (JsonNode cell : rowData.path("values")) {
+            while (cells.size() <= column) {
+              cells.add("");
+            }
+            cells.set(column++, userEnteredValue(cell.path("userEnteredValue")));
+          }
+        }
+        replies.addObject();
+      } else {
+        return googleError(400, "INVALID_ARGUMENT", "Unsupported request: " + update);
+      }
+    }
+    return json(200, response);
+  }
+
+  private static Tab tab(Map<String, Tab> tabs, int sheetId) {
+    return tabs.values().stream().filter(t -> t.sheetId == sheetId).findFirst().orElse(null);
+  }
+
+  /** Returns a cell's value as stored in a tab: a number, a string, or a formula string. */
+  private static Object userEnteredValue(JsonNode value) {
+    if (value.has("numberValue")) {
+      return value.get("numberValue").numberValue();
+    }
+    if (value.has("formulaValue")) {
+      return value.get("formulaValue").asText();
+    }
+    return value.path("stringValue").asText();
+  }
+
+  private synchronized Reply sendMessage(String raw) {
+    sentEmails.add(recipient(raw));
+    String id = "message-" + ids.incrementAndGet();
+    ObjectNode message = JSON.createObjectNode().put("id", id).put("threadId", id);
+    message.putArray("labelIds").add("SENT");
+    return json(200, message);
+  }
+
+  private synchronized Reply createDraft(String raw) {
+    drafts.add(recipient(raw));
+    ObjectNode draft = JSON.createObjectNode().put("id", "draft-" + ids.incrementAndGet());
+    draft.putObject("message").put("id", "message-" + ids.incrementAndGet());
+    return json(200, draft);
+  }
+
+  /** Serves each call of a Gmail batch request as its own part of a multipart response. */
+  private Reply batch(String contentType, byte[] body) throws IOException {
+    String boundary =
+        contentType.substring(contentType.indexOf("boundary=") + 9).replace("\"", "");
+    String content = new String(body, StandardCharsets.UTF_8);
+    StringBuilder response = new StringBuilder();
+    String responseBoundary = "batch_" + ids.incrementAndGet();
+    int part = 0;
+    for (String chunk : Splitter.on("--" + boundary).split(content)) {
+      int headersEnd = chunk.indexOf("\r\n\r\n");
+      if (headersEnd < 0) {
+        continue;
+      }
+      String httpRequest = chunk.substring(headersEnd + 4);
+      List<String> requestLine = Splitter.on(' ').splitToList(httpRequest.substring(0,
+          httpRequest.indexOf("\r\n")));
+      URI uri = URI.create(requestLine.get(1));
+      int requestBodyStart = httpRequest.indexOf("\r\n\r\n");
+      String requestBody = requestBodyStart < 0 ? "" : httpRequest.substring(requestBodyStart + 4);
+      Reply reply = call(requestLine.get(0),
+          URLDecoder.decode(uri.getRawPath(), "UTF-8"),
+          uri.getRawQuery(),
+          requestBody.trim().getBytes(StandardCharsets.UTF_8));
+      response
+          .append("--")
+          .append(responseBoundary)
+          .append("\r\nContent-Type: application/http\r\nContent-ID: <response-")
+          .append(++part)
+          .append(">\r\n\r\nHTTP/1.1 ")
+          .append(reply.status)
+          .append(reply.status == 200 ? " OK" : " Error")
+          .append("\r\nContent-Type: ")
+          .append(reply.contentType)
+          .append("\r\n");
+      reply.headers.forEach((name, value) -> response
+          .append(name)
+          .append(": ")
+          .append(value)
+          .append("\r\n"));
+      response
+          .append("\r\n")
+          .append(new String(reply.body, StandardCharsets.UTF_8))
+          .append("\r\n");
+    }
+    response.append("--").append(responseBoundary).append("--\r\n");
+    return new Reply(200,
+        "multipart/mixed; boundary=" + responseBoundary,
+        response.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the successful reply recorded for the request's idempotency key, or serves the
+   * request.
+   */
+  private synchronized Reply idempotent(
+      String call, JsonNode request, com.google.common.base.Supplier<Reply> serve) {
+    String key = call + ":" + text(request, "idempotency_key");
+    Reply reply = idempotentReplies.get(key);
+    if (reply == null) {
+      reply = serve.get();
+      if (reply.status == 200 && request.hasNonNull("idempotency_key")) {
+        idempotentReplies.put(key, reply);
+      }
+    }
+    return reply;
+  }
+
+  private Reply page(String field, List<? extends JsonNode> items, String cursor, Integer limit) {
+    int size = limit == null ? pageSize : Math.min(limit, pageSize);
+    int start = cursor == null ? 0 : Integer.parseInt(cursor);
+    int end = Math.min(items.size(), start + size);
+    ObjectNode response = JSON.createObjectNode();
+    ArrayNode page = response.putArray(field);
+    items.subList(start, end).forEach(page::add);
+    if (end < items.size()) {
+      response.put("cursor", String.valueOf(end));
+    }
+    return json(200, response);
+  }
+
+  private void putInvoice(ObjectNode invoice) {
+    invoices.put(invoice.get("id").asText(), invoice);
+  }
+
+  private static ObjectNode outstandingInvoice(String id, String customerId, Instant createdAt) {
+    ObjectNode invoice = JSON
+        .createObjectNode()
+        .put("id", id)
+        .put("version", 1)
+        .put("location_id", LOCATION_ID)
+        .put("status", "UNPAID")
+        .put("created_at", createdAt.toString());
+    invoice.putObject("primary_recipient").put("customer_id", customerId);
+    return invoice;
+  }
+
+  /** Evaluates formulas such as {@code = C:C - F:F + G:G} or {@code =C2-F2+G2} within a row. */
+  private static Object evaluate(List<Object> row, int column) {
+    Object cell = row.get(column);
+    if (!(cell instanceof String) || !((String) cell).startsWith("=")) {
+      return cell;
+    }
+    Matcher tokens = FORMULA_TOKEN.matcher(((String) cell).substring(1));
+    double total = 0;
+    double term = 1;
+    char sign = '+';
+    while (tokens.find() && !tokens.group().trim().isEmpty()) {
+      if (tokens.group(1) != null || tokens.group(2) != null) {
+        term *= tokens.group(2) != null ?
+            Double.parseDouble(tokens.group(2)) :
+            number(formatCell(evaluate(row, tokens.group(1).charAt(0) - 'A')));
+      } else if (tokens.group(3).equals("+") || tokens.group(3).equals("-")) {
+        total += sign == '+' ? term : -term;
+        term = 1;
+        sign = tokens.group(3).charAt(0);
+      }
+    }
+    return total + (sign == '+' ? term : -term);
+  }
+
+  private static double number(String cell) {
+    return cell.isEmpty() ? 0 : Double.parseDouble(cell);
+  }
+
+  private static String formatCell(Object value) {
+    if (value instanceof Number) {
+      double number = ((Number) value).doubleValue();
+      return number == Math.rint(number) ?
+          String.valueOf((long) number) :
+          String.valueOf(number);
+    }
+    if (value instanceof LocalDate) {
+      return ((LocalDate) value).format(ATTENDANCE_DATE_FORMATTER);
+    }
+    return String.valueOf(value);
+  }
+
+  private static String recipient(String raw) {
+    String message = new String(BaseEncoding.base64Url().decode(raw.replace("=", "")),
+        StandardCharsets.UTF_8);
+    for (String line : Splitter.on("\r\n").split(message)) {
+      if (line.startsWith("To: ")) {
+        return line.substring(4);
+      }
+    }
+    return "";
+  }
+
+  private static String text(JsonNode node, String field) {
+    return node.hasNonNull(field) ? node.get(field).asText() : null;
+  }
+
+  private static Integer limit(JsonNode request) {
+    return request.hasNonNull("limit") ? request.get("limit").asInt() : null;
+  }
+
+  private static ListMultimap<String, String> parseQuery(String rawQuery) throws IOException {
+    ListMultimap<String, String> query = ArrayListMultimap.create();
+    if (rawQuery != null) {
+      for (String parameter : Splitter.on('&').omitEmptyStrings().split(rawQuery)) {
+        int equals = parameter.indexOf('=');
+        query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+      }
+    }
+    return query;
+  }
+
+  private static Reply json(int status, JsonNode body) {
+    try {
+      return new Reply(status, "application/json; charset=UTF-8", JSON.writeValueAsBytes(body));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Reply squareError(int status, String category, String code, String detail) {
+    ObjectNode body = JSON.createObjectNode();
+    body
+        .putArray("errors")
+        .addObject()
+        .put("category", category)
+        .put("code", code)
+        .put("detail", detail);
+    return json(status, body);
+  }
+
+  private static Reply googleError(int status, String reason, String message) {
+    ObjectNode body = JSON.createObjectNode();
+    ObjectNode error = body
+        .putObject("error")
+        .put("code", status)
+        .put("message", message)
+        .put("status", reason);
+    error.putArray("errors").addObject().put("reason", reason).put("message", message);
+    return json(status, body);
+  }
+
+  /** Configures the synthetic dataset and network behavior of a {@link FakeApiServer}. */
+  static final class Builder {
+    private int members = 100;
+    private int nonMembers = 0;
+    private int ordersPerMember = 2;
+    private int attendanceRows = 500;
+    private int pageSize = 100;
+    private Duration latency = Duration.ZERO;
+    private int throttleEvery = 0;
+    private int retryAfterSeconds = 1;
+    private int threads = 16;
+    private long seed = 1;
+    private LocalDate startDate = LocalDate.parse("2020-01-01");
+
+    private Builder() {}
+
+    Builder members(int members) {
+      this.members = members;
+      return this;
+    }
+
+    /** Number of customers in no group, such as one-off buyers. */
+    Builder nonMembers(int nonMembers) {
+      this.nonMembers = nonMembers;
+      return this;
+    }
+
+    Builder ordersPerMember(int ordersPerMember) {
+      this.ordersPerMember = ordersPerMember;
+      return this;
+    }
+
+    Builder attendanceRows(int attendanceRows) {
+      this.attendanceRows = attendanceRows;
+      return this;
+    }
+
+    /** Largest page returned by Square listings and searches. */
+    Builder pageSize(int pageSize) {
+      this.pageSize = pageSize;
+      return this;
+    }
+
+    /** Delay before every HTTP request is served; a Gmail batch is delayed once. */
+    Builder latency(Duration latency) {
+      this.latency = latency;
+      return this;
+    }
+
+    /** Rejects every {@code n}th API call with 429, or none if 0. */
+    Builder throttleEvery(int n) {
+      this.throttleEvery = n;
+      return this;
+    }
+
+    Builder retryAfterSeconds(int retryAfterSeconds) {
+      this.retryAfterSeconds = retryAfterSeconds;
+      return this;
+    }
+
+    /** Number of requests served concurrently. */
+    Builder threads(int threads) {
+      this.threads = threads;
+      return this;
+    }
+
+    Builder seed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    /** First day of the billing period the dataset is generated for. */
+    Builder startDate(LocalDate startDate) {
+      this.startDate = startDate;
+      return this;
+    }
+
+    FakeApiServer start() throws IOException {
+      return new FakeApiServer(this);
+    }
+  }
+
+  /** A sheet tab's cells, by row. */
+  private static final class Tab {
+    /** Size of the grid of a tab added without grid properties. */
+    static final int DEFAULT_ROWS = 1000;
+    static final int DEFAULT_COLUMNS = 26;
+
+    final int sheetId;
+    /** Size of the grid that cells can be updated in; appending rows is not limited by it. */
+    final int rowCount;
+    final int columnCount;
+    final List<List<Object>> rows = new ArrayList<>();
+
+    Tab(int sheetId) {
+      this(sheetId, DEFAULT_ROWS, DEFAULT_COLUMNS);
+    }
+
+    Tab(int sheetId, int rowCount, int columnCount) {
+      this.sheetId = sheetId;
+      this.rowCount = rowCount;
+      this.columnCount = columnCount;
+    }
+  }
+
+  /** An A1 range such as {@code Tab!A2:H}, as zero-based row and column bounds. */
+  private static final class Range {
+    final String tab;
+    final int startRow;
+    final int endRow;
+    final int startColumn;
+    final int endColumn;
+
+    private Range(String tab, int startRow, int endRow, int startColumn, int endColumn) {
+      this.tab = tab;
+      this.startRow = startRow;
+      this.endRow = endRow;
+      this.startColumn = startColumn;
+      this.endColumn = endColumn;
+    }
+
+    static Range parse(String a1) {
+      int bang = a1.lastIndexOf('!');
+      String tab = (bang < 0 ? a1 : a1.substring(0, bang)).replaceAll("^'|'$", "");
+      Matcher cells = A1_RANGE.matcher(bang < 0 ? "A:ZZ" : a1.substring(bang + 1));
+      Preconditions.checkArgument(cells.matches(), "Bad range %s", a1);
+      int startColumn = column(cells.group(1));
+      int startRow = cells.group(2).isEmpty() ? 0 : Integer.parseInt(cells.group(2)) - 1;
+      int endColumn = cells.group(3) == null ? Integer.MAX_VALUE - 1 : column(cells.group(3));
+      int endRow = cells.group(4) == null || cells.group(4).isEmpty() ?
+          Integer.MAX_VALUE :
+          Integer.parseInt(cells.group(4));
+      return new Range(tab, startRow, endRow, startColumn, endColumn);
+    }
+
+    private static int column(String letters) {
+      int column = 0;
+      for (char letter : letters.toCharArray()) {
+        column = column * 26 + letter - 'A' + 1;
+      }
+      return column - 1;
+    }
+  }
+
+  private static final class Reply {
+    final int status;
+    final String contentType;
+    final byte[] body;
+    final Map<String, String> headers = new LinkedHashMap<>();
+
+    Reply(int status, String contentType, byte[] body) {
+      this.status = status;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+}
@@ -0,0 +1,444 @@
+package lu.zhe.kyudo;
+
+import com.google.api.client.googleapis.json.*;
+import com.google.common.collect.*;
+import com.google.devtools.common.options.*;
+import com.squareup.square.*;
+import com.squareup.square.exceptions.*;
+import com.squareup.square.models.*;
+import org.junit.*;
+import org.junit.rules.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+import static com.google.common.truth.Truth.*;
+import static org.junit.Assert.*;
+
+/** Runs the whole pipeline against {@link FakeApiServer}. */
+@RunWith(JUnit4.class)
+public class FakeApiServerTest {
+  private static final int MEMBERS = 40;
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void fillSpreadsheetAndSendEmails() throws Exception {
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .attendanceRows(200)
+        .pageSize(7)
+        .start()) {
+      KyudoInvoices invoices = server.connect(Options.getDefaults(KyudoInvoiceOptions.class));
+      ImmutableMap<String, String> seededInvoices = server.invoiceStatuses();
+
+      invoices.fillSpreadsheet();
+      List<List<Object>> tab =
+          server.sheet(FakeApiServer.INVOICE_SHEET_ID, "2020-01 to 2020-02");
+      assertThat(tab).isNotNull();
+      assertThat(tab.get(0)).isEqualTo(SheetsClient.INVOICE_SHEET_HEADERS);
+      assertThat(tab.size()).isGreaterThan(1);
+
+      invoices.sendEmails();
+      assertThat(server.sentEmails()).isNotEmpty();
+      assertThat(server.requests().count("gmail.send")).isEqualTo(server.sentEmails().size());
+      ImmutableMap<String, String> statuses = server.invoiceStatuses();
+      seededInvoices.keySet().forEach(id -> assertThat(statuses.get(id)).isEqualTo("CANCELED"));
+      statuses
+          .entrySet()
+          .stream()
+          .filter(e -> !seededInvoices.containsKey(e.getKey()))
+          .forEach(e -> assertThat(e.getValue()).isEqualTo("UNPAID"));
+    }
+  }
+
+  @Test
+  public void invoiceTabRendersBalanceLedger() throws Exception {
+    try (FakeApiServer server = FakeApiServer.builder().members(MEMBERS).start()) {
+      KyudoInvoiceOptions options = Options.getDefaults(KyudoInvoiceOptions.class);
+      Path path = temporaryFolder.getRoot().toPath().resolve("balances");
+      options.balanceLedger = path.toString();
+      server.connect(options).fillSpreadsheet();
+      MemberDatabase database = new SquareApiClient(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake")
+          .build()).getMembers();
+      List<List<Object>> tab = server.sheet(FakeApiServer.INVOICE_SHEET_ID, "2020-01 to 2020-02");
+
+      try (BalanceLedger ledger = BalanceLedger.open(path)) {
+        for (List<Object> row : tab.subList(1, tab.size())) {
+          Member member = database.nameToMember().get(row.get(0));
+          String id = member.customer().getId();
+          int rateCents = Ledger.toCents(member.type().value());
+          int endingCents = Ledger.toCents(((Number) row.get(7)).intValue());
+          assertThat(ledger.balance(id, LocalDate.parse("2019-12-31")))
+              .isEqualTo(Ledger.toCents(((Number) row.get(2)).intValue()));
+          // Balances are carried over in whole multiples of the member's rate.
+          assertThat(ledger.balance(id, LocalDate.parse("2020-02-29")))
+              .isEqualTo(endingCents / rateCents * rateCents);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void replayRecomputesTabFromSnapshotWithoutRequests() throws Exception {
+    try (FakeApiServer server = FakeApiServer.builder().members(MEMBERS).start()) {
+      KyudoInvoiceOptions options = Options.getDefaults(KyudoInvoiceOptions.class);
+      Path path = temporaryFolder.getRoot().toPath().resolve("snapshot");
+      options.snapshotFile = path.toString();
+      server.connect(options).fillSpreadsheet();
+      List<List<Object>> tab = server.sheet(FakeApiServer.INVOICE_SHEET_ID, "2020-01 to 2020-02");
+      ImmutableMultiset<String> requests = server.requests();
+
+      Invoices invoices = KyudoInvoices.replay(path);
+
+      assertThat(server.requests()).isEqualTo(requests);
+      Map<String, Integer> attendance = new HashMap<>();
+      invoices.attendanceCount().forEach((member, count) -> attendance.put(member.name(), count));
+      Map<String, Integer> balances = new HashMap<>();
+      invoices
+          .balances()
+          .members()
+          .forEach(member -> balances.put(member.name(), invoices.balances().balance(member)));
+      assertThat(attendance).hasSize(tab.size() - 1);
+      for (List<Object> row : tab.subList(1, tab.size())) {
+        assertThat(attendance.get(row.get(0))).isEqualTo(((Number) row.get(3)).intValue());
+        assertThat(balances.getOrDefault(row.get(0), 0))
+            .isEqualTo(Ledger.toCents(((Number) row.get(7)).intValue()));
+      }
+    }
+  }
+
+  @Test
+  public void writesInvoiceTabLargerThanDefaultGrid() throws Exception {
+    try (FakeApiServer server = FakeApiServer.builder().members(MEMBERS).start()) {
+      int members = 4500;
+      Invoices.Builder invoices = Invoices.builder();
+      for (int i = 0; i < members; ++i) {
+        Customer customer = new Customer.Builder()
+            .id("customer-" + i)
+            .givenName("Given" + i)
+            .familyName("Family")
+            .build();
+        invoices.processMember(Member.create(customer, MemberType.ASSOCIATE, false), 1, 0, 0);
+      }
+
+      server
+          .sheetsClient()
+          .writeInvoices(FakeApiServer.INVOICE_SHEET_ID,
+              invoices.build(),
+              SheetsClient.Accounts.builder().build(),
+              LocalDate.parse("2021-01-01"));
+
+      assertThat(server.sheet(FakeApiServer.INVOICE_SHEET_ID, "2021-01 to 2021-02"))
+          .hasSize(members + 1);
+    }
+  }
+
+  @Test
+  public void rerunOfSendWithoutJournalKeepsPeriodInvoices() throws Exception {
+    try (FakeApiServer server = FakeApiServer.builder().members(MEMBERS).start()) {
+      KyudoInvoices invoices = server.connect(Options.getDefaults(KyudoInvoiceOptions.class));
+      ImmutableMap<String, String> seededInvoices = server.invoiceStatuses();
+      invoices.fillSpreadsheet();
+      invoices.sendEmails();
+      ImmutableMap<String, String> statuses = server.invoiceStatuses();
+      assertThat(statuses.size()).isGreaterThan(seededInvoices.size());
+
+      server.connect(Options.getDefaults(KyudoInvoiceOptions.class)).sendEmails();
+
+      assertThat(server.invoiceStatuses()).isEqualTo(statuses);
+      statuses
+          .entrySet()
+          .stream()
+          .filter(e -> !seededInvoices.containsKey(e.getKey()))
+          .forEach(e -> assertThat(e.getValue()).isEqualTo("UNPAID"));
+    }
+  }
+
+  @Test
+  public void rerunOfSendSkipsJournaledWork() throws Exception {
+    try (FakeApiServer server = FakeApiServer.builder().members(MEMBERS).start()) {
+      KyudoInvoiceOptions options = Options.getDefaults(KyudoInvoiceOptions.class);
+      options.sendJournal = temporaryFolder.newFile().getPath();
+      KyudoInvoices invoices = server.connect(options);
+      invoices.fillSpreadsheet();
+      invoices.sendEmails();
+      ImmutableMap<String, String> statuses = server.invoiceStatuses();
+      ImmutableMultiset<String> requests = server.requests();
+
+      server.connect(options).sendEmails();
+
+      assertThat(server.requests().count("gmail.send")).isEqualTo(requests.count("gmail.send"));
+      assertThat(server.requests().count("square.createOrder"))
+          .isEqualTo(requests.count("square.createOrder"));
+      assertThat(server.requests().count("square.cancelInvoice"))
+          .isEqualTo(requests.count("square.cancelInvoice"));
+      assertThat(server.invoiceStatuses()).isEqualTo(statuses);
+    }
+  }
+
+  @Test
+  public void pagesSquareListings() throws Exception {
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .nonMembers(3 * MEMBERS)
+        .pageSize(7)
+        .start()) {
+      SquareApiClient client = new SquareApiClient(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake")
+          .build());
+
+      MemberDatabase database = client.getMembers();
+
+      assertThat(database.idToMember()).hasSize(MEMBERS);
+      // Customers in no membership group are never paged.
+      assertThat(server.requests().count("square.searchCustomers")).isEqualTo(6);
+      assertThat(server.requests().count("square.listCustomers")).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void searchesOnlyMembersOrdersInChunks() throws Exception {
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .nonMembers(MEMBERS)
+        .ordersPerMember(0)
+        .start()) {
+      SquareApiClient client = new SquareApiClient(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake")
+          .build());
+      MemberDatabase database = client.getMembers();
+
+      Ledger payments = client.getPayments(database,
+          FakeApiServer.LOCATION_ID,
+          LocalDate.parse("2020-01-01"),
+          LocalDate.parse("2020-02-29"));
+
+      // One search per chunk of 10 customer ids, the most the fake accepts, over the whole
+      // window, as no chunk has more orders than fit on a page.
+      assertThat(server.requests().count("square.searchOrders")).isEqualTo(MEMBERS / 10);
+      assertThat(server.ordersMatched()).isEqualTo(0);
+      assertThat(payments.members()).isEmpty();
+    }
+  }
+
+  @Test
+  public void searchesWeeksOfChunksWhoseOrdersPaginate() throws Exception {
+    LocalDate start = LocalDate.parse("2020-01-01");
+    LocalDate end = LocalDate.parse("2020-02-29");
+    Ledger expected;
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .ordersPerMember(20)
+        .pageSize(1000)
+        .start()) {
+      SquareApiClient client = new SquareApiClient(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake")
+          .build());
+      expected =
+          client.getPayments(client.getMembers(), FakeApiServer.LOCATION_ID, start, end);
+      assertThat(server.requests().count("square.searchOrders")).isEqualTo(MEMBERS / 10);
+    }
+
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .ordersPerMember(20)
+        .start()) {
+      SquareApiClient client = new SquareApiClient(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake")
+          .build());
+      Ledger payments =
+          client.getPayments(client.getMembers(), FakeApiServer.LOCATION_ID, start, end);
+
+      // Each chunk's 200 orders overflow a page of 100, so its first page is dropped and each of
+      // the 9 weeks started in the window is searched instead, each fitting on a page.
+      assertThat(server.requests().count("square.searchOrders")).isEqualTo(MEMBERS / 10 * 10);
+      assertThat(payments).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void orderLedgerOnlySearchesPastWatermark() throws Exception {
+    try (FakeApiServer server = FakeApiServer.builder().members(MEMBERS).start()) {
+      SquareApiClient client = new SquareApiClient(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake")
+          .build());
+      MemberDatabase database = client.getMembers();
+      Path path = temporaryFolder.getRoot().toPath().resolve("orders");
+      LocalDate start = LocalDate.parse("2020-01-01");
+      LocalDate end = LocalDate.parse("2020-02-29");
+      MemberVector expected =
+          client.getPaymentTotals(database, FakeApiServer.LOCATION_ID, start, end, page -> {});
+      int searches = server.requests().count("square.searchOrders");
+
+      MemberVector first = client.getPaymentTotals(database,
+          FakeApiServer.LOCATION_ID,
+          start,
+          end,
+          OrderLedger.load(path, FakeApiServer.LOCATION_ID));
+      MemberVector second = client.getPaymentTotals(database,
+          FakeApiServer.LOCATION_ID,
+          start,
+          end,
+          OrderLedger.load(path, FakeApiServer.LOCATION_ID));
+      int secondSearches = server.requests().count("square.searchOrders") - 2 * searches;
+      MemberVector january = client.getPaymentTotals(database,
+          FakeApiServer.LOCATION_ID,
+          start,
+          LocalDate.parse("2020-01-31"),
+          OrderLedger.load(path, FakeApiServer.LOCATION_ID));
+
+      assertThat(first.toLedger()).isEqualTo(expected.toLedger());
+      assertThat(second.toLedger()).isEqualTo(expected.toLedger());
+      // The rerun only searches the last week or two of the window.
+      assertThat(secondSearches).isAtMost(2 * MEMBERS / 10);
+      assertThat(server.requests().count("square.searchOrders"))
+          .isEqualTo(2 * searches + secondSearches);
+      assertThat(january.toLedger()).isEqualTo(client
+          .getPaymentTotals(database,
+              FakeApiServer.LOCATION_ID,
+              start,
+              LocalDate.parse("2020-01-31"),
+              page -> {})
+          .toLedger());
+    }
+  }
+
+  @Test
+  public void throttlesCalls() throws Exception {
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .throttleEvery(1)
+        .retryAfterSeconds(3)
+        .start()) {
+      SquareApiClient client = SquareApiClient.create(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake"), 1, /* maxRetries= */ 0, new Metrics());
+
+      try {
+        client.getMembers();
+        fail("Expected ApiException");
+      } catch (ApiException e) {
+        assertThat(e.getResponseCode()).isEqualTo(429);
+        assertThat(e.getHttpContext().getResponse().getHeaders().value("Retry-After"))
+            .isEqualTo("3");
+      }
+      assertThat(server.throttled()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void retriesThrottledSquareCallsWithoutDuplicates() throws Exception {
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .pageSize(7)
+        .throttleEvery(3)
+        .retryAfterSeconds(0)
+        .start()) {
+      Metrics metrics = new Metrics();
+      SquareApiClient client = SquareApiClient.create(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake"), 8, /* maxRetries= */ 10, metrics);
+      LocalDate start = LocalDate.parse("2020-01-01");
+      LocalDate end = LocalDate.parse("2020-02-29");
+
+      MemberDatabase database = client.getMembers();
+      List<Invoices.InvoiceEmail> emails = database
+          .idToMember()
+          .values()
+          .stream()
+          .map(member -> Invoices.InvoiceEmail.create(member, 2, 80, start, end))
+          .collect(ImmutableList.toImmutableList());
+      assertThat(client.createAndSendInvoices(emails, FakeApiServer.LOCATION_ID, start))
+          .isEmpty();
+      ImmutableMap<String, String> statuses = server.invoiceStatuses();
+      // Sending again for the same period replays the first run's calls.
+      assertThat(client.createAndSendInvoices(emails, FakeApiServer.LOCATION_ID, start))
+          .isEmpty();
+
+      assertThat(database.idToMember()).hasSize(MEMBERS);
+      assertThat(server.throttled()).isGreaterThan(0);
+      assertThat(metrics.endpoint("square.searchCustomers").getRetries()).isGreaterThan(0L);
+      assertThat(server.invoiceStatuses()).isEqualTo(statuses);
+      assertThat(statuses.values()).contains("UNPAID");
+      assertThat(statuses.values()).doesNotContain("DRAFT");
+    }
+  }
+
+  @Test
+  public void resendsRateLimitedEmails() throws Exception {
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .throttleEvery(3)
+        .retryAfterSeconds(0)
+        .start()) {
+      Metrics metrics = new Metrics();
+      LocalDate start = LocalDate.parse("2020-01-01");
+      List<Invoices.InvoiceEmail> emails = new SquareApiClient(new SquareClient.Builder()
+          .environment(Environment.CUSTOM)
+          .customUrl(server.squareUrl())
+          .accessToken("fake")
+          .build())
+          .getMembers()
+          .members()
+          .stream()
+          .map(member -> Invoices.InvoiceEmail.create(member, 2, 80, start, start.plusMonths(2)))
+          .collect(ImmutableList.toImmutableList());
+
+      assertThat(server.gmailClient(metrics).sendEmails(emails)).isEmpty();
+
+      assertThat(server.throttled()).isGreaterThan(0);
+      assertThat(server.sentEmails()).hasSize(emails.size());
+      assertThat(metrics.endpoint("gmail.messages.send").getRetries()).isGreaterThan(0L);
+    }
+  }
+
+  @Test
+  public void throttlesGoogleCalls() throws Exception {
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(MEMBERS)
+        .throttleEvery(1)
+        .start()) {
+      KyudoInvoiceOptions options = Options.getDefaults(KyudoInvoiceOptions.class);
+      options.squareMaxRetries = 0;
+      KyudoInvoices invoices = server.connect(options);
+
+      try {
+        invoices.printEmails();
+        fail("Expected a throttled call");
+      } catch (ApiException e) {
+        assertThat(e.getResponseCode()).isEqualTo(429);
+      } catch (GoogleJsonResponseException e) {
+        assertThat(e.getStatusCode()).isEqualTo(429);
+      }
+    }
+  }
+}
@@ -61,34 +61,14 @@ public class InvoicesTest {
     Member aliceEveMember = Member.create(aliceEve, groups);
 
     Invoices.Builder invoicesBuilder = Invoices.builder();
-    invoicesBuilder.processMember(johnDoeMember,
-        2,
-        ImmutableList.of(Payment.create(johnDoeMember, Payment.PaymentType.DUES),
-            Payment.create(johnDoeMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(johnDoeMember, Payment.PaymentType.FIRST_SHOT)),
-        ImmutableList.of());
-    invoicesBuilder.processMember(janeDoeMember, 3,
-        ImmutableList.of(Payment.create(janeDoeMember, Payment.PaymentType.DUES),
-            Payment.create(janeDoeMember, Payment.PaymentType.DUES),
-            Payment.create(janeDoeMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(janeDoeMember, Payment.PaymentType.FIRST_SHOT)),
-        ImmutableList.of(Payment.create(janeDoeMember, Payment.PaymentType.DUES)));
-    invoicesBuilder.processMember(bobSmithMember,
-        2,
-        ImmutableList.of(Payment.create(bobSmithMember, Payment.PaymentType.DUES),
-            Payment.create(bobSmithMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(bobSmithMember, Payment.PaymentType.DUES),
-            Payment.create(bobSmithMember, Payment.PaymentType.DUES),
-            Payment.create(bobSmithMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(bobSmithMember, Payment.PaymentType.DUES),
-            Payment.create(bobSmithMember, Payment.PaymentType.DUES)));
-    invoicesBuilder.processMember(aliceEveMember,
-        1,
-        ImmutableList.of(Payment.create(aliceEveMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(aliceEveMember, Payment.PaymentType.DUES),
-            Payment.create(aliceEveMember, Payment.PaymentType.DUES),
-            Payment.create(aliceEveMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(aliceEveMember, Payment.PaymentType.DUES)));
+    // Two dues payments, one first shot credit.
+    invoicesBuilder.processMember(johnDoeMember, 2, 8000, 8000);
+    // Three dues payments, one first shot credit, one dues owed.
+    invoicesBuilder.processMember(janeDoeMember, 3, 4500, 1500);
+    // Two dues payments, three dues credited, two dues owed.
+    invoicesBuilder.processMember(bobSmithMember, 2, 4000, 2000);
+    // One dues payment, three dues credited, one dues owed.
+    invoicesBuilder.processMember(aliceEveMember, 1, 4000, 8000);
     Invoices invoices = invoicesBuilder.build();
 
     assertThat(NEW_LINE_SPLITTER.splitToList(invoices.computeWaivers())).containsExactly(
@@ -142,37 +122,14 @@ public class InvoicesTest {
     LocalDate startDate = LocalDate.parse("2020-01-01");
     LocalDate endDate = LocalDate.parse("2020-02-29");
     Invoices.Builder invoicesBuilder = Invoices.builder();
-    invoicesBuilder.processMember(johnDoeMember,
-        2,
-        ImmutableList.of(Payment.create(johnDoeMember, Payment.PaymentType.DUES),
-            Payment.create(johnDoeMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(),
-        ImmutableList.of(Payment.create(johnDoeMember, Payment.PaymentType.DUES)));
-    invoicesBuilder.processMember(janeDoeMember,
-        3,
-        ImmutableList.of(Payment.create(janeDoeMember, Payment.PaymentType.DUES),
-            Payment.create(janeDoeMember, Payment.PaymentType.DUES),
-            Payment.create(janeDoeMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(janeDoeMember, Payment.PaymentType.FIRST_SHOT)),
-        ImmutableList.of(Payment.create(janeDoeMember, Payment.PaymentType.DUES),
-            Payment.create(janeDoeMember, Payment.PaymentType.DUES),
-            Payment.create(janeDoeMember, Payment.PaymentType.DUES)));
-    invoicesBuilder.processMember(bobSmithMember,
-        2,
-        ImmutableList.of(Payment.create(bobSmithMember, Payment.PaymentType.DUES),
-            Payment.create(bobSmithMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(bobSmithMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(bobSmithMember, Payment.PaymentType.DUES),
-            Payment.create(bobSmithMember, Payment.PaymentType.DUES),
-            Payment.create(bobSmithMember, Payment.PaymentType.DUES)));
-    invoicesBuilder.processMember(aliceEveMember,
-        2,
-        ImmutableList.of(Payment.create(aliceEveMember, Payment.PaymentType.DUES),
-            Payment.create(aliceEveMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(aliceEveMember, Payment.PaymentType.DUES)),
-        ImmutableList.of(Payment.create(aliceEveMember, Payment.PaymentType.DUES),
-            Payment.create(aliceEveMember, Payment.PaymentType.DUES),
-            Payment.create(aliceEveMember, Payment.PaymentType.DUES)));
+    // Two dues payments, one dues owed.
+    invoicesBuilder.processMember(johnDoeMember, 2, 8000, -4000);
+    // Three dues payments, one first shot credit, three dues owed.
+    invoicesBuilder.processMember(janeDoeMember, 3, 4500, -1500);
+    // Two dues payments, one dues credited, three dues owed.
+    invoicesBuilder.processMember(bobSmithMember, 2, 4000, -4000);
+    // Two dues payments, one dues credited, three dues owed.
+    invoicesBuilder.processMember(aliceEveMember, 2, 8000, -8000);
 
     Invoices invoices = invoicesBuilder.build();
     assertThat(NEW_LINE_SPLITTER.splitToList(invoices.computeOwed())).containsExactly(
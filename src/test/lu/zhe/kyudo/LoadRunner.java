@@ -0,0 +1,82 @@
+package lu.zhe.kyudo;
+
+import com.google.common.base.*;
+import com.google.devtools.common.options.*;
+
+import java.time.*;
+
+/**
+ * Runs {@code fill} and {@code send} against a {@link FakeApiServer}, reporting how long each
+ * took and how many calls each endpoint served.
+ *
+ * <p>Accepts the usual {@link KyudoInvoiceOptions} for connection settings, plus options
+ * describing the fake's dataset and network behavior.
+ */
+public final class LoadRunner {
+  private LoadRunner() {}
+
+  public static void main(String[] args) throws Exception {
+    OptionsParser parser =
+        OptionsParser.newOptionsParser(KyudoInvoiceOptions.class, LoadOptions.class);
+    parser.parseAndExitUponError(args);
+    LoadOptions load = parser.getOptions(LoadOptions.class);
+
+    try (FakeApiServer server = FakeApiServer
+        .builder()
+        .members(load.members)
+        .ordersPerMember(load.ordersPerMember)
+        .attendanceRows(load.attendanceRows)
+        .pageSize(load.pageSize)
+        .latency(Duration.ofMillis(load.latencyMs))
+        .throttleEvery(load.throttleEvery)
+        .threads(load.serverThreads)
+        .start()) {
+      KyudoInvoices invoices = server.connect(parser.getOptions(KyudoInvoiceOptions.class));
+
+      Stopwatch fill = Stopwatch.createStarted();
+      invoices.fillSpreadsheet();
+      fill.stop();
+      Stopwatch send = Stopwatch.createStarted();
+      invoices.sendEmails();
+      send.stop();
+
+      System.out.println("LOAD:");
+      System.out.println("fill," + fill.elapsed().toMillis() + "ms");
+      System.out.println("send," + send.elapsed().toMillis() + "ms");
+      System.out.println("throttled," + server.throttled());
+      server
+          .requests()
+          .entrySet()
+          .forEach(e -> System.out.println(e.getElement() + "," + e.getCount()));
+    }
+  }
+
+  /** Shape of the fake dataset and network. */
+  public static class LoadOptions extends OptionsBase {
+    @Option(name = "members", help = "Number of club members", defaultValue = "1000")
+    public int members;
+
+    @Option(name = "orders_per_member", help = "Completed orders per member in the period",
+        defaultValue = "2")
+    public int ordersPerMember;
+
+    @Option(name = "attendance_rows", help = "Attendance form responses in the period",
+        defaultValue = "5000")
+    public int attendanceRows;
+
+    @Option(name = "page_size", help = "Largest page served by Square listings",
+        defaultValue = "100")
+    public int pageSize;
+
+    @Option(name = "latency_ms", help = "Delay before serving each request", defaultValue = "50")
+    public int latencyMs;
+
+    @Option(name = "throttle_every", help = "Reject every nth call with 429, or 0 for none",
+        defaultValue = "0")
+    public int throttleEvery;
+
+    @Option(name = "server_threads", help = "Requests served concurrently by the fake",
+        defaultValue = "16")
+    public int serverThreads;
+  }
+}
@@ -40,4 +40,40 @@ public class MemberDatabaseTest {
     assertThat(database.nameToMember().get("John Doe")).isSameInstanceAs(johnDoeMember);
     assertThat(database.nameToMember().get("Jane Smith")).isSameInstanceAs(janeSmithMember);
   }
+
+  @Test
+  public void vectorsAreIndexedByInsertionOrder() {
+    Customer johnDoe = mock(Customer.class);
+    Customer janeSmith = mock(Customer.class);
+    when(johnDoe.getId()).thenReturn("asdf");
+    when(janeSmith.getId()).thenReturn("foobar");
+    when(johnDoe.getGivenName()).thenReturn("John");
+    when(johnDoe.getFamilyName()).thenReturn("Doe");
+    when(janeSmith.getGivenName()).thenReturn("Jane");
+    when(janeSmith.getFamilyName()).thenReturn("Smith");
+    when(johnDoe.getGroupIds()).thenReturn(ImmutableList.of("regular"));
+    when(janeSmith.getGroupIds()).thenReturn(ImmutableList.of("regular"));
+    Map<String, String> groups = ImmutableMap.of("regular", "REGULAR");
+    Member johnDoeMember = Member.create(johnDoe, groups);
+    Member janeSmithMember = Member.create(janeSmith, groups);
+    MemberDatabase database =
+        MemberDatabase.builder().addMember(johnDoeMember).addMember(janeSmithMember).build();
+
+    assertThat(database.members()).containsExactly(johnDoeMember, janeSmithMember).inOrder();
+    assertThat(database.indexOf("asdf")).isEqualTo(0);
+    assertThat(database.indexOf("foobar")).isEqualTo(1);
+    assertThat(database.indexOf("qux")).isEqualTo(-1);
+
+    MemberVector vector = database.newVector().add(1, 4000).add(1, -1000);
+    assertThat(vector.get(0)).isEqualTo(0);
+    assertThat(vector.get(1)).isEqualTo(3000);
+    assertThat(vector.toLedger().members()).containsExactly(janeSmithMember);
+    assertThat(vector.toMultiset().count(janeSmithMember)).isEqualTo(3000);
+
+    MemberVector fromLedger = database.newVector().add(Ledger.builder()
+        .add(johnDoeMember, -500)
+        .build());
+    assertThat(fromLedger.get(0)).isEqualTo(-500);
+    assertThat(fromLedger.toMultiset()).isEmpty();
+  }
 }
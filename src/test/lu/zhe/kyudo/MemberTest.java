@@ -36,4 +36,19 @@ public class MemberTest {
       assertThat(member.customer()).isSameInstanceAs(customer);
     }
   }
+
+  @Test
+  public void createResolvesAutoInvoiceAndIgnoresOtherGroups() {
+    Map<String, String> groups =
+        ImmutableMap.of("student", "Student", "auto", "AutoInvoice", "other", "Volunteers");
+    Customer customer = mock(Customer.class);
+    when(customer.getGivenName()).thenReturn("John");
+    when(customer.getFamilyName()).thenReturn("Doe");
+    when(customer.getGroupIds()).thenReturn(ImmutableList.of("other", "auto", "student", "gone"));
+
+    Member member = Member.create(customer, groups);
+
+    assertThat(member.type()).isEqualTo(MemberType.STUDENT);
+    assertThat(member.autoInvoice()).isTrue();
+  }
 }
@@ -0,0 +1,92 @@
+package lu.zhe.kyudo;
+
+import com.google.devtools.common.options.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import javax.management.*;
+import javax.management.openmbean.*;
+import java.io.*;
+import java.lang.management.*;
+import java.time.*;
+
+import static com.google.common.truth.Truth.*;
+
+/** Unit tests for {@link Metrics}. */
+@RunWith(JUnit4.class)
+public class MetricsTest {
+  @Test
+  public void writesPrometheusText() throws IOException {
+    Metrics metrics = new Metrics();
+    Metrics.Endpoint endpoint = metrics.endpoint("square.searchOrders");
+    endpoint.record(Duration.ofMillis(3));
+    endpoint.record(Duration.ofMillis(300));
+    endpoint.sent(100);
+    endpoint.received(2000);
+    endpoint.page();
+    endpoint.error("RATE_LIMIT_ERROR");
+    metrics.stage("getPayments", Duration.ofSeconds(2));
+
+    StringWriter out = new StringWriter();
+    metrics.writePrometheus(out);
+
+    assertThat(out.toString()).contains("# TYPE kyudo_api_request_duration_seconds histogram\n");
+    assertThat(out.toString()).contains(
+        "kyudo_api_request_duration_seconds_bucket{endpoint=\"square.searchOrders\",le=\"0.005\"}" +
+            " 1\n");
+    assertThat(out.toString()).contains(
+        "kyudo_api_request_duration_seconds_bucket{endpoint=\"square.searchOrders\",le=\"0.5\"}" +
+            " 2\n");
+    assertThat(out.toString()).contains(
+        "kyudo_api_request_duration_seconds_count{endpoint=\"square.searchOrders\"} 2\n");
+    assertThat(out.toString()).contains(
+        "kyudo_api_sent_bytes_total{endpoint=\"square.searchOrders\"} 100\n");
+    assertThat(out.toString()).contains(
+        "kyudo_api_received_bytes_total{endpoint=\"square.searchOrders\"} 2000\n");
+    assertThat(out.toString()).contains(
+        "kyudo_api_pages_total{endpoint=\"square.searchOrders\"} 1\n");
+    assertThat(out.toString()).contains(
+        "kyudo_api_errors_total{endpoint=\"square.searchOrders\",category=\"RATE_LIMIT_ERROR\"}" +
+            " 1\n");
+    assertThat(out.toString())
+        .contains("kyudo_stage_duration_seconds{stage=\"getPayments\"} 2.0\n");
+  }
+
+  @Test
+  public void exportsEndpointsOverJmx() throws JMException {
+    Metrics metrics = new Metrics();
+    metrics.endpoint("sheets.get").record(Duration.ofMillis(20));
+    metrics.exportToJmx();
+    metrics.endpoint("sheets.get").record(Duration.ofMillis(40));
+    metrics.endpoint("gmail.batch").error("HTTP_429");
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertThat(server.getAttribute(Metrics.objectName("sheets.get"), "Calls")).isEqualTo(2L);
+    assertThat(server.getAttribute(Metrics.objectName("sheets.get"), "MedianLatencyMillis"))
+        .isEqualTo(25.0);
+    TabularData errors =
+        (TabularData) server.getAttribute(Metrics.objectName("gmail.batch"), "ErrorCategories");
+    assertThat(errors.get(new Object[] {"HTTP_429"}).get("value")).isEqualTo(1L);
+  }
+
+  @Test
+  public void recordsCallsToFakeApis() throws Exception {
+    try (FakeApiServer server = FakeApiServer.builder().members(10).pageSize(4).start()) {
+      Metrics metrics = new Metrics();
+      KyudoInvoices invoices =
+          server.connect(Options.getDefaults(KyudoInvoiceOptions.class), metrics);
+
+      invoices.fillSpreadsheet();
+
+      Metrics.Endpoint customers = metrics.endpoint("square.searchCustomers");
+      assertThat(customers.getCalls()).isEqualTo(3);
+      assertThat(customers.getPages()).isEqualTo(3);
+      assertThat(customers.getBytesReceived()).isGreaterThan(0L);
+      assertThat(metrics.endpoint("sheets.values.batchGet").getCalls()).isEqualTo(2);
+      assertThat(metrics.endpoint("sheets.values.get").getCalls()).isEqualTo(0);
+      assertThat(metrics.endpoint("sheets.batchUpdate").getBytesSent()).isGreaterThan(0L);
+      assertThat(metrics.endpoint("google.other").getCalls()).isEqualTo(0);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import com.squareup.square.models.*;
+import org.junit.*;
+import org.junit.rules.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+
+import static com.google.common.truth.Truth.*;
+import static org.mockito.Mockito.*;
+
+/** Unit tests for {@link OrderLedger}. */
+@RunWith(JUnit4.class)
+public class OrderLedgerTest {
+  private static final Instant JANUARY = Instant.parse("2020-01-01T05:00:00Z");
+  private static final Instant FEBRUARY = Instant.parse("2020-02-01T05:00:00Z");
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void reloadedLedgerAnswersWindows() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("orders");
+    OrderLedger ledger = OrderLedger.load(path, "loc");
+    ledger.add("order0", "asdf", JANUARY.plusSeconds(60), Payment.PaymentType.FIRST_SHOT, 1);
+    ledger.add("order1", "asdf", FEBRUARY.plusSeconds(60), Payment.PaymentType.DUES, 2);
+    ledger.add("order2", "gone", FEBRUARY.plusSeconds(60), Payment.PaymentType.DUES, 1);
+    ledger.advance(FEBRUARY.plusSeconds(120));
+    ledger.cover(JANUARY, ImmutableList.of("asdf", "gone"));
+    ledger.save();
+
+    OrderLedger reloaded = OrderLedger.load(path, "loc");
+    Member member = member("asdf");
+    MemberDatabase database = MemberDatabase.builder().addMember(member).build();
+
+    assertThat(reloaded.coveredFrom()).isEqualTo(JANUARY);
+    assertThat(reloaded.watermark()).isEqualTo(FEBRUARY.plusSeconds(120));
+    assertThat(reloaded.customerIds()).containsExactly("asdf", "gone");
+    assertThat(reloaded.totals(database, JANUARY, FEBRUARY.plusSeconds(120)).get(0))
+        .isEqualTo(16000);
+    assertThat(reloaded.totals(database, FEBRUARY, FEBRUARY.plusSeconds(120)).get(0))
+        .isEqualTo(8000);
+  }
+
+  @Test
+  public void readdingOrderReplacesIt() {
+    OrderLedger ledger = OrderLedger.inMemory();
+    ledger.add("order0", "asdf", JANUARY, Payment.PaymentType.DUES, 1);
+    ledger.add("order0", "asdf", JANUARY, Payment.PaymentType.DUES, 1);
+    MemberDatabase database = MemberDatabase.builder().addMember(member("asdf")).build();
+
+    assertThat(ledger.size()).isEqualTo(1);
+    assertThat(ledger.totals(database, JANUARY, FEBRUARY).get(0)).isEqualTo(4000);
+  }
+
+  @Test
+  public void ignoresOtherLocations() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("orders");
+    OrderLedger ledger = OrderLedger.load(path, "loc");
+    ledger.add("order0", "asdf", JANUARY, Payment.PaymentType.DUES, 1);
+    ledger.cover(JANUARY, ImmutableList.of("asdf"));
+    ledger.save();
+
+    OrderLedger other = OrderLedger.load(path, "other");
+
+    assertThat(other.coveredFrom()).isNull();
+    assertThat(other.size()).isEqualTo(0);
+  }
+
+  private static Member member(String id) {
+    Customer customer = mock(Customer.class);
+    when(customer.getId()).thenReturn(id);
+    when(customer.getGivenName()).thenReturn("John");
+    when(customer.getFamilyName()).thenReturn("Doe");
+    when(customer.getGroupIds()).thenReturn(ImmutableList.of("member"));
+    return Member.create(customer, ImmutableMap.of("member", "MEMBER"));
+  }
+}
@@ -0,0 +1,157 @@
+package lu.zhe.kyudo;
+
+import com.google.common.collect.*;
+import com.squareup.square.models.*;
+import org.junit.*;
+import org.junit.rules.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+
+import static com.google.common.truth.Truth.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/** Unit tests for {@link RunSnapshot}. */
+@RunWith(JUnit4.class)
+public class RunSnapshotTest {
+  private static final LocalDate START = LocalDate.parse("2020-01-01");
+  private static final LocalDate END = LocalDate.parse("2020-02-29");
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void readReturnsWrittenInputs() throws IOException {
+    RunSnapshot snapshot = writeAndRead(snapshot(database()));
+
+    assertThat(snapshot.startDateInclusive()).isEqualTo(START);
+    assertThat(snapshot.endDateInclusive()).isEqualTo(END);
+    assertThat(snapshot.database().size()).isEqualTo(2);
+    Member john = snapshot.database().members().get(0);
+    assertThat(john.customer().getId()).isEqualTo("asdf");
+    assertThat(john.customer().getEmailAddress()).isEqualTo("john@example.com");
+    assertThat(john.name()).isEqualTo("John Doe");
+    assertThat(john.type()).isEqualTo(MemberType.MEMBER);
+    assertThat(john.autoInvoice()).isFalse();
+    Member joji = snapshot.database().members().get(1);
+    assertThat(joji.name()).isEqualTo("Jōji Rō");
+    assertThat(joji.customer().getEmailAddress()).isNull();
+    assertThat(joji.type()).isEqualTo(MemberType.ASSOCIATE);
+    assertThat(joji.autoInvoice()).isTrue();
+    assertThat(snapshot.database().indexOf("qwer")).isEqualTo(1);
+    assertThat(snapshot.balances().toString()).contains("[-4000, 1500]");
+  }
+
+  @Test
+  public void countsPeriodFromWrittenRows() throws IOException {
+    RunSnapshot snapshot = writeAndRead(snapshot(database()));
+
+    // Two months of membership for John, and three practices for Jōji.
+    assertThat(snapshot.attendance(START, END).toString()).contains("[2, 3]");
+    // The order closed after the period and the order of a customer who is not a member are
+    // left out.
+    assertThat(snapshot.payments(START, END).toString()).contains("[8000, 3000]");
+  }
+
+  @Test
+  public void countsOtherWindowWithinPaymentCoverage() throws IOException {
+    RunSnapshot snapshot = writeAndRead(snapshot(database()));
+
+    LocalDate start = LocalDate.parse("2019-12-01");
+    LocalDate end = LocalDate.parse("2020-01-31");
+    assertThat(snapshot.attendance(start, end).toString()).contains("[2, 3]");
+    assertThat(snapshot.payments(start, end).toString()).contains("[8000, 1500]");
+  }
+
+  @Test
+  public void rejectsWindowOutsidePaymentCoverage() throws IOException {
+    RunSnapshot snapshot = writeAndRead(snapshot(database()));
+
+    try {
+      snapshot.payments(START.plusMonths(1), END.plusMonths(1));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      snapshot.attendance(START.minusMonths(3), END);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void readRejectsOtherFiles() throws IOException {
+    Path path = temporaryFolder.newFile().toPath();
+    Files.write(path, ImmutableList.of("not a snapshot"));
+    try {
+      RunSnapshot.read(path);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  private RunSnapshot writeAndRead(RunSnapshot snapshot) throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("snapshot");
+    snapshot.write(path);
+    return RunSnapshot.read(path);
+  }
+
+  private static MemberDatabase database() {
+    return MemberDatabase
+        .builder()
+        .addMember(member("asdf", "John", "Doe", "john@example.com", "member"))
+        .addMember(member("qwer", "Jōji", "Rō", null, "associate", "autoinvoice"))
+        .build();
+  }
+
+  /** Snapshot of a period whose payments are covered from the start of the previous month. */
+  private static RunSnapshot snapshot(MemberDatabase database) {
+    AttendanceParser.Attendance attendance = new AttendanceParser.Attendance();
+    attendance.add(epochDay("2019-12-20"), 1);
+    attendance.add(epochDay("2020-01-05"), 0);
+    attendance.add(epochDay("2020-01-05"), 1);
+    attendance.add(epochDay("2020-01-12"), 1);
+    attendance.add(epochDay("2020-02-02"), 1);
+    OrderLedger ledger = OrderLedger.inMemory();
+    ledger.cover(instant("2019-12-01"), ImmutableList.of("asdf", "qwer"));
+    ledger.add("o1", "qwer", instant("2019-12-10"), Payment.PaymentType.DUES, 1);
+    ledger.add("o2", "asdf", instant("2020-01-15"), Payment.PaymentType.DUES, 2);
+    ledger.add("o3", "qwer", instant("2020-02-10"), Payment.PaymentType.FIRST_SHOT, 1);
+    ledger.add("o4", "zxcv", instant("2020-02-11"), Payment.PaymentType.DUES, 1);
+    ledger.add("o5", "asdf", instant("2020-03-05"), Payment.PaymentType.DUES, 1);
+    return RunSnapshot.create(START,
+        END,
+        database.newVector().add(0, -4000).add(1, 1500),
+        attendance,
+        ledger);
+  }
+
+  private static int epochDay(String date) {
+    return Math.toIntExact(LocalDate.parse(date).toEpochDay());
+  }
+
+  private static Instant instant(String date) {
+    return LocalDate.parse(date).atStartOfDay(SquareApiClient.ORDER_ZONE).toInstant();
+  }
+
+  private static Member member(
+      String id, String givenName, String familyName, String email, String... groupIds) {
+    Customer customer = mock(Customer.class);
+    when(customer.getId()).thenReturn(id);
+    when(customer.getGivenName()).thenReturn(givenName);
+    when(customer.getFamilyName()).thenReturn(familyName);
+    when(customer.getEmailAddress()).thenReturn(email);
+    when(customer.getGroupIds()).thenReturn(ImmutableList.copyOf(groupIds));
+    return Member.create(customer,
+        ImmutableMap.of("member",
+            "MEMBER",
+            "associate",
+            "ASSOCIATE",
+            "autoinvoice",
+            MemberGroups.AUTOINVOICE_GROUP));
+  }
+}
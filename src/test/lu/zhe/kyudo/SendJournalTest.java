@@ -0,0 +1,72 @@
+package lu.zhe.kyudo;
+
+import org.junit.*;
+import org.junit.rules.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+
+import static com.google.common.truth.Truth.*;
+
+/** Unit tests for {@link SendJournal}. */
+@RunWith(JUnit4.class)
+public class SendJournalTest {
+  private static final LocalDate PERIOD = LocalDate.parse("2021-01-01");
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void reopenedJournalReplaysRecordedSteps() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("journal");
+    try (SendJournal journal = SendJournal.open(path, PERIOD)) {
+      journal.record(SendJournal.Kind.EMAIL, "asdf");
+      journal.record(SendJournal.Kind.PUBLISH, "asdf", "inv1");
+      journal.record(SendJournal.Kind.CANCEL, "inv0");
+    }
+
+    try (SendJournal journal = SendJournal.open(path, PERIOD)) {
+      assertThat(journal.contains(SendJournal.Kind.EMAIL, "asdf")).isTrue();
+      assertThat(journal.contains(SendJournal.Kind.EMAIL, "foobar")).isFalse();
+      assertThat(journal.contains(SendJournal.Kind.CANCEL, "inv0")).isTrue();
+      assertThat(journal.entries(SendJournal.Kind.PUBLISH)).containsExactly("asdf", "inv1");
+    }
+  }
+
+  @Test
+  public void ignoresOtherPeriods() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("journal");
+    try (SendJournal journal = SendJournal.open(path, PERIOD.minusMonths(2))) {
+      journal.record(SendJournal.Kind.EMAIL, "asdf");
+    }
+
+    try (SendJournal journal = SendJournal.open(path, PERIOD)) {
+      assertThat(journal.size(SendJournal.Kind.EMAIL)).isEqualTo(0);
+      journal.record(SendJournal.Kind.EMAIL, "foobar");
+    }
+    try (SendJournal journal = SendJournal.open(path, PERIOD.minusMonths(2))) {
+      assertThat(journal.entries(SendJournal.Kind.EMAIL).keySet()).containsExactly("asdf");
+    }
+  }
+
+  @Test
+  public void dropsTornLine() throws IOException {
+    Path path = temporaryFolder.getRoot().toPath().resolve("journal");
+    Files.write(path,
+        ("EMAIL\t" + PERIOD + "\tasdf\t\nEMAIL\t" + PERIOD + "\tfoo").getBytes(
+            StandardCharsets.UTF_8));
+
+    try (SendJournal journal = SendJournal.open(path, PERIOD)) {
+      assertThat(journal.entries(SendJournal.Kind.EMAIL).keySet()).containsExactly("asdf");
+      journal.record(SendJournal.Kind.EMAIL, "foobar");
+    }
+
+    assertThat(Files.readAllLines(path, StandardCharsets.UTF_8)).containsExactly(
+        "EMAIL\t" + PERIOD + "\tasdf\t",
+        "EMAIL\t" + PERIOD + "\tfoobar\t").inOrder();
+  }
+}
@@ -2,14 +2,19 @@ package lu.zhe.kyudo;
 
 import com.google.api.services.sheets.v4.*;
 import com.google.api.services.sheets.v4.model.*;
+import com.google.api.services.sheets.v4.model.Request;
 import com.google.common.collect.*;
 import com.squareup.square.models.*;
 import org.junit.*;
+import org.junit.rules.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
 import org.mockito.*;
+import org.mockito.stubbing.*;
 
 import java.io.*;
+import java.math.*;
+import java.nio.file.*;
 import java.time.*;
 import java.util.*;
 
@@ -27,6 +32,9 @@ public class SheetsClientTest {
 
   private MemberDatabase memberDatabase;
 
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Before
   public void setup() {
     Customer johnDoe = mock(Customer.class);
@@ -81,20 +89,15 @@ public class SheetsClientTest {
     Sheets sheets = mock(Sheets.class);
     Sheets.Spreadsheets spreadsheets = mock(Sheets.Spreadsheets.class);
     Sheets.Spreadsheets.Values values = mock(Sheets.Spreadsheets.Values.class);
-    Sheets.Spreadsheets.Values.Get valuesGet = mock(Sheets.Spreadsheets.Values.Get.class);
-    ValueRange valueRange = new ValueRange();
-    List<List<Object>> responses =
-        ImmutableList.of(ImmutableList.of("", "", "John Doe, Jane Doe", "", "1/20/2018"),
-            ImmutableList.of("", "", "John Doe, Jane Doe", "", "2/01/2018"),
-            ImmutableList.of("", "", "John Doe, Jane Doe, Bob Smith", "", "2/25/2018"),
-            ImmutableList.of("", "", "John Doe, Alice Eve", "", "3/20/2018"),
-            ImmutableList.of("", "", "John Doe, Jane Doe", "", "4/01/2018"));
-    valueRange.setValues(responses);
-
     when(sheets.spreadsheets()).thenReturn(spreadsheets);
     when(spreadsheets.values()).thenReturn(values);
-    when(values.get(eq("foo"), eq("Form Responses 1!A2:E"))).thenReturn(valuesGet);
-    when(valuesGet.execute()).thenReturn(valueRange);
+    Sheets.Spreadsheets.Values.BatchGet batchGet = stubBatchGet(values,
+        ImmutableList.of(ImmutableList.of("", "", "John Doe, Jane Doe", "", serial("2018-01-20")),
+            ImmutableList.of("", "", "John Doe, Jane Doe", "", serial("2018-02-01")),
+            ImmutableList.of("", "", "John Doe, Jane Doe, Bob Smith", "", serial("2018-02-25")),
+            // Dates entered as text are not converted to serial numbers.
+            ImmutableList.of("", "", "John Doe, Alice Eve", "", "3/20/2018"),
+            ImmutableList.of("", "", "John Doe, Jane Doe", "", serial("2018-04-01"))));
 
     SheetsClient client = new SheetsClient(sheets);
 
@@ -110,88 +113,125 @@ public class SheetsClientTest {
         bobSmithMember,
         aliceEveMember,
         aliceEveMember);
+    verify(batchGet).setRanges(ImmutableList.of("Form Responses 1!A2:E"));
+    verify(batchGet).setValueRenderOption("UNFORMATTED_VALUE");
+    verify(batchGet).setDateTimeRenderOption("SERIAL_NUMBER");
   }
 
   @Test
-  public void readAccounts() throws IOException {
+  public void parseAttendanceIncrementally() throws IOException {
     Sheets sheets = mock(Sheets.class);
     Sheets.Spreadsheets spreadsheets = mock(Sheets.Spreadsheets.class);
     Sheets.Spreadsheets.Values values = mock(Sheets.Spreadsheets.Values.class);
-    Sheets.Spreadsheets.Values.Get valuesGet = mock(Sheets.Spreadsheets.Values.Get.class);
-    ValueRange valueRange = new ValueRange();
-    List<List<Object>> responses =
-        ImmutableList.of(ImmutableList.of("John Doe", "", "", "", "", "", "", "40"),
-            ImmutableList.of("Jane Doe", "", "", "", "", "", "", "-120")); // 8 * -15
-    valueRange.setValues(responses);
+    when(sheets.spreadsheets()).thenReturn(spreadsheets);
+    when(spreadsheets.values()).thenReturn(values);
+    Sheets.Spreadsheets.Values.BatchGet batchGet = stubBatchGet(values,
+        ImmutableList.of(ImmutableList.of("", "", "John Doe, Jane Doe", "", serial("2018-01-20")),
+            ImmutableList.of("", "", "John Doe, Jane Doe", "", serial("2018-02-01")),
+            ImmutableList.of("", "", "John Doe, Jane Doe, Bob Smith", "", serial("2018-02-25"))),
+        ImmutableList.of(ImmutableList.of("", "", "John Doe, Alice Eve", "", serial("2018-03-20")),
+            ImmutableList.of("", "", "John Doe, Jane Doe", "", serial("2018-04-01"))));
+
+    SheetsClient client = new SheetsClient(sheets);
+    Path cachePath = temporaryFolder.getRoot().toPath().resolve("attendance");
+
+    ImmutableMultiset<Member> first = client.readAttendanceSheet(memberDatabase,
+        "foo",
+        LocalDate.parse("2018-02-01"),
+        LocalDate.parse("2018-03-31"),
+        AttendanceCache.load(cachePath, "foo"));
+    ImmutableMultiset<Member> second = client.readAttendanceSheet(memberDatabase,
+        "foo",
+        LocalDate.parse("2018-02-01"),
+        LocalDate.parse("2018-03-31"),
+        AttendanceCache.load(cachePath, "foo"));
 
+    assertThat(first).containsExactly(johnDoeMember,
+        janeDoeMember,
+        janeDoeMember,
+        bobSmithMember,
+        aliceEveMember,
+        aliceEveMember);
+    assertThat(second).containsExactly(johnDoeMember,
+        johnDoeMember,
+        janeDoeMember,
+        janeDoeMember,
+        bobSmithMember,
+        aliceEveMember,
+        aliceEveMember);
+    verify(batchGet).setRanges(ImmutableList.of("Form Responses 1!A2:E"));
+    verify(batchGet).setRanges(ImmutableList.of("Form Responses 1!A5:E"));
+    assertThat(AttendanceCache.load(cachePath, "foo").watermark()).isEqualTo(5);
+    assertThat(AttendanceCache.load(cachePath, "bar").watermark()).isEqualTo(0);
+  }
+
+  @Test
+  public void readAccounts() throws IOException {
+    Sheets sheets = mock(Sheets.class);
+    Sheets.Spreadsheets spreadsheets = mock(Sheets.Spreadsheets.class);
+    Sheets.Spreadsheets.Values values = mock(Sheets.Spreadsheets.Values.class);
     when(sheets.spreadsheets()).thenReturn(spreadsheets);
     when(spreadsheets.values()).thenReturn(values);
-    when(values.get(eq("foo"), eq("2021-01 to 2021-02!A2:H"))).thenReturn(valuesGet);
-    when(valuesGet.execute()).thenReturn(valueRange);
+    Sheets.Spreadsheets.Values.BatchGet batchGet = stubBatchGet(values,
+        ImmutableList.of(ImmutableList.of("John Doe", "", "", "", "", "", "", number(40)),
+            ImmutableList.of("Jane Doe", "", "", "", "", "", "", number(-120)))); // 8 * -15
 
     SheetsClient client = new SheetsClient(sheets);
 
     SheetsClient.Accounts accounts =
         client.readAccounts(memberDatabase, "foo", LocalDate.parse("2021-04-30"));
 
-    assertThat(accounts.waivers()).containsExactly(johnDoeMember,
-        Payment.create(johnDoeMember, Payment.PaymentType.DUES));
-    assertThat(accounts.owed().asMap()).containsExactly(janeDoeMember,
+    assertThat(accounts.balances().members()).containsExactly(johnDoeMember, janeDoeMember);
+    assertThat(accounts.balances().balance(johnDoeMember)).isEqualTo(4000);
+    assertThat(accounts.balances().balance(janeDoeMember)).isEqualTo(-12000);
+    verify(batchGet).setRanges(ImmutableList.of("2021-01 to 2021-02!A2:H"));
+    assertThat(accounts.balances().itemized(janeDoeMember)).isEqualTo(
         ImmutableList.copyOf(Collections.nCopies(8,
             Payment.create(janeDoeMember, Payment.PaymentType.DUES))));
   }
 
   @Test
   public void writeInvoices() throws IOException {
+    List<Request> requests = writeInvoices(false);
+
+    assertThat(requests).hasSize(2);
+    SheetProperties properties = requests.get(0).getAddSheet().getProperties();
+    assertThat(properties.getTitle()).isEqualTo("2021-01 to 2021-02");
+    assertThat(properties.getSheetId()).isEqualTo(202101);
+    assertThat(properties.getGridProperties().getRowCount()).isEqualTo(5);
+    assertThat(properties.getGridProperties().getColumnCount())
+        .isEqualTo(SheetsClient.INVOICE_SHEET_HEADERS.size());
+    UpdateCellsRequest updateCells = requests.get(1).getUpdateCells();
+    assertThat(updateCells.getStart().getSheetId()).isEqualTo(202101);
+    assertThat(updateCells.getStart().getRowIndex()).isEqualTo(0);
+    assertThat(cellValues(updateCells.getRows())).containsExactly(
+        SheetsClient.INVOICE_SHEET_HEADERS,
+        ImmutableList.of("Alice Eve", "regular", 0, 2, 40, 80, 40, -40),
+        ImmutableList.of("Bob Smith", "student", 40, 0, 20, 0, 80, 120),
+        ImmutableList.of("Jane Doe", "associate", -30, 3, 15, 45, 15, -60),
+        ImmutableList.of("John Doe", "regular", -80, 2, 40, 80, 80, -80)).inOrder();
+  }
+
+  @Test
+  public void writeInvoicesWithRowFormulas() throws IOException {
+    List<Request> requests = writeInvoices(true);
+
+    assertThat(cellValues(requests.get(1).getUpdateCells().getRows()).subList(1, 3))
+        .containsExactly(
+            ImmutableList.of("Alice Eve", "regular", 0, 2, 40, "=D2*E2", 40, "=C2-F2+G2"),
+            ImmutableList.of("Bob Smith", "student", 40, 0, 20, "=D3*E3", 80, "=C3-F3+G3"))
+        .inOrder();
+  }
+
+  /** Writes the invoices of the test members, returning the single batch update it sent. */
+  private List<Request> writeInvoices(boolean rowFormulas) throws IOException {
     Sheets sheets = mock(Sheets.class);
     Sheets.Spreadsheets spreadsheets = mock(Sheets.Spreadsheets.class);
-    Sheets.Spreadsheets.Values values = mock(Sheets.Spreadsheets.Values.class);
-    Sheets.Spreadsheets.Values.Append valuesAppend = mock(Sheets.Spreadsheets.Values.Append.class);
-
     Sheets.Spreadsheets.BatchUpdate batchUpdate = mock(Sheets.Spreadsheets.BatchUpdate.class);
-
+    ArgumentCaptor<BatchUpdateSpreadsheetRequest> request =
+        ArgumentCaptor.forClass(BatchUpdateSpreadsheetRequest.class);
     when(sheets.spreadsheets()).thenReturn(spreadsheets);
-    when(spreadsheets.values()).thenReturn(values);
-    when(spreadsheets.batchUpdate(eq("foo"), ArgumentMatchers.argThat(req -> {
-      int size = req.getRequests().size();
-      if (size != 1) {
-        return false;
-      }
-      return req
-          .getRequests()
-          .get(0)
-          .getAddSheet()
-          .getProperties()
-          .getTitle()
-          .equals("2021-01 to 2021-02");
-    }))).thenReturn(batchUpdate);
-    List<List<Object>> expected = ImmutableList.of(SheetsClient.INVOICE_SHEET_HEADERS,
-        ImmutableList.of("Alice Eve", "regular", 0, 2, 40, "= D:D * E:E", 40, "= C:C - F:F + G:G"),
-        ImmutableList.of("Bob Smith", "student", 40, 0, 20, "= D:D * E:E", 80, "= C:C - F:F + G:G"),
-        ImmutableList.of("Jane Doe",
-            "associate",
-            -30,
-            3,
-            15,
-            "= D:D * E:E",
-            15,
-            "= C:C - F:F + G:G"),
-        ImmutableList.of("John Doe",
-            "regular",
-            -80,
-            2,
-            40,
-            "= D:D * E:E",
-            80,
-            "= C:C - F:F + G:G"));
-    when(values.append(eq("foo"),
-        eq("2021-01 to 2021-02!A1"),
-        ArgumentMatchers.argThat(req -> req
-            .getValues()
-            .equals(expected)))).thenReturn(valuesAppend);
-
-    when(valuesAppend.setValueInputOption(eq("USER_ENTERED"))).thenReturn(valuesAppend);
-    when(valuesAppend.setInsertDataOption(eq("INSERT_ROWS"))).thenReturn(valuesAppend);
+    when(spreadsheets.batchUpdate(eq("foo"), request.capture())).thenReturn(batchUpdate);
 
     SheetsClient client = new SheetsClient(sheets);
     Invoices.Builder invoiceBuilder = Invoices.builder();
@@ -203,30 +243,35 @@ public class SheetsClientTest {
     invoiceBuilder.attendanceCountBuilder().put(janeDoeMember, 3);
     invoiceBuilder.attendanceCountBuilder().put(aliceEveMember, 2);
     SheetsClient.Accounts.Builder accountsBuilder = SheetsClient.Accounts.builder();
-    accountsBuilder
-        .owedBuilder()
-        .putAll(johnDoeMember,
-            ImmutableList.copyOf(Collections.nCopies(2,
-                Payment.create(johnDoeMember, Payment.PaymentType.DUES))));
-    accountsBuilder
-        .owedBuilder()
-        .putAll(janeDoeMember,
-            ImmutableList.copyOf(Collections.nCopies(2,
-                Payment.create(janeDoeMember, Payment.PaymentType.DUES))));
-    accountsBuilder
-        .waiversBuilder()
-        .putAll(bobSmithMember,
-            ImmutableList.copyOf(Collections.nCopies(2,
-                Payment.create(bobSmithMember, Payment.PaymentType.DUES))));
+    accountsBuilder.balancesBuilder().add(johnDoeMember, -8000);
+    accountsBuilder.balancesBuilder().add(janeDoeMember, -3000);
+    accountsBuilder.balancesBuilder().add(bobSmithMember, 4000);
 
     client.writeInvoices("foo",
         invoiceBuilder.build(),
         accountsBuilder.build(),
-        LocalDate.parse("2021-01-01"));
+        LocalDate.parse("2021-01-01"),
+        rowFormulas);
 
     verify(batchUpdate, times(1)).execute();
+    verify(spreadsheets, never()).values();
+    return request.getValue().getRequests();
+  }
 
-    verify(valuesAppend, times(1)).execute();
+  /** Converts cells to their strings, integers or formulas. */
+  private static List<List<Object>> cellValues(List<RowData> rows) {
+    List<List<Object>> result = new ArrayList<>();
+    for (RowData row : rows) {
+      List<Object> values = new ArrayList<>();
+      for (CellData cell : row.getValues()) {
+        ExtendedValue value = cell.getUserEnteredValue();
+        values.add(value.getNumberValue() != null ?
+            (Object) value.getNumberValue().intValue() :
+            value.getFormulaValue() != null ? value.getFormulaValue() : value.getStringValue());
+      }
+      result.add(values);
+    }
+    return result;
   }
 
   @Test
@@ -234,18 +279,12 @@ public class SheetsClientTest {
     Sheets sheets = mock(Sheets.class);
     Sheets.Spreadsheets spreadsheets = mock(Sheets.Spreadsheets.class);
     Sheets.Spreadsheets.Values values = mock(Sheets.Spreadsheets.Values.class);
-    Sheets.Spreadsheets.Values.Get valuesGet = mock(Sheets.Spreadsheets.Values.Get.class);
-    ValueRange valueRange = new ValueRange();
-    List<List<Object>> responses =
-        ImmutableList.of(ImmutableList.of("John Doe", "regular", -80, 2, 40, 80, 0, 0),
-            ImmutableList.of("Jane Doe", "associate", 45, 2, 15, 30, 15, 30),
-            ImmutableList.of("Bob Smith", "student", 40, 2, 20, 40, 20, -60));
-    valueRange.setValues(responses);
-
     when(sheets.spreadsheets()).thenReturn(spreadsheets);
     when(spreadsheets.values()).thenReturn(values);
-    when(values.get(eq("foo"), eq("2021-01 to 2021-02!A2:H"))).thenReturn(valuesGet);
-    when(valuesGet.execute()).thenReturn(valueRange);
+    Sheets.Spreadsheets.Values.BatchGet batchGet = stubBatchGet(values,
+        ImmutableList.of(ImmutableList.of("John Doe", "regular", -80, 2, 40, 80, 0, 0),
+            ImmutableList.of("Jane Doe", "associate", 45, 2, 15, 30, 15, 30),
+            ImmutableList.of("Bob Smith", "student", 40, 2, 20, 40, 20, -60)));
 
     SheetsClient client = new SheetsClient(sheets);
     List<Invoices.InvoiceEmail> emails = client.generateEmails("foo",
@@ -264,4 +303,31 @@ public class SheetsClientTest {
     assertThat(email3.emailTo()).isEqualTo("bob.smith@gmail.com");
     assertThat(email3.emailText()).contains("dues are: $60");
   }
+
+  /**
+   * Stubs {@code values} to answer batch gets of spreadsheet "foo" with each of {@code responses}
+   * in turn, as the values of a single range.
+   */
+  @SafeVarargs
+  private static Sheets.Spreadsheets.Values.BatchGet stubBatchGet(
+      Sheets.Spreadsheets.Values values, List<List<Object>>... responses) throws IOException {
+    Sheets.Spreadsheets.Values.BatchGet batchGet =
+        mock(Sheets.Spreadsheets.Values.BatchGet.class, RETURNS_SELF);
+    when(values.batchGet(eq("foo"))).thenReturn(batchGet);
+    OngoingStubbing<BatchGetValuesResponse> execute = when(batchGet.execute());
+    for (List<List<Object>> response : responses) {
+      execute = execute.thenReturn(new BatchGetValuesResponse().setValueRanges(ImmutableList.of(
+          new ValueRange().setValues(response))));
+    }
+    return batchGet;
+  }
+
+  /** Returns the serial number Sheets reads an unformatted date as. */
+  private static BigDecimal serial(String date) {
+    return BigDecimal.valueOf(LocalDate.parse(date).toEpochDay() + 25569);
+  }
+
+  private static BigDecimal number(int value) {
+    return BigDecimal.valueOf(value);
+  }
 }
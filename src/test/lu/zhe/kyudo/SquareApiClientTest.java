@@ -14,6 +14,7 @@ import org.mockito.stubbing.*;
 import java.io.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.truth.Truth.*;
 import static org.mockito.ArgumentMatchers.*;
@@ -44,19 +45,23 @@ public class SquareApiClientTest {
 
     when(johnDoe.getGroupIds()).thenReturn(ImmutableList.of("member"));
     when(janeDoe.getGroupIds()).thenReturn(ImmutableList.of("member"));
-    when(bobSmith.getGroupIds()).thenReturn(ImmutableList.of("associate"));
+    when(bobSmith.getGroupIds()).thenReturn(ImmutableList.of("auto", "associate"));
 
     when(squareClient.getCustomersApi()).thenReturn(api);
-    when(api.listCustomers(any(), any(), any())).thenAnswer(new Answer() {
+    when(api.searchCustomers(any())).thenAnswer(new Answer() {
       @Override
       public Object answer(InvocationOnMock invocationOnMock) {
-        String cursor = invocationOnMock.getArgument(0);
+        SearchCustomersRequest request = invocationOnMock.getArgument(0);
+        assertThat(request.getLimit()).isEqualTo(100L);
+        assertThat(request.getQuery().getFilter().getGroupIds().getAny())
+            .containsExactly("member", "associate");
+        String cursor = request.getCursor();
         if (cursor == null) {
-          return new ListCustomersResponse(ImmutableList.of(),
+          return new SearchCustomersResponse(ImmutableList.of(),
               ImmutableList.of(johnDoe, janeDoe),
               "foo");
         } else if (cursor.equals("foo")) {
-          return new ListCustomersResponse(ImmutableList.of(), ImmutableList.of(bobSmith), null);
+          return new SearchCustomersResponse(ImmutableList.of(), ImmutableList.of(bobSmith), null);
         }
         throw new IllegalStateException("Unhandled cursor state");
       }
@@ -72,7 +77,11 @@ public class SquareApiClientTest {
     CustomerGroup associateGroup = mock(CustomerGroup.class);
     when(associateGroup.getId()).thenReturn("associate");
     when(associateGroup.getName()).thenReturn("ASSOCIATE");
-    when(response.getGroups()).thenReturn(ImmutableList.of(memberGroup, associateGroup));
+    CustomerGroup autoGroup = mock(CustomerGroup.class);
+    when(autoGroup.getId()).thenReturn("auto");
+    when(autoGroup.getName()).thenReturn("AutoInvoice");
+    when(response.getGroups())
+        .thenReturn(ImmutableList.of(memberGroup, associateGroup, autoGroup));
 
     MemberDatabase database = client.getMembers();
 
@@ -95,6 +104,9 @@ public class SquareApiClientTest {
     assertThat(database.nameToMember().get("John Doe").name()).isEqualTo("John Doe");
     assertThat(database.nameToMember().get("Jane Doe").name()).isEqualTo("Jane Doe");
     assertThat(database.nameToMember().get("Bob Smith").name()).isEqualTo("Bob Smith");
+
+    assertThat(database.nameToMember().get("John Doe").autoInvoice()).isFalse();
+    assertThat(database.nameToMember().get("Bob Smith").autoInvoice()).isTrue();
   }
 
   @Test
@@ -120,6 +132,10 @@ public class SquareApiClientTest {
     MemberDatabase database = builder.build();
 
     OrdersApi api = mock(OrdersApi.class);
+    List<TimeRange> timeRanges =
+        SquareApiClient.partition(LocalDate.parse("2020-01-01"), LocalDate.parse("2020-06-30"));
+    TimeRange window = new TimeRange(timeRanges.get(0).getStartAt(),
+        timeRanges.get(timeRanges.size() - 1).getEndAt());
 
     OrderLineItem firstShot = mock(OrderLineItem.class);
     when(firstShot.getName()).thenReturn("First Shot");
@@ -131,7 +147,7 @@ public class SquareApiClientTest {
     when(other.getName()).thenReturn("asdf");
     when(other.getQuantity()).thenReturn("1");
 
-    when(api.searchOrders(any())).thenAnswer(new Answer() {
+    when(api.searchOrdersAsync(any())).thenAnswer(new Answer() {
       @Override
       public Object answer(InvocationOnMock invocationOnMock) {
         SearchOrdersRequest request = invocationOnMock.getArgument(0);
@@ -152,17 +168,35 @@ public class SquareApiClientTest {
           throw new IllegalStateException("COMPLETED STATE expected");
         }
         TimeRange timeRange = query.getFilter().getDateTimeFilter().getClosedAt();
-        if (!timeRange.getStartAt().equals("2020-01-01T00:00:00-05:00")) {
-          throw new IllegalStateException("Incorrect start time");
-        }
-        if (!timeRange.getEndAt().equals("2020-06-30T23:59:59-04:00")) {
-          throw new IllegalStateException("Incorrect end time");
+        if (!timeRanges.contains(timeRange) && !timeRange.equals(window)) {
+          throw new IllegalStateException("Incorrect time range");
         }
         if (!request.getLocationIds().equals(ImmutableList.of("foobarqux"))) {
           throw new IllegalStateException("Incorrect location ids");
         }
+        if (!query
+            .getFilter()
+            .getCustomerFilter()
+            .getCustomerIds()
+            .equals(ImmutableList.of("asdf", "foobar"))) {
+          throw new IllegalStateException("Incorrect customer ids");
+        }
         String cursor = request.getCursor();
-        if (cursor == null) {
+        if (timeRange.equals(window)) {
+          // More orders than fit on a page, so the window is searched by week instead.
+          Order dropped = mock(Order.class);
+          when(dropped.getCustomerId()).thenReturn("asdf");
+          when(dropped.getLineItems()).thenReturn(ImmutableList.of(dues));
+          return CompletableFuture.completedFuture(new SearchOrdersResponse(ImmutableList.of(),
+              ImmutableList.of(dropped),
+              "window",
+              ImmutableList.of()));
+        } else if (!timeRange.equals(timeRanges.get(0))) {
+          return CompletableFuture.completedFuture(new SearchOrdersResponse(ImmutableList.of(),
+              null,
+              null,
+              ImmutableList.of()));
+        } else if (cursor == null) {
           Order johnFirstShot = mock(Order.class);
           when(johnFirstShot.getCustomerId()).thenReturn("asdf");
           when(johnFirstShot.getLineItems()).thenReturn(ImmutableList.of(firstShot));
@@ -173,18 +207,18 @@ public class SquareApiClientTest {
           Order unknownPaymentType = mock(Order.class);
           when(unknownPaymentType.getCustomerId()).thenReturn("asdf");
           when(unknownPaymentType.getLineItems()).thenReturn(ImmutableList.of(other));
-          return new SearchOrdersResponse(ImmutableList.of(),
+          return CompletableFuture.completedFuture(new SearchOrdersResponse(ImmutableList.of(),
               ImmutableList.of(johnFirstShot, janeDues, nullIdOrder, unknownPaymentType),
               "bar",
-              ImmutableList.of());
+              ImmutableList.of()));
         } else if (cursor.equals("bar")) {
           Order johnDues = mock(Order.class);
           when(johnDues.getCustomerId()).thenReturn("asdf");
           when(johnDues.getLineItems()).thenReturn(ImmutableList.of(dues));
-          return new SearchOrdersResponse(ImmutableList.of(),
+          return CompletableFuture.completedFuture(new SearchOrdersResponse(ImmutableList.of(),
               ImmutableList.of(johnDues),
               null,
-              ImmutableList.of());
+              ImmutableList.of()));
         }
         throw new IllegalStateException("unhandled cursor state");
       }
@@ -192,17 +226,265 @@ public class SquareApiClientTest {
 
     when(squareClient.getOrdersApi()).thenReturn(api);
 
-    ListMultimap<Member, Payment> result = client.getPayments(database,
+    List<Ledger> pages = new ArrayList<>();
+    Ledger result = client.getPayments(database,
         "foobarqux",
         LocalDate.parse("2020-01-01"),
-        LocalDate.parse("2020-06-30"));
-
-    assertThat(result.keySet()).containsExactly(johnDoeMember, janeSmithMember);
-    assertThat(result.get(johnDoeMember)).containsExactly(Payment.create(johnDoeMember,
-        Payment.PaymentType.DUES),
-        Payment.create(johnDoeMember, Payment.PaymentType.DUES),
-        Payment.create(johnDoeMember, Payment.PaymentType.FIRST_SHOT));
-    assertThat(result.get(janeSmithMember)).containsExactly(Payment.create(janeSmithMember,
-        Payment.PaymentType.DUES), Payment.create(janeSmithMember, Payment.PaymentType.DUES));
+        LocalDate.parse("2020-06-30"),
+        pages::add);
+
+    assertThat(result.members()).containsExactly(johnDoeMember, janeSmithMember);
+    // One first shot and two dues.
+    assertThat(result.balance(johnDoeMember)).isEqualTo(16000);
+    assertThat(result.balance(janeSmithMember)).isEqualTo(8000);
+    assertThat(pages).hasSize(2);
+    assertThat(pages.get(0).balance(johnDoeMember)).isEqualTo(8000);
+    assertThat(pages.get(0).balance(janeSmithMember)).isEqualTo(8000);
+    assertThat(pages.get(1).members()).containsExactly(johnDoeMember);
+  }
+
+  @Test
+  public void partitionSplitsWindowIntoWeeks() {
+    List<TimeRange> partitions =
+        SquareApiClient.partition(LocalDate.parse("2020-01-01"), LocalDate.parse("2020-06-30"));
+
+    assertThat(partitions).hasSize(26);
+    assertThat(partitions.get(0).getStartAt()).isEqualTo("2020-01-01T00:00:00-05:00");
+    assertThat(partitions.get(0).getEndAt()).isEqualTo("2020-01-08T00:00:00-05:00");
+    assertThat(partitions.get(25).getStartAt()).isEqualTo("2020-06-24T00:00:00-04:00");
+    assertThat(partitions.get(25).getEndAt()).isEqualTo("2020-06-30T23:59:59-04:00");
+    for (int i = 1; i < partitions.size(); ++i) {
+      assertThat(partitions.get(i).getStartAt()).isEqualTo(partitions.get(i - 1).getEndAt());
+    }
+  }
+
+  @Test
+  public void getPaymentsCountsOrdersOnPartitionBoundariesOnce() throws Exception {
+    Customer johnDoe = mock(Customer.class);
+    when(johnDoe.getId()).thenReturn("asdf");
+    when(johnDoe.getGivenName()).thenReturn("John");
+    when(johnDoe.getFamilyName()).thenReturn("Doe");
+    when(johnDoe.getGroupIds()).thenReturn(ImmutableList.of("member"));
+    Member member = Member.create(johnDoe, ImmutableMap.of("member", "MEMBER"));
+    MemberDatabase database = MemberDatabase.builder().addMember(member).build();
+
+    OrderLineItem dues = mock(OrderLineItem.class);
+    when(dues.getName()).thenReturn("Dues");
+    when(dues.getQuantity()).thenReturn("1");
+    Order boundaryDues = mock(Order.class);
+    when(boundaryDues.getId()).thenReturn("order");
+    when(boundaryDues.getCustomerId()).thenReturn("asdf");
+    when(boundaryDues.getClosedAt()).thenReturn("2020-01-08T05:00:00Z");
+    when(boundaryDues.getLineItems()).thenReturn(ImmutableList.of(dues));
+    OrdersApi api = mock(OrdersApi.class);
+    when(squareClient.getOrdersApi()).thenReturn(api);
+    // The first search, over the whole window, has another page, so each week is searched.
+    when(api.searchOrdersAsync(any()))
+        .thenReturn(CompletableFuture.completedFuture(new SearchOrdersResponse(ImmutableList.of(),
+            ImmutableList.of(boundaryDues),
+            "next",
+            ImmutableList.of())))
+        .thenReturn(CompletableFuture.completedFuture(new SearchOrdersResponse(ImmutableList.of(),
+            ImmutableList.of(boundaryDues),
+            null,
+            ImmutableList.of())));
+
+    Ledger result = client.getPayments(database,
+        "loc",
+        LocalDate.parse("2020-01-01"),
+        LocalDate.parse("2020-01-14"));
+
+    verify(api, times(3)).searchOrdersAsync(any());
+    assertThat(result.balance(member)).isEqualTo(4000);
+  }
+
+  @Test
+  public void cancelOutstandingInvoicesForAutoInvoicedCustomers() throws IOException, ApiException {
+    Customer johnDoe = mock(Customer.class);
+    Customer janeSmith = mock(Customer.class);
+    when(johnDoe.getId()).thenReturn("asdf");
+    when(janeSmith.getId()).thenReturn("foobar");
+    when(johnDoe.getGivenName()).thenReturn("John");
+    when(johnDoe.getFamilyName()).thenReturn("Doe");
+    when(janeSmith.getGivenName()).thenReturn("Jane");
+    when(janeSmith.getFamilyName()).thenReturn("Smith");
+    when(johnDoe.getGroupIds()).thenReturn(ImmutableList.of("member", "auto"));
+    when(janeSmith.getGroupIds()).thenReturn(ImmutableList.of("member"));
+    Map<String, String> groups = ImmutableMap.of("member", "MEMBER", "auto", "AutoInvoice");
+    MemberDatabase database = MemberDatabase
+        .builder()
+        .addMember(Member.create(johnDoe, groups))
+        .addMember(Member.create(janeSmith, groups))
+        .build();
+
+    CustomerGroupsApi groupsApi = mock(CustomerGroupsApi.class);
+    when(squareClient.getCustomerGroupsApi()).thenReturn(groupsApi);
+    ListCustomerGroupsResponse groupsResponse = mock(ListCustomerGroupsResponse.class);
+    when(groupsApi.listCustomerGroups(any())).thenReturn(groupsResponse);
+    CustomerGroup memberGroup = mock(CustomerGroup.class);
+    when(memberGroup.getId()).thenReturn("member");
+    when(memberGroup.getName()).thenReturn("MEMBER");
+    CustomerGroup autoGroup = mock(CustomerGroup.class);
+    when(autoGroup.getId()).thenReturn("auto");
+    when(autoGroup.getName()).thenReturn("AutoInvoice");
+    when(groupsResponse.getGroups()).thenReturn(ImmutableList.of(memberGroup, autoGroup));
+
+    String recent = Instant.now().minus(Duration.ofDays(10)).toString();
+    Invoice johnUnpaid = mockInvoice("inv1", 3, "asdf", "UNPAID", recent);
+    Invoice johnPaid = mockInvoice("inv2", 1, "asdf", "PAID", recent);
+    Invoice janeUnpaid = mockInvoice("inv3", 1, "foobar", "UNPAID", recent);
+    Invoice johnOld = mockInvoice("inv4",
+        1,
+        "asdf",
+        "UNPAID",
+        Instant.now().minus(Duration.ofDays(400)).toString());
+
+    InvoicesApi invoicesApi = mock(InvoicesApi.class);
+    when(squareClient.getInvoicesApi()).thenReturn(invoicesApi);
+    when(invoicesApi.searchInvoices(any())).thenAnswer(new Answer() {
+      @Override
+      public Object answer(InvocationOnMock invocationOnMock) {
+        SearchInvoicesRequest request = invocationOnMock.getArgument(0);
+        if (!request.getQuery().getFilter().getLocationIds().equals(ImmutableList.of("loc"))) {
+          throw new IllegalStateException("Incorrect location ids");
+        }
+        if (request.getCursor() != null) {
+          throw new IllegalStateException("Paging expected to stop at the time boundary");
+        }
+        SearchInvoicesResponse response = mock(SearchInvoicesResponse.class);
+        when(response.getInvoices()).thenReturn(ImmutableList.of(johnUnpaid,
+            johnPaid,
+            janeUnpaid,
+            johnOld));
+        when(response.getCursor()).thenReturn("next");
+        return response;
+      }
+    });
+    when(invoicesApi.cancelInvoiceAsync(any(), any())).thenReturn(CompletableFuture.completedFuture(
+        mock(CancelInvoiceResponse.class)));
+
+    client.cancelOutstandingInvoicesForAutoInvoicedCustomers(database, "loc");
+
+    verify(invoicesApi, times(1)).searchInvoices(any());
+    verify(invoicesApi, times(1)).cancelInvoiceAsync(eq("inv1"),
+        argThat(request -> request.getVersion() == 3));
+    verify(invoicesApi, times(1)).cancelInvoiceAsync(any(), any());
+  }
+
+  @Test
+  public void createAndSendInvoices() throws IOException, ApiException {
+    Customer johnDoe = mock(Customer.class);
+    Customer janeSmith = mock(Customer.class);
+    Customer bobSmith = mock(Customer.class);
+    when(johnDoe.getId()).thenReturn("asdf");
+    when(janeSmith.getId()).thenReturn("foobar");
+    when(bobSmith.getId()).thenReturn("qux");
+    when(johnDoe.getGivenName()).thenReturn("John");
+    when(johnDoe.getFamilyName()).thenReturn("Doe");
+    when(janeSmith.getGivenName()).thenReturn("Jane");
+    when(janeSmith.getFamilyName()).thenReturn("Smith");
+    when(bobSmith.getGivenName()).thenReturn("Bob");
+    when(bobSmith.getFamilyName()).thenReturn("Smith");
+    when(johnDoe.getEmailAddress()).thenReturn("john.doe@gmail.com");
+    when(janeSmith.getEmailAddress()).thenReturn("jane.smith@gmail.com");
+    when(bobSmith.getEmailAddress()).thenReturn("bob.smith@gmail.com");
+    when(johnDoe.getGroupIds()).thenReturn(ImmutableList.of("regular", "auto"));
+    when(janeSmith.getGroupIds()).thenReturn(ImmutableList.of("regular", "auto"));
+    when(bobSmith.getGroupIds()).thenReturn(ImmutableList.of("regular"));
+    Map<String, String> groups = ImmutableMap.of("regular", "REGULAR", "auto", "AutoInvoice");
+    Member johnDoeMember = Member.create(johnDoe, groups);
+    Member janeSmithMember = Member.create(janeSmith, groups);
+    Member bobSmithMember = Member.create(bobSmith, groups);
+
+    CustomerGroupsApi groupsApi = mock(CustomerGroupsApi.class);
+    when(squareClient.getCustomerGroupsApi()).thenReturn(groupsApi);
+    ListCustomerGroupsResponse groupsResponse = mock(ListCustomerGroupsResponse.class);
+    when(groupsApi.listCustomerGroups(any())).thenReturn(groupsResponse);
+    CustomerGroup regularGroup = mock(CustomerGroup.class);
+    when(regularGroup.getId()).thenReturn("regular");
+    when(regularGroup.getName()).thenReturn("REGULAR");
+    CustomerGroup autoGroup = mock(CustomerGroup.class);
+    when(autoGroup.getId()).thenReturn("auto");
+    when(autoGroup.getName()).thenReturn("AutoInvoice");
+    when(groupsResponse.getGroups()).thenReturn(ImmutableList.of(regularGroup, autoGroup));
+
+    OrdersApi ordersApi = mock(OrdersApi.class);
+    when(squareClient.getOrdersApi()).thenReturn(ordersApi);
+    when(ordersApi.createOrderAsync(any())).thenAnswer(invocation -> {
+      CreateOrderRequest request = invocation.getArgument(0);
+      Order order = mock(Order.class);
+      when(order.getId()).thenReturn("order-" + request.getOrder().getCustomerId());
+      CreateOrderResponse response = mock(CreateOrderResponse.class);
+      when(response.getOrder()).thenReturn(order);
+      return CompletableFuture.completedFuture(response);
+    });
+
+    InvoicesApi invoicesApi = mock(InvoicesApi.class);
+    when(squareClient.getInvoicesApi()).thenReturn(invoicesApi);
+    when(invoicesApi.createInvoiceAsync(any())).thenAnswer(invocation -> {
+      CreateInvoiceRequest request = invocation.getArgument(0);
+      CreateInvoiceResponse response = mock(CreateInvoiceResponse.class);
+      if (request.getInvoice().getOrderId().equals("order-foobar")) {
+        com.squareup.square.models.Error error = mock(com.squareup.square.models.Error.class);
+        when(error.getCategory()).thenReturn("INVALID_REQUEST_ERROR");
+        when(error.getDetail()).thenReturn("bad order");
+        when(response.getErrors()).thenReturn(ImmutableList.of(error));
+      } else {
+        Invoice invoice = mockInvoice("inv-" + request.getInvoice().getOrderId(),
+            0,
+            request.getInvoice().getPrimaryRecipient().getCustomerId(),
+            "DRAFT",
+            Instant.now().toString());
+        when(response.getInvoice()).thenReturn(invoice);
+      }
+      return CompletableFuture.completedFuture(response);
+    });
+    when(invoicesApi.publishInvoiceAsync(any(), any())).thenReturn(
+        CompletableFuture.completedFuture(mock(PublishInvoiceResponse.class)));
+
+    LocalDate startDate = LocalDate.parse("2021-01-01");
+    LocalDate endDate = LocalDate.parse("2021-02-28");
+    ImmutableList<SquareApiClient.InvoiceFailure> failures = client.createAndSendInvoices(
+        ImmutableList.of(Invoices.InvoiceEmail.create(johnDoeMember, 2, 80, startDate, endDate),
+            Invoices.InvoiceEmail.create(janeSmithMember, 2, 80, startDate, endDate),
+            Invoices.InvoiceEmail.create(bobSmithMember, 2, 80, startDate, endDate)),
+        "loc",
+        startDate);
+
+    assertThat(failures).hasSize(1);
+    assertThat(failures.get(0).member()).isEqualTo(janeSmithMember);
+    assertThat(failures.get(0).stage()).isEqualTo("createInvoice");
+    assertThat(failures.get(0).message()).isEqualTo("INVALID_REQUEST_ERROR bad order");
+    verify(ordersApi, times(2)).createOrderAsync(any());
+    verify(ordersApi).createOrderAsync(argThat(request -> request
+        .getIdempotencyKey()
+        .equals(SquareApiClient.idempotencyKey("createOrder", "asdf", startDate))));
+    verify(invoicesApi, times(1)).publishInvoiceAsync(eq("inv-order-asdf"), any());
+  }
+
+  @Test
+  public void idempotencyKeysIdentifyMemberPeriodAndStage() {
+    LocalDate period = LocalDate.parse("2021-01-01");
+    String key = SquareApiClient.idempotencyKey("createOrder", "asdf", period);
+
+    assertThat(SquareApiClient.idempotencyKey("createOrder", "asdf", period)).isEqualTo(key);
+    assertThat(SquareApiClient.idempotencyKey("createOrder", "foobar", period)).isNotEqualTo(key);
+    assertThat(SquareApiClient.idempotencyKey("createInvoice", "asdf", period))
+        .isNotEqualTo(key);
+    assertThat(SquareApiClient.idempotencyKey("createOrder", "asdf", period.plusMonths(2)))
+        .isNotEqualTo(key);
+  }
+
+  private static Invoice mockInvoice(
+      String id, int version, String customerId, String status, String createdAt) {
+    InvoiceRecipient recipient = mock(InvoiceRecipient.class);
+    when(recipient.getCustomerId()).thenReturn(customerId);
+    Invoice invoice = mock(Invoice.class);
+    when(invoice.getId()).thenReturn(id);
+    when(invoice.getVersion()).thenReturn(version);
+    when(invoice.getPrimaryRecipient()).thenReturn(recipient);
+    when(invoice.getStatus()).thenReturn(status);
+    when(invoice.getCreatedAt()).thenReturn(createdAt);
+    return invoice;
   }
 }
@@ -0,0 +1,162 @@
+package lu.zhe.kyudo;
+
+import com.fasterxml.jackson.core.type.*;
+import com.google.common.collect.*;
+import com.squareup.square.models.*;
+import org.junit.*;
+import org.junit.rules.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import static com.google.common.truth.Truth.*;
+
+/** Unit tests for {@link SquareCache}. */
+@RunWith(JUnit4.class)
+public class SquareCacheTest {
+  private static final TypeReference<Map<String, String>> GROUPS =
+      new TypeReference<Map<String, String>>() {};
+  private static final TypeReference<List<Customer>> CUSTOMERS =
+      new TypeReference<List<Customer>>() {};
+  private static final ImmutableMap<SquareCache.Kind, Duration> TTLS = ImmutableMap.of(
+      SquareCache.Kind.GROUPS,
+      Duration.ofHours(1),
+      SquareCache.Kind.CUSTOMERS,
+      Duration.ofMinutes(10));
+  private static final Customer JOHN_DOE = new Customer.Builder()
+      .id("asdf")
+      .givenName("John")
+      .familyName("Doe")
+      .groupIds(ImmutableList.of("group1"))
+      .build();
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final MutableClock clock = new MutableClock();
+  private final AtomicInteger loads = new AtomicInteger();
+
+  @Test
+  public void reloadsEachKindAfterItsTimeToLive() throws Exception {
+    SquareCache cache = new SquareCache(TTLS, null, 100, clock);
+
+    assertThat(cache.get(SquareCache.Kind.GROUPS, GROUPS, this::loadGroups))
+        .containsExactly("group1", "Regular");
+    assertThat(cache.get(SquareCache.Kind.CUSTOMERS, CUSTOMERS, this::loadCustomers)).hasSize(1);
+    clock.advance(Duration.ofMinutes(9));
+    cache.get(SquareCache.Kind.GROUPS, GROUPS, this::loadGroups);
+    cache.get(SquareCache.Kind.CUSTOMERS, CUSTOMERS, this::loadCustomers);
+    assertThat(loads.get()).isEqualTo(2);
+
+    clock.advance(Duration.ofMinutes(1));
+    cache.get(SquareCache.Kind.GROUPS, GROUPS, this::loadGroups);
+    cache.get(SquareCache.Kind.CUSTOMERS, CUSTOMERS, this::loadCustomers);
+    assertThat(loads.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void evictsEntriesOverTheItemLimit() throws Exception {
+    SquareCache cache = new SquareCache(TTLS, null, 1, clock);
+
+    cache.get(SquareCache.Kind.CUSTOMERS, CUSTOMERS, this::loadCustomers);
+    cache.get(SquareCache.Kind.GROUPS, GROUPS, this::loadGroups);
+    cache.get(SquareCache.Kind.GROUPS, GROUPS, this::loadGroups);
+    assertThat(loads.get()).isEqualTo(2);
+
+    cache.get(SquareCache.Kind.CUSTOMERS, CUSTOMERS, this::loadCustomers);
+    assertThat(loads.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void sharesFreshEntriesBetweenRunsThroughDirectory() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath().resolve("square");
+    new SquareCache(TTLS, directory, 100, clock).get(SquareCache.Kind.CUSTOMERS,
+        CUSTOMERS,
+        this::loadCustomers);
+
+    clock.advance(Duration.ofMinutes(5));
+    List<Customer> customers = new SquareCache(TTLS, directory, 100, clock).get(
+        SquareCache.Kind.CUSTOMERS,
+        CUSTOMERS,
+        this::loadCustomers);
+    assertThat(customers).containsExactly(JOHN_DOE);
+    assertThat(loads.get()).isEqualTo(1);
+
+    clock.advance(Duration.ofMinutes(5));
+    new SquareCache(TTLS, directory, 100, clock).get(SquareCache.Kind.CUSTOMERS,
+        CUSTOMERS,
+        this::loadCustomers);
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void reloadsEntryOfAnotherKey() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath().resolve("square");
+    new SquareCache(TTLS, directory, 100, clock).get(SquareCache.Kind.CUSTOMERS,
+        "group1",
+        CUSTOMERS,
+        this::loadCustomers);
+
+    SquareCache cache = new SquareCache(TTLS, directory, 100, clock);
+    cache.get(SquareCache.Kind.CUSTOMERS, "group1", CUSTOMERS, this::loadCustomers);
+    assertThat(loads.get()).isEqualTo(1);
+    cache.get(SquareCache.Kind.CUSTOMERS, "group1,group2", CUSTOMERS, this::loadCustomers);
+    assertThat(loads.get()).isEqualTo(2);
+    cache.get(SquareCache.Kind.CUSTOMERS, "group1,group2", CUSTOMERS, this::loadCustomers);
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void storesEntriesReadableOnlyByOwner() throws Exception {
+    Path directory = temporaryFolder.getRoot().toPath().resolve("square");
+    Assume.assumeTrue(
+        directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+    new SquareCache(TTLS, directory, 100, clock).get(SquareCache.Kind.CUSTOMERS,
+        CUSTOMERS,
+        this::loadCustomers);
+
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)))
+        .isEqualTo("rwx------");
+    assertThat(PosixFilePermissions.toString(
+        Files.getPosixFilePermissions(directory.resolve("customers.json"))))
+        .isEqualTo("rw-------");
+  }
+
+  private Map<String, String> loadGroups() {
+    loads.incrementAndGet();
+    return ImmutableMap.of("group1", "Regular");
+  }
+
+  private List<Customer> loadCustomers() {
+    loads.incrementAndGet();
+    return ImmutableList.of(JOHN_DOE);
+  }
+
+  private static final class MutableClock extends Clock {
+    private Instant now = Instant.parse("2021-01-01T00:00:00Z");
+
+    void advance(Duration duration) {
+      now = now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package lu.zhe.kyudo;
+
+import com.squareup.square.exceptions.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import static com.google.common.truth.Truth.*;
+import static org.junit.Assert.*;
+
+/** Unit tests for {@link Stages}. */
+@RunWith(JUnit4.class)
+public class StagesTest {
+  @Test
+  public void startedStagesRunConcurrently() throws IOException, ApiException {
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    try (Stages stages = Stages.create(2)) {
+      CompletableFuture<String> first = stages.start("first", () -> {
+        bothStarted.countDown();
+        return awaitOrFail(bothStarted) ? "foo" : null;
+      });
+      CompletableFuture<String> second = stages.start("second", () -> {
+        bothStarted.countDown();
+        return awaitOrFail(bothStarted) ? "bar" : null;
+      });
+
+      assertThat(Stages.join(first)).isEqualTo("foo");
+      assertThat(Stages.join(second)).isEqualTo("bar");
+      assertThat(stages.run("third", () -> "qux")).isEqualTo("qux");
+      assertThat(stages.timings().keySet()).containsExactly("first", "second", "third");
+    }
+  }
+
+  @Test
+  public void joinRethrowsStageException() throws ApiException {
+    try (Stages stages = Stages.create(1)) {
+      CompletableFuture<String> failed = stages.start("failed", () -> {
+        throw new IOException("foo");
+      });
+
+      try {
+        Stages.join(failed);
+        fail("Expected IOException");
+      } catch (IOException e) {
+        assertThat(e).hasMessageThat().isEqualTo("foo");
+      }
+      assertThat(stages.timings()).containsKey("failed");
+    }
+  }
+
+  private static boolean awaitOrFail(CountDownLatch latch) throws IOException {
+    try {
+      return latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}